@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end cost of {@code append()} on the logging thread, from the buffer checks to the
+ * serialization of the event and the assembly of the bulk, with the bulks discarded instead
+ * of sent. In async mode the bulks are handed over to the flusher thread. With {@code encoderThreads}
+ * the logging thread only queues a snapshot of the event, as long as the encoders keep up. See
+ * {@link AppendContentionBenchmark} for appends from several threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class AppendBenchmark {
+
+    private static final int EVENTS = 64;
+
+    @Param({"JsonLayout", "ElasticJsonLayout"})
+    public String layoutName;
+
+    @Param({"false", "true"})
+    public boolean stackTraces;
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    @Param({"0", "2"})
+    public int encoderThreads;
+
+    private ElasticSearchRestAppender appender;
+    private LogEvent[] events;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        appender = BenchmarkFixtures.appender(BenchmarkFixtures.layout(layoutName), 1, async, encoderThreads);
+        events = BenchmarkFixtures.events(EVENTS, stackTraces);
+    }
+
+    @TearDown
+    public void tearDown() {
+        appender.stop();
+    }
+
+    @Benchmark
+    public void append() {
+        appender.append(events[next++ % EVENTS]);
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append throughput of threads logging concurrently into a single appender, with a single
+ * buffer ({@code stripes=1}) and with one stripe per processor ({@code stripes=0}). Bulks are
+ * discarded instead of sent, so only buffering and serialization are measured.
+ * <p>
+ * Run it at 1, 8, 32 and 64 threads with JMH's {@code -t} option to see how throughput scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppendContentionBenchmark {
+
+    private static final int EVENTS = 64;
+
+    @Param({"1", "0"})
+    public int stripes;
+
+    private ElasticSearchRestAppender appender;
+    private LogEvent[] events;
+
+    /**
+     * The events each benchmark thread logs, in turn.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private int next;
+    }
+
+    @Setup
+    public void setUp() {
+        appender = BenchmarkFixtures.appender(ElasticJsonLayout.newBuilder().build(), stripes, false);
+        events = BenchmarkFixtures.events(EVENTS, false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        appender.stop();
+    }
+
+    @Benchmark
+    public void append(ThreadState thread) {
+        appender.append(events[thread.next++ % EVENTS]);
+    }
+
+}
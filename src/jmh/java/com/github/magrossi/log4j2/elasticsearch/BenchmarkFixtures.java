@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.MarkerManager;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.JsonLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Events, layouts and senders shared by the benchmarks.
+ */
+final class BenchmarkFixtures {
+
+    static final byte[] ACTION_LINE = "{\"index\":{\"_index\":\"logs-20170101\",\"_type\":\"log\"}}\n"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * @return A realistic event of a web service, with a stack trace if requested
+     */
+    static LogEvent event(int i, boolean withThrowable) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("com.example.orders.OrderService")
+                .setLevel(i % 5 == 0 ? Level.WARN : Level.INFO)
+                .setMarker(MarkerManager.getMarker("ORDERS"))
+                .setThreadName("http-nio-8080-exec-" + (i % 16))
+                .setTimeMillis(1483272000000L + i)
+                .setMessage(new SimpleMessage("Processed order " + (100000 + i) + " for customer " + (i * 7919 % 1000)
+                        + " in " + (i % 97) + " ms"))
+                .setThrown(withThrowable ? new IllegalStateException("Inventory service unavailable") : null)
+                .build();
+    }
+
+    /**
+     * @param count The number of events
+     * @param stackTraces True if one event out of ten is to carry a stack trace
+     */
+    static LogEvent[] events(int count, boolean stackTraces) {
+        LogEvent[] events = new LogEvent[count];
+        for (int i = 0; i < count; i++) {
+            events[i] = event(i, stackTraces && i % 10 == 0);
+        }
+        return events;
+    }
+
+    /**
+     * @param name {@code JsonLayout}, configured as the appender default, or {@code ElasticJsonLayout}
+     */
+    static Layout<? extends Serializable> layout(String name) {
+        if ("JsonLayout".equals(name)) {
+            return JsonLayout.newBuilder().setCompact(true).setCharset(StandardCharsets.UTF_8).setIncludeStacktrace(true)
+                    .setLocationInfo(true).setProperties(true).build();
+        }
+        return ElasticJsonLayout.newBuilder().build();
+    }
+
+    /**
+     * @return A sender that drops the bulks, so that only the appender itself is measured
+     */
+    static BulkSender discardingSender() {
+        return new BulkSender() {
+            @Override
+            public void send(String body) {
+            }
+
+            @Override
+            public void send(byte[] body, int offset, int length) {
+            }
+        };
+    }
+
+    /**
+     * @return A started appender sending bulks of 200 events to a discarding sender
+     */
+    static ElasticSearchRestAppender appender(Layout<? extends Serializable> layout, int stripes, boolean async) {
+        return appender(layout, stripes, async, 0);
+    }
+
+    /**
+     * @param encoderThreads The number of threads serializing the events, 0 to serialize them on the logging threads
+     * @return A started appender sending bulks of 200 events to a discarding sender
+     */
+    static ElasticSearchRestAppender appender(Layout<? extends Serializable> layout, int stripes, boolean async,
+                                              int encoderThreads) {
+        ElasticSearchRestAppender.Builder builder = ElasticSearchRestAppender.newBuilder();
+        builder.withLayout(layout);
+        builder.withName("benchmark");
+        ElasticSearchRestAppender appender = builder.withIndex("logs-")
+                .withType("log")
+                .withDateFormat("yyyyMMdd")
+                .withBulkSender(discardingSender())
+                .withMaxBulkSize(200)
+                .withMaxDelayTime(0L)
+                .withStripes(stripes)
+                .withAsync(async)
+                .withEncoderThreads(encoderThreads)
+                .build();
+        appender.start();
+        return appender;
+    }
+
+}
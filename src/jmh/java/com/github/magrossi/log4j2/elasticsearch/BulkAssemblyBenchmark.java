@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.SimpleDateFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of assembling a bulk body of 200 pre-serialized documents: resolving the index name and
+ * action line of each item, copying the items into the buffer of their stripe and merging the
+ * stripes into the bulk sent to ElasticSearch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkAssemblyBenchmark {
+
+    private static final int BULK_SIZE = 200;
+
+    @Param({"1", "8"})
+    public int stripes;
+
+    private IndexRouter indexRouter;
+    private BufferStripe[] stripeBuffers;
+    private LogEvent[] events;
+    private byte[][] documents;
+    private BulkBuffer bulk;
+
+    @Setup
+    public void setUp() {
+        indexRouter = new IndexRouter("logs-", new SimpleDateFormat("yyyyMMdd"), "log", "index", 1024);
+        stripeBuffers = new BufferStripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            stripeBuffers[i] = new BufferStripe();
+        }
+        Layout<?> layout = BenchmarkFixtures.layout("ElasticJsonLayout");
+        events = BenchmarkFixtures.events(BULK_SIZE, false);
+        documents = new byte[BULK_SIZE][];
+        for (int i = 0; i < BULK_SIZE; i++) {
+            documents[i] = layout.toByteArray(events[i]);
+        }
+        bulk = new BulkBuffer();
+    }
+
+    @Benchmark
+    public int assembleBulk() {
+        bulk.reset();
+        for (int i = 0; i < BULK_SIZE; i++) {
+            BufferStripe stripe = stripeBuffers[i % stripes];
+            byte[] actionLine = stripe.actionLine(events[i], indexRouter);
+            stripe.buffer.addItem(actionLine, documents[i], 0, documents[i].length);
+        }
+        for (BufferStripe stripe : stripeBuffers) {
+            bulk.addItems(stripe.buffer);
+            stripe.buffer.reset();
+        }
+        return bulk.size();
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.layout.JsonLayout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of gzip compressing a bulk of {@code JsonLayout} documents at several levels.
+ * The compressed size of the bulk, i.e. the bandwidth side of the tradeoff, is printed
+ * on setup for each level.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final int BULK_SIZE = 200;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"false", "true"})
+    public boolean stackTraces;
+
+    private BulkBuffer bulk;
+    private GzipCompressor compressor;
+
+    @Setup
+    public void setUp() {
+        Layout<?> layout = JsonLayout.newBuilder().setCompact(true).setIncludeStacktrace(true).build();
+        bulk = new BulkBuffer();
+        for (LogEvent event : BenchmarkFixtures.events(BULK_SIZE, stackTraces)) {
+            byte[] document = layout.toByteArray(event);
+            bulk.addItem(BenchmarkFixtures.ACTION_LINE, document, 0, document.length);
+        }
+        compressor = new GzipCompressor(level);
+        compressor.compress(bulk.array(), 0, bulk.size());
+        System.out.printf("%nlevel %d: %d bytes compressed to %d bytes (%.1fx)%n", level, bulk.size(), compressor.size(),
+                (double) bulk.size() / compressor.size());
+    }
+
+    @Benchmark
+    public int compressBulk() {
+        compressor.compress(bulk.array(), 0, bulk.size());
+        return compressor.size();
+    }
+
+}
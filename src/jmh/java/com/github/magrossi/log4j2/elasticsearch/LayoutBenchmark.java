@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of serializing an event into the bulk buffer with {@code JsonLayout}, configured as the
+ * appender default, and with {@link ElasticJsonLayout}. Run with {@code -prof gc} to compare the
+ * allocation rates as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayoutBenchmark {
+
+    private static final int EVENTS = 64;
+    private static final int MAX_BULK_BYTES = 1024 * 1024;
+
+    @Param({"JsonLayout", "ElasticJsonLayout"})
+    public String layoutName;
+
+    @Param({"false", "true"})
+    public boolean stackTraces;
+
+    private Layout<?> layout;
+    private LogEvent[] events;
+    private BulkBuffer bulk;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        layout = BenchmarkFixtures.layout(layoutName);
+        events = BenchmarkFixtures.events(EVENTS, stackTraces);
+        bulk = new BulkBuffer();
+    }
+
+    @Benchmark
+    public int encodeEvent() {
+        if (bulk.size() > MAX_BULK_BYTES) {
+            bulk.reset();
+        }
+        LogEvent event = events[next++ % EVENTS];
+        bulk.beginItem(BenchmarkFixtures.ACTION_LINE);
+        layout.encode(event, bulk);
+        bulk.endItem();
+        return bulk.size();
+    }
+
+}
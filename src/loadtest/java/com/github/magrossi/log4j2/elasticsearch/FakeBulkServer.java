@@ -0,0 +1,340 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A minimal HTTP/1.1 server answering {@code _bulk} requests like ElasticSearch would, with
+ * faults injected on demand:
+ * <ul>
+ * <li>a fixed latency before each response;</li>
+ * <li>a share of the items rejected with {@code 429}, as a cluster under pressure does;</li>
+ * <li>bursts of requests answered with {@code 503}, e.g. {@code 2000} ms every {@code 10000} ms;</li>
+ * <li>a share of the requests whose connection is closed without a response.</li>
+ * </ul>
+ * Documents are not parsed, the items of a request are counted from its lines. Items answered
+ * with {@code 201} are counted as delivered.
+ */
+final class FakeBulkServer implements AutoCloseable {
+
+    private static final byte[] OK_BODY = "{}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NOT_FOUND_BODY = ("{\"error\":{\"type\":\"resource_not_found_exception\","
+            + "\"reason\":\"no handler found\"},\"status\":404}").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] UNAVAILABLE_BODY = ("{\"error\":{\"type\":\"unavailable_shards_exception\","
+            + "\"reason\":\"primary shard is not active\"},\"status\":503}").getBytes(StandardCharsets.UTF_8);
+    private static final String ACCEPTED_ITEM = "{\"index\":{\"status\":201}}";
+    private static final String REJECTED_ITEM = "{\"index\":{\"status\":429,\"error\":{\"type\":"
+            + "\"es_rejected_execution_exception\",\"reason\":\"rejected execution of bulk item\"}}}";
+
+    private final long latencyMillis;
+    private final double rejectRate;
+    private final long errorBurstEveryMillis;
+    private final long errorBurstLengthMillis;
+    private final double dropRate;
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fake-bulk-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder itemsReceived = new LongAdder();
+    private final LongAdder itemsAccepted = new LongAdder();
+    private final LongAdder itemsRejected = new LongAdder();
+    private final LongAdder errorResponses = new LongAdder();
+    private final LongAdder droppedConnections = new LongAdder();
+
+    /**
+     * @param latencyMillis The time taken to answer each request
+     * @param rejectRate The share of the items rejected with {@code 429}, between 0 and 1
+     * @param errorBurstEveryMillis The period of the {@code 503} bursts, 0 for none
+     * @param errorBurstLengthMillis How long each {@code 503} burst lasts
+     * @param dropRate The share of the requests whose connection is closed without a response, between 0 and 1
+     */
+    FakeBulkServer(final long latencyMillis, final double rejectRate, final long errorBurstEveryMillis,
+            final long errorBurstLengthMillis, final double dropRate) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.rejectRate = rejectRate;
+        this.errorBurstEveryMillis = errorBurstEveryMillis;
+        this.errorBurstLengthMillis = errorBurstLengthMillis;
+        this.dropRate = dropRate;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "fake-bulk-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    long getRequests() {
+        return requests.sum();
+    }
+
+    long getItemsReceived() {
+        return itemsReceived.sum();
+    }
+
+    long getItemsAccepted() {
+        return itemsAccepted.sum();
+    }
+
+    long getItemsRejected() {
+        return itemsRejected.sum();
+    }
+
+    long getErrorResponses() {
+        return errorResponses.sum();
+    }
+
+    long getDroppedConnections() {
+        return droppedConnections.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException ex) {
+                // Closed
+            }
+        }
+    }
+
+    private void serve(final Socket socket) {
+        try (Socket connection = socket) {
+            connection.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            OutputStream out = connection.getOutputStream();
+            Request request;
+            while ((request = Request.read(in)) != null) {
+                if (!handle(request, out)) {
+                    return;
+                }
+            }
+        } catch (SocketException ex) {
+            // Closed by the client
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Fake bulk server failed to serve a request: " + ex);
+        }
+    }
+
+    /**
+     * @return False if the connection is to be closed
+     */
+    private boolean handle(final Request request, final OutputStream out) throws IOException {
+        if (request.body == null) {
+            respond(out, 411, "Length Required", OK_BODY);
+            return false;
+        }
+        // Bulks carry query parameters such as filter_path, a path the server does not know must not pass as delivered
+        String path = request.path.split("\\?", 2)[0];
+        if (!path.equals("_bulk") && !path.endsWith("/_bulk")) {
+            respond(out, 404, "Not Found", NOT_FOUND_BODY);
+            return request.keepAlive;
+        }
+        requests.increment();
+        sleep(latencyMillis);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (dropRate > 0 && random.nextDouble() < dropRate) {
+            droppedConnections.increment();
+            return false;
+        }
+        if (inErrorBurst()) {
+            errorResponses.increment();
+            respond(out, 503, "Service Unavailable", UNAVAILABLE_BODY);
+            return request.keepAlive;
+        }
+        int items = countItems(request.gzipped ? gunzip(request.body) : request.body);
+        itemsReceived.add(items);
+        StringBuilder response = new StringBuilder(64 + items * ACCEPTED_ITEM.length());
+        int rejected = 0;
+        for (int i = 0; i < items; i++) {
+            response.append(i == 0 ? "" : ",");
+            if (rejectRate > 0 && random.nextDouble() < rejectRate) {
+                response.append(REJECTED_ITEM);
+                rejected++;
+            } else {
+                response.append(ACCEPTED_ITEM);
+            }
+        }
+        itemsAccepted.add(items - rejected);
+        itemsRejected.add(rejected);
+        String body = "{\"took\":" + latencyMillis + ",\"errors\":" + (rejected > 0) + ",\"items\":[" + response + "]}";
+        respond(out, 200, "OK", body.getBytes(StandardCharsets.UTF_8));
+        return request.keepAlive;
+    }
+
+    private boolean inErrorBurst() {
+        if (errorBurstEveryMillis <= 0) {
+            return false;
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        return elapsed % errorBurstEveryMillis >= errorBurstEveryMillis - errorBurstLengthMillis;
+    }
+
+    private static void respond(final OutputStream out, final int status, final String reason, final byte[] body)
+            throws IOException {
+        String head = "HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n"
+                + "Content-Length: " + body.length + "\r\n\r\n";
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * @return The number of items of a bulk body, made of an action and a document line each
+     */
+    private static int countItems(final byte[] body) {
+        int lines = 0;
+        for (byte b : body) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        return lines / 2;
+    }
+
+    private static byte[] gunzip(final byte[] body) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            return readFully(in, -1);
+        }
+    }
+
+    private static byte[] readFully(final InputStream in, final int length) throws IOException {
+        byte[] buffer = new byte[length >= 0 ? length : 64 * 1024];
+        int size = 0;
+        while (length < 0 || size < length) {
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = in.read(buffer, size, buffer.length - size);
+            if (read < 0) {
+                if (length >= 0) {
+                    throw new IOException("Connection closed after " + size + " of " + length + " bytes");
+                }
+                break;
+            }
+            size += read;
+        }
+        return size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+    }
+
+    private static void sleep(final long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The parts of an HTTP request the server cares about.
+     */
+    private static final class Request {
+        private String path;
+        private boolean keepAlive = true;
+        private boolean gzipped;
+        private byte[] body;
+
+        /**
+         * @return The next request of the connection, or null once the client closed it
+         */
+        static Request read(final InputStream in) throws IOException {
+            String requestLine = readLine(in);
+            while (requestLine != null && requestLine.isEmpty()) {
+                requestLine = readLine(in);
+            }
+            if (requestLine == null) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 3) {
+                throw new IOException("Malformed request line " + requestLine);
+            }
+            Request request = new Request();
+            request.path = parts[1];
+            int contentLength = parts[0].equals("GET") || parts[0].equals("HEAD") ? 0 : -1;
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = line.substring(colon + 1).trim();
+                if (name.equals("content-length")) {
+                    contentLength = Integer.parseInt(value);
+                } else if (name.equals("content-encoding")) {
+                    request.gzipped = value.equalsIgnoreCase("gzip");
+                } else if (name.equals("connection")) {
+                    request.keepAlive = !value.equalsIgnoreCase("close");
+                }
+            }
+            if (contentLength >= 0) {
+                request.body = readFully(in, contentLength);
+            }
+            return request;
+        }
+
+        private static String readLine(final InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b == '\n') {
+                    int length = line.length();
+                    return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+                }
+                line.append((char) b);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+    }
+
+}
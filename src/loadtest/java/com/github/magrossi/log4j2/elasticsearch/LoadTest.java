@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.JsonLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives an {@link ElasticSearchRestAppender}, with its real {@link ElasticBulkSender} and REST client,
+ * against a {@link FakeBulkServer} at a target event rate, then reports the sustained throughput,
+ * the time taken by {@code append()} on the logging threads, and how many events were delivered
+ * or lost. Options are passed as {@code --name=value}:
+ * <ul>
+ * <li>{@code rate} (events per second, 0 for as fast as possible), {@code duration} (seconds),
+ * {@code threads} and {@code layout} ({@code ElasticJsonLayout} or {@code JsonLayout});</li>
+ * <li>{@code latency} (ms), {@code rejectRate}, {@code errorBurstEvery} (ms), {@code errorBurstLength} (ms)
+ * and {@code dropRate}, the faults of the server, see {@link FakeBulkServer};</li>
+ * <li>{@code async}, {@code stripes}, {@code maxBulkSize}, {@code maxDelayTime}, {@code adaptiveBatching},
+ * {@code minBulkSize}, {@code minDelayTime}, {@code targetBulkLatency}, {@code bufferCapacity},
+ * {@code overflowPolicy}, {@code compression}, {@code maxRetries}, {@code retryBackoff},
+ * {@code spillDirectory}, {@code maxConnectionsPerRoute}, {@code connectTimeout} and {@code socketTimeout},
+ * passed on to the appender;</li>
+ * <li>{@code maxLoss}, the share of lost events above which the run fails with exit status 1, by default
+ * none, or 0.1% when faults are injected. Runs also fail if the server received none of the bulks sent.</li>
+ * </ul>
+ */
+public final class LoadTest {
+
+    private static final double DEFAULT_MAX_LOSS_WITH_FAULTS = 0.001;
+
+    private final Map<String, String> options;
+
+    private final LatencyHistogram appendLatency = new LatencyHistogram();
+    private final LongAdder appended = new LongAdder();
+
+    private LoadTest(final Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.err.println("Ignoring argument " + arg + ", options are passed as --name=value");
+                continue;
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        System.exit(new LoadTest(options).run() ? 0 : 1);
+    }
+
+    /**
+     * @return False if more events were lost than allowed by {@code maxLoss}, or none reached the server
+     */
+    private boolean run() throws IOException, InterruptedException {
+        int rate = intOption("rate", 10000);
+        int duration = intOption("duration", 30);
+        int threads = Math.max(1, intOption("threads", 4));
+
+        try (FakeBulkServer server = new FakeBulkServer(longOption("latency", 5L), doubleOption("rejectRate", 0.0),
+                longOption("errorBurstEvery", 0L), longOption("errorBurstLength", 0L), doubleOption("dropRate", 0.0))) {
+            ElasticSearchRestAppender appender = appender(server.getPort());
+            appender.start();
+
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(duration);
+            CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                Thread logger = new Thread(() -> {
+                    try {
+                        log(appender, thread, threads, rate, start, end);
+                    } finally {
+                        done.countDown();
+                    }
+                }, "loadtest-" + t);
+                logger.start();
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+
+            // Sends whatever is still buffered
+            appender.stop();
+            return report(appender.getMetrics(), server, rate, threads, elapsed);
+        }
+    }
+
+    /**
+     * Appends events at the given rate until the end of the run, pacing them on a fixed schedule
+     * so that a slow append is made up for instead of lowering the rate.
+     */
+    private void log(final ElasticSearchRestAppender appender, final int thread, final int threads, final int rate,
+            final long start, final long end) {
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(threads) / rate : 0L;
+        long next = start + interval * thread / threads;
+        long sequence = thread;
+        while (next < end) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            if (next > now) {
+                LockSupport.parkNanos(next - now);
+            }
+            LogEvent event = event(sequence);
+            long before = System.nanoTime();
+            appender.append(event);
+            appendLatency.record(System.nanoTime() - before, TimeUnit.NANOSECONDS);
+            appended.increment();
+            sequence += threads;
+            next = interval > 0 ? next + interval : System.nanoTime();
+        }
+    }
+
+    private static LogEvent event(final long sequence) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("com.example.orders.OrderService")
+                .setLevel(sequence % 5 == 0 ? Level.WARN : Level.INFO)
+                .setThreadName(Thread.currentThread().getName())
+                .setTimeMillis(System.currentTimeMillis())
+                .setMessage(new SimpleMessage("Processed order " + sequence + " for customer " + (sequence * 7919 % 1000)
+                        + " in " + (sequence % 97) + " ms"))
+                .build();
+    }
+
+    private ElasticSearchRestAppender appender(final int port) {
+        ElasticSearchRestAppender.Builder builder = ElasticSearchRestAppender.newBuilder();
+        builder.withLayout(layout(option("layout", "ElasticJsonLayout")));
+        builder.withName("loadtest");
+        builder.withIndex("logs-")
+                .withType("log")
+                .withDateFormat("yyyyMMdd")
+                .withHosts(HttpAddress.newBuilder().withPort(port).build())
+                .withAsync(Boolean.parseBoolean(option("async", "true")))
+                .withStripes(intOption("stripes", 0))
+                .withMaxBulkSize(intOption("maxBulkSize", 200))
+                .withMaxDelayTime(longOption("maxDelayTime", 2000L))
+                .withAdaptiveBatching(Boolean.parseBoolean(option("adaptiveBatching", "false")))
+                .withMinBulkSize(options.containsKey("minBulkSize") ? intOption("minBulkSize", 0) : null)
+                .withMinDelayTime(options.containsKey("minDelayTime") ? longOption("minDelayTime", 0L) : null)
+                .withTargetBulkLatency(options.containsKey("targetBulkLatency") ? longOption("targetBulkLatency", 0L) : null)
+                .withBufferCapacity(intOption("bufferCapacity", 100000))
+                .withOverflowPolicy(OverflowPolicy.valueOf(option("overflowPolicy", OverflowPolicy.DROP_NEWEST.name())))
+                .withCompression(option("compression", "none"))
+                .withMaxRetries(intOption("maxRetries", 3))
+                .withRetryBackoff(longOption("retryBackoff", 100L))
+                .withSpillDirectory(option("spillDirectory", null))
+                .withMaxConnectionsPerRoute(options.containsKey("maxConnectionsPerRoute") ? intOption("maxConnectionsPerRoute", 0) : null)
+                .withConnectTimeout(options.containsKey("connectTimeout") ? intOption("connectTimeout", 0) : null)
+                .withSocketTimeout(options.containsKey("socketTimeout") ? intOption("socketTimeout", 0) : null);
+        return builder.build();
+    }
+
+    private static Layout<? extends Serializable> layout(final String name) {
+        if ("JsonLayout".equals(name)) {
+            return JsonLayout.newBuilder().setCompact(true).setCharset(StandardCharsets.UTF_8).build();
+        }
+        return ElasticJsonLayout.newBuilder().build();
+    }
+
+    private boolean report(final ElasticSearchRestAppenderMXBean metrics, final FakeBulkServer server, final int rate,
+            final int threads, final long elapsedNanos) {
+        long events = appended.sum();
+        long delivered = server.getItemsAccepted();
+        long lost = events - delivered;
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("Target rate       %s events/s on %d threads%n", rate > 0 ? rate : "unbounded", threads);
+        System.out.printf("Sustained rate    %.0f events/s over %.1f s%n", events / seconds, seconds);
+        System.out.printf("Append latency    p50 %s, p99 %s, p99.9 %s, max %s%n",
+                micros(appendLatency.percentile(0.5)), micros(appendLatency.percentile(0.99)),
+                micros(appendLatency.percentile(0.999)), micros(appendLatency.max()));
+        System.out.printf("Events            %d appended, %d delivered, %d lost (%.3f%%)%n",
+                events, delivered, lost, events > 0 ? 100.0 * lost / events : 0.0);
+        System.out.printf("Appender          %d dropped when full, %d bulks sent, %d failed, "
+                        + "items %d retried, %d rejected, %d spilled, %d dropped%n",
+                metrics.getEventsDropped(), metrics.getBulksSent(), metrics.getBulksFailed(), metrics.getItemsRetried(),
+                metrics.getItemsRejected(), metrics.getItemsSpilled(), metrics.getItemsDropped());
+        System.out.printf("Bulk latency      p50 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                metrics.getBulkLatencyP50Millis(), metrics.getBulkLatencyP99Millis(), metrics.getBulkLatencyMaxMillis());
+        System.out.printf("Batching          bulks of %d events, %d ms delay at the end of the run%n",
+                metrics.getMaxBulkSize(), metrics.getMaxDelayTime());
+        System.out.printf("Server            %d requests, %d items received, %d items answered 429, "
+                        + "%d answered 503, %d connections dropped%n",
+                server.getRequests(), server.getItemsReceived(), server.getItemsRejected(), server.getErrorResponses(),
+                server.getDroppedConnections());
+
+        if (metrics.getBulksSent() > 0 && server.getRequests() == 0) {
+            System.out.println("FAILED: the appender sent bulks the server never received");
+            return false;
+        }
+        // Some bulks may exhaust their retries while faults are injected, none are to be lost otherwise
+        double maxLoss = doubleOption("maxLoss", injectsFaults() ? DEFAULT_MAX_LOSS_WITH_FAULTS : 0.0);
+        if (events > 0 && (double) lost / events > maxLoss) {
+            System.out.printf("FAILED: lost more than %.3f%% of the events%n", maxLoss * 100);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean injectsFaults() {
+        return doubleOption("rejectRate", 0.0) > 0 || longOption("errorBurstEvery", 0L) > 0
+                || doubleOption("dropRate", 0.0) > 0;
+    }
+
+    private static String micros(final long micros) {
+        return micros < 1000 ? micros + " us" : String.format("%.1f ms", micros / 1000.0);
+    }
+
+    private String option(final String name, final String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(final String name, final int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private long longOption(final String name, final long defaultValue) {
+        return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+    }
+
+    private double doubleOption(final String name, final double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+}
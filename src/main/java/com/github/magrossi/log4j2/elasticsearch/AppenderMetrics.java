@@ -0,0 +1,261 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+import org.apache.logging.log4j.util.PropertiesUtil;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters of an appender, exposed through JMX.
+ * <p>
+ * Counters updated for every event are {@link LongAdder}s, which spread concurrent updates
+ * over several cells instead of contending on a single one; they are only summed up when read.
+ */
+final class AppenderMetrics implements ElasticSearchRestAppenderMXBean {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    static final String DOMAIN = "com.github.magrossi.log4j2.elasticsearch";
+
+    // The MBean registered under each name, so that a stopping appender does not unregister its replacement
+    private static final Map<ObjectName, AppenderMetrics> REGISTERED = new HashMap<>();
+
+    private final LongAdder eventsAppended = new LongAdder();
+    private final LongAdder bytesSerialized = new LongAdder();
+    private final LongAdder eventsDropped = new LongAdder();
+    private final LongAdder eventsCollapsed = new LongAdder();
+    private final LongAdder eventsSuppressed = new LongAdder();
+    private final LongAdder bulksSent = new LongAdder();
+    private final LongAdder bulksFailed = new LongAdder();
+    private final LongAdder itemsSpilled = new LongAdder();
+    private final LongAdder itemsDropped = new LongAdder();
+    private final LatencyHistogram bulkLatency = new LatencyHistogram();
+    private final LongSupplier bufferedEvents;
+    private final LongSupplier bufferedBytes;
+    private final ElasticBulkSender sender;
+    private final CircuitBreakerSender circuitBreaker;
+    private final BatchSizer batchSizer;
+    private ObjectName objectName;
+
+    /**
+     * @param bufferedEvents Reads the number of events currently buffered
+     * @param bufferedBytes Reads the size of the events currently buffered
+     * @param bulkSender The sender of the appender, whose retries and rejections are reported
+     * when it is an {@link ElasticBulkSender}, possibly behind a {@link CircuitBreakerSender}
+     * @param batchSizer The bulk size and delay time in effect
+     */
+    AppenderMetrics(final LongSupplier bufferedEvents, final LongSupplier bufferedBytes, final BulkSender bulkSender,
+                    final BatchSizer batchSizer) {
+        this.bufferedEvents = bufferedEvents;
+        this.bufferedBytes = bufferedBytes;
+        this.circuitBreaker = bulkSender instanceof CircuitBreakerSender ? (CircuitBreakerSender) bulkSender : null;
+        BulkSender delegate = circuitBreaker != null ? circuitBreaker.getDelegate() : bulkSender;
+        this.sender = delegate instanceof ElasticBulkSender ? (ElasticBulkSender) delegate : null;
+        this.batchSizer = batchSizer;
+    }
+
+    void eventAppended(final int bytes) {
+        eventsAppended.increment();
+        bytesSerialized.add(bytes);
+    }
+
+    void eventsDropped(final int events) {
+        eventsDropped.add(events);
+    }
+
+    void eventCollapsed() {
+        eventsCollapsed.increment();
+    }
+
+    void eventSuppressed() {
+        eventsSuppressed.increment();
+    }
+
+    void bulkSent(final long durationNanos) {
+        bulksSent.increment();
+        bulkLatency.record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void bulkFailed() {
+        bulksFailed.increment();
+    }
+
+    void itemsSpilled(final int items) {
+        itemsSpilled.add(items);
+    }
+
+    void itemsDropped(final int items) {
+        itemsDropped.add(items);
+    }
+
+    @Override
+    public long getEventsAppended() {
+        return eventsAppended.sum();
+    }
+
+    @Override
+    public long getBytesSerialized() {
+        return bytesSerialized.sum();
+    }
+
+    @Override
+    public long getEventsDropped() {
+        return eventsDropped.sum();
+    }
+
+    @Override
+    public long getEventsCollapsed() {
+        return eventsCollapsed.sum();
+    }
+
+    @Override
+    public long getEventsSuppressed() {
+        return eventsSuppressed.sum();
+    }
+
+    @Override
+    public long getBufferedEvents() {
+        return bufferedEvents.getAsLong();
+    }
+
+    @Override
+    public long getBufferedBytes() {
+        return bufferedBytes.getAsLong();
+    }
+
+    @Override
+    public long getBulksSent() {
+        return bulksSent.sum();
+    }
+
+    @Override
+    public long getBulksFailed() {
+        return bulksFailed.sum();
+    }
+
+    @Override
+    public long getItemsRetried() {
+        return sender != null ? sender.getItemsRetried() : 0L;
+    }
+
+    @Override
+    public long getItemsRejected() {
+        return sender != null ? sender.getItemsRejected() : 0L;
+    }
+
+    @Override
+    public long getItemsSpilled() {
+        return itemsSpilled.sum();
+    }
+
+    @Override
+    public long getItemsDropped() {
+        return itemsDropped.sum();
+    }
+
+    @Override
+    public double getBulkLatencyP50Millis() {
+        return toMillis(bulkLatency.percentile(0.5));
+    }
+
+    @Override
+    public double getBulkLatencyP99Millis() {
+        return toMillis(bulkLatency.percentile(0.99));
+    }
+
+    @Override
+    public double getBulkLatencyMaxMillis() {
+        return toMillis(bulkLatency.max());
+    }
+
+    @Override
+    public int getMaxBulkSize() {
+        return batchSizer.getBulkSize();
+    }
+
+    @Override
+    public long getMaxDelayTime() {
+        return batchSizer.getDelayTime();
+    }
+
+    @Override
+    public String getCircuitState() {
+        return (circuitBreaker != null ? circuitBreaker.getState() : CircuitBreakerSender.State.CLOSED).name();
+    }
+
+    private static double toMillis(final long micros) {
+        return micros / 1000.0;
+    }
+
+    static ObjectName objectName(final String appenderName) throws JMException {
+        return new ObjectName(DOMAIN + ":type=ElasticSearchRestAppender,name=" + ObjectName.quote(appenderName));
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server, replacing those of a previous appender
+     * with the same name, unless JMX is disabled for Log4j with {@code log4j2.disable.jmx}.
+     */
+    void register(final String appenderName) {
+        if (PropertiesUtil.getProperties().getBooleanProperty("log4j2.disable.jmx")) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (REGISTERED) {
+            try {
+                ObjectName name = objectName(appenderName);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(new StandardMBean(this, ElasticSearchRestAppenderMXBean.class, true), name);
+                REGISTERED.put(name, this);
+                objectName = name;
+            } catch (JMException ex) {
+                LOGGER.warn("Failed to register MBean of appender {}.", appenderName, ex);
+            }
+        }
+    }
+
+    void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (REGISTERED) {
+            if (objectName == null) {
+                return;
+            }
+            try {
+                if (REGISTERED.remove(objectName, this) && server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (JMException ex) {
+                LOGGER.warn("Failed to unregister MBean {}.", objectName, ex);
+            } finally {
+                objectName = null;
+            }
+        }
+    }
+
+}
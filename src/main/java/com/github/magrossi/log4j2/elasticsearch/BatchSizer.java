@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bulk size and linger time (the delay before a partial bulk is sent) of an appender,
+ * either fixed or tuned at runtime between bounds:
+ * <ul>
+ * <li>the bulk size grows by a step after each full bulk delivered within the target latency,
+ * and is halved when a bulk takes longer, has items rejected with {@code 429} or fails, the
+ * additive increase and multiplicative decrease of TCP congestion control;</li>
+ * <li>the linger time is halved when it expires with less than a quarter of a bulk buffered,
+ * as waiting longer does not make bulks any larger when traffic is low, and grows back by a
+ * quarter when it expires with at least half a bulk buffered.</li>
+ * </ul>
+ */
+final class BatchSizer {
+
+    private final boolean adaptive;
+    private final int minBulkSize;
+    private final int maxBulkSize;
+    private final long minDelayTime;
+    private final long maxDelayTime;
+    private final long targetLatencyNanos;
+    private final int step;
+
+    // Read without locking on every append, only written by the synchronized methods
+    private volatile int bulkSize;
+    private volatile long delayTime;
+
+    private BatchSizer(final boolean adaptive, final int minBulkSize, final int maxBulkSize, final long minDelayTime,
+                       final long maxDelayTime, final long targetLatencyMillis) {
+        this.adaptive = adaptive;
+        this.minBulkSize = minBulkSize;
+        this.maxBulkSize = maxBulkSize;
+        this.minDelayTime = minDelayTime;
+        this.maxDelayTime = maxDelayTime;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.step = Math.max(1, (maxBulkSize - minBulkSize) / 32);
+        // Starts small, as when the appender starts logging in the middle of an incident
+        this.bulkSize = minBulkSize;
+        this.delayTime = maxDelayTime;
+    }
+
+    /**
+     * @param bulkSize The number of events per bulk, 0 for no limit
+     * @param delayTime The linger time in millis, 0 to send partial bulks only when the bulk size is 0 as well
+     */
+    static BatchSizer fixed(final int bulkSize, final long delayTime) {
+        return new BatchSizer(false, bulkSize, bulkSize, delayTime, delayTime, 0L);
+    }
+
+    /**
+     * @param minBulkSize The smallest number of events per bulk, at least 1
+     * @param maxBulkSize The largest number of events per bulk, 0 to keep bulks bounded by their size in bytes only,
+     * in which case there is no telling how full a bulk is and nothing is tuned
+     * @param minDelayTime The shortest linger time in millis, at least 1
+     * @param maxDelayTime The longest linger time in millis, 0 to send partial bulks only when the bulk size is 0 as well
+     * @param targetLatencyMillis The time a bulk should take to be delivered, retries included
+     */
+    static BatchSizer adaptive(final int minBulkSize, final int maxBulkSize, final long minDelayTime,
+                               final long maxDelayTime, final long targetLatencyMillis) {
+        if (maxBulkSize == 0) {
+            return fixed(0, maxDelayTime);
+        }
+        return new BatchSizer(true, (int) clamp(minBulkSize, 1L, maxBulkSize), maxBulkSize,
+                clamp(minDelayTime, 1L, maxDelayTime), maxDelayTime, targetLatencyMillis);
+    }
+
+    private static long clamp(final long value, final long min, final long max) {
+        return Math.max(Math.min(value, max), Math.min(min, max));
+    }
+
+    /**
+     * @return The number of events a bulk is sent at, 0 for no limit
+     */
+    int getBulkSize() {
+        return bulkSize;
+    }
+
+    /**
+     * @return How long in millis a partial bulk waits for more events before being sent
+     */
+    long getDelayTime() {
+        return delayTime;
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @param items The number of items of the bulk
+     * @param latencyNanos The time taken to deliver it, retries included
+     * @param rejected True if some of its items were rejected for a transient reason and sent again
+     */
+    synchronized void bulkSent(final int items, final long latencyNanos, final boolean rejected) {
+        if (!adaptive) {
+            return;
+        }
+        if (rejected || latencyNanos > targetLatencyNanos) {
+            decrease(items);
+        } else if (items >= bulkSize) {
+            bulkSize = Math.min(maxBulkSize, bulkSize + step);
+        }
+    }
+
+    synchronized void bulkFailed(final int items) {
+        if (adaptive) {
+            decrease(items);
+        }
+    }
+
+    private void decrease(final int items) {
+        // Bulks built before the last decrease, still on their way, tell nothing about the current size
+        if (items < 2 * bulkSize) {
+            bulkSize = Math.max(minBulkSize, bulkSize / 2);
+        }
+    }
+
+    /**
+     * @param items The number of events buffered when the linger time expired
+     */
+    synchronized void lingerExpired(final int items) {
+        if (!adaptive || maxDelayTime == 0) {
+            return;
+        }
+        if (items < bulkSize / 4) {
+            delayTime = Math.max(minDelayTime, delayTime / 2);
+        } else if (items >= bulkSize / 2) {
+            delayTime = Math.min(maxDelayTime, delayTime + Math.max(1L, delayTime / 4));
+        }
+    }
+
+}
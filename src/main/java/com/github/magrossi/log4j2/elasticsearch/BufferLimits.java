@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Level;
+
+/**
+ * Capacity of the appender buffer, counting the events not sent yet, and what to do once it is reached.
+ */
+public final class BufferLimits {
+
+    /**
+     * No limits, the buffer grows as needed.
+     */
+    public static final BufferLimits UNBOUNDED = new BufferLimits(0, 0L, OverflowPolicy.DROP_NEWEST, Level.WARN, 0L);
+
+    private final int maxEvents;
+    private final long maxBytes;
+    private final OverflowPolicy policy;
+    private final Level level;
+    private final long blockTimeoutMillis;
+
+    /**
+     * @param maxEvents Max number of buffered events, 0 for no limit
+     * @param maxBytes Max size in bytes of the buffered bulk items, 0 for no limit
+     * @param policy What to do with new events once the buffer is full
+     * @param level The least specific level still buffered when full, for {@link OverflowPolicy#DROP_BELOW_LEVEL}
+     * @param blockTimeoutMillis How long to wait for room, for {@link OverflowPolicy#BLOCK}
+     */
+    public BufferLimits(final int maxEvents, final long maxBytes, final OverflowPolicy policy, final Level level,
+                        final long blockTimeoutMillis) {
+        this.maxEvents = maxEvents;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.level = level;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    boolean isFull(final long events, final long bytes) {
+        return (maxEvents > 0 && events >= maxEvents) || (maxBytes > 0 && bytes >= maxBytes);
+    }
+
+    OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    Level getLevel() {
+        return level;
+    }
+
+    long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One of the buffers logging threads encode their events into, before the items are
+ * merged into the bulk being filled. Threads are spread over the stripes by id, so that
+ * concurrent appends only contend when they land on the same stripe.
+ * <p>
+ * The stripe also keeps track of the runs of consecutive items sharing a destination index,
+ * so that their items can be grouped by index when merged. The buffer, the runs and the last
+ * route are guarded by {@link #lock}.
+ */
+final class BufferStripe {
+
+    /**
+     * Receives the runs of items of a stripe.
+     */
+    interface RunConsumer {
+        /**
+         * @param indexName The destination index of the items
+         * @param from The offset of the first item in the buffer
+         * @param to The offset after the last item in the buffer
+         * @param items The number of items
+         */
+        void accept(String indexName, int from, int to, int items);
+    }
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    final ReentrantLock lock = new ReentrantLock();
+    final BulkBuffer buffer = new BulkBuffer(INITIAL_CAPACITY);
+    private IndexRouter.Route route;
+    // Index name, offset and item count of the buffer at the start of each run
+    private String[] runIndices = new String[4];
+    private int[] runStarts = new int[4];
+    private int[] runItems = new int[4];
+    private int runs;
+
+    /**
+     * Routes the item about to be added to the buffer.
+     *
+     * @return The encoded action line of the item, the same array while the destination does not change
+     */
+    byte[] actionLine(final LogEvent event, final IndexRouter router) {
+        route = router.route(event, route);
+        if (buffer.size() == 0) {
+            // The buffer was reset since the last item
+            runs = 0;
+        }
+        if (runs == 0 || !runIndices[runs - 1].equals(route.getIndexName())) {
+            startRun(route.getIndexName());
+        }
+        return route.getActionLine();
+    }
+
+    private void startRun(final String indexName) {
+        if (runs == runStarts.length) {
+            runIndices = Arrays.copyOf(runIndices, runs << 1);
+            runStarts = Arrays.copyOf(runStarts, runs << 1);
+            runItems = Arrays.copyOf(runItems, runs << 1);
+        }
+        runIndices[runs] = indexName;
+        runStarts[runs] = buffer.size();
+        runItems[runs] = buffer.items();
+        runs++;
+    }
+
+    /**
+     * Passes the runs of consecutive items sharing a destination index to the consumer, in order.
+     */
+    void forEachRun(final RunConsumer consumer) {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < runs; i++) {
+            int end = i + 1 < runs ? runStarts[i + 1] : buffer.size();
+            int endItems = i + 1 < runs ? runItems[i + 1] : buffer.items();
+            if (endItems > runItems[i]) {
+                consumer.accept(runIndices[i], runStarts[i], end, endItems - runItems[i]);
+            }
+        }
+    }
+
+    /**
+     * @return The stripe of the calling thread
+     */
+    static BufferStripe of(final BufferStripe[] stripes) {
+        return stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+    }
+
+    /**
+     * @param stripes The requested number of stripes, {@code 0} or less to use one per processor
+     * @return The number of stripes to use, a power of two between 1 and 64
+     */
+    static int count(final int stripes) {
+        int requested = stripes > 0 ? stripes : Runtime.getRuntime().availableProcessors();
+        int capped = Math.min(Math.max(requested, 1), 64);
+        int count = Integer.highestOneBit(capped);
+        return count < capped ? count << 1 : count;
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer holding a bulk request body in its wire format,
+ * i.e. newline delimited action and document lines. Buffers are reset
+ * and reused between bulks so that steady state logging does not allocate.
+ * <p>
+ * Documents can be written straight into the buffer by a layout, through the
+ * {@link ByteBufferDestination} exposed between {@link #beginItem(byte[])} and
+ * {@link #endItem()}, instead of being encoded into an intermediate array first.
+ */
+class BulkBuffer implements ByteBufferDestination {
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = 8 * 1024 * 1024;
+    private static final byte NEW_LINE = '\n';
+
+    private final int initialCapacity;
+    private byte[] bytes;
+    private int size;
+    private int items;
+    private ByteBuffer view;
+    private int documentStart;
+
+    BulkBuffer() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity The initial size in bytes, also the size the buffer shrinks back to
+     */
+    BulkBuffer(final int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.bytes = new byte[initialCapacity];
+    }
+
+    /**
+     * Appends a bulk item made of a pre-encoded action line (including its
+     * line terminator) and a single line JSON document.
+     */
+    void addItem(final byte[] actionLine, final byte[] document, final int offset, final int length) {
+        int docLength = length;
+        while (docLength > 0 && isLineTerminator(document[offset + docLength - 1])) {
+            docLength--;
+        }
+        ensureCapacity(size + actionLine.length + docLength + 1);
+        System.arraycopy(actionLine, 0, bytes, size, actionLine.length);
+        size += actionLine.length;
+        System.arraycopy(document, offset, bytes, size, docLength);
+        size += docLength;
+        bytes[size++] = NEW_LINE;
+        items++;
+    }
+
+    /**
+     * Appends all the items of another buffer.
+     */
+    void addItems(final BulkBuffer other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.bytes, 0, bytes, size, other.size);
+        size += other.size;
+        items += other.items;
+    }
+
+    /**
+     * Appends some of the items of another buffer.
+     *
+     * @param from The offset of the first item in the other buffer
+     * @param to The offset after the last item in the other buffer
+     * @param count The number of items between the two offsets
+     */
+    void addItems(final BulkBuffer other, final int from, final int to, final int count) {
+        ensureCapacity(size + to - from);
+        System.arraycopy(other.bytes, from, bytes, size, to - from);
+        size += to - from;
+        items += count;
+    }
+
+    /**
+     * Starts a bulk item made of a pre-encoded action line (including its line
+     * terminator) and a single line JSON document, to be written through
+     * {@link #getByteBuffer()}. The item is only added once {@link #endItem()}
+     * is called, an item that is never ended is discarded by the next one.
+     */
+    void beginItem(final byte[] actionLine) {
+        ensureCapacity(size + actionLine.length + 1);
+        System.arraycopy(actionLine, 0, bytes, size, actionLine.length);
+        documentStart = size + actionLine.length;
+        view().limit(bytes.length).position(documentStart);
+    }
+
+    /**
+     * Completes the item started by {@link #beginItem(byte[])} with the document
+     * written so far.
+     */
+    void endItem() {
+        int end = view.position();
+        while (end > documentStart && isLineTerminator(bytes[end - 1])) {
+            end--;
+        }
+        ensureCapacity(end + 1);
+        size = end;
+        bytes[size++] = NEW_LINE;
+        items++;
+    }
+
+    /**
+     * Adds fields, given as comma separated {@code "name":value} pairs, to the end of the document
+     * of the last item.
+     *
+     * @return False if the document is not a JSON object, in which case it is left as is
+     */
+    boolean appendFields(final byte[] fields) {
+        // The closing brace of the document, before the line terminator
+        int end = size - 2;
+        if (items == 0 || end < 1 || bytes[end] != '}') {
+            return false;
+        }
+        boolean emptyObject = bytes[end - 1] == '{';
+        ensureCapacity(size + fields.length + 1);
+        size = end;
+        if (!emptyObject) {
+            bytes[size++] = ',';
+        }
+        System.arraycopy(fields, 0, bytes, size, fields.length);
+        size += fields.length;
+        bytes[size++] = '}';
+        bytes[size++] = NEW_LINE;
+        return true;
+    }
+
+    /**
+     * @return A view over the free space of the buffer, positioned after the
+     * document being written. Only valid while an item is being written.
+     */
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return view;
+    }
+
+    /**
+     * Nothing is drained: the buffer grows so that the whole document stays in the bulk.
+     */
+    @Override
+    public ByteBuffer drain(final ByteBuffer buf) {
+        int position = buf.position();
+        ensureCapacity(bytes.length + 1);
+        view().limit(bytes.length).position(position);
+        return view;
+    }
+
+    /**
+     * @return The view over the current backing array
+     */
+    private ByteBuffer view() {
+        if (view == null || view.array() != bytes) {
+            view = ByteBuffer.wrap(bytes);
+        }
+        return view;
+    }
+
+    private static boolean isLineTerminator(final byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length << 1));
+        }
+    }
+
+    /**
+     * @return The backing array, valid from {@code 0} to {@link #size()}
+     */
+    byte[] array() {
+        return bytes;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int items() {
+        return items;
+    }
+
+    boolean isEmpty() {
+        return items == 0;
+    }
+
+    /**
+     * Empties the buffer for reuse, releasing the memory held by an unusually large bulk.
+     */
+    void reset() {
+        size = 0;
+        items = 0;
+        if (bytes.length > MAX_RETAINED_CAPACITY) {
+            bytes = new byte[initialCapacity];
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites the bulk bodies whose items all share the same destination into their compact form:
+ * the action lines are reduced to {@code {"index":{}}} (or {@code {"create":{}}}) and the index
+ * and type move to the {@code {index}/{type}/_bulk} endpoint, so that neither the wire nor
+ * ElasticSearch deal with the same metadata over and over.
+ * <p>
+ * The compact body is written into a reusable output buffer. The items keep their order, so the
+ * positions of the items of the response still match the original body. Instances are not thread safe.
+ */
+final class BulkCompactor {
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+    private static final Pattern ACTION_LINE = Pattern.compile(
+            "\\{\"(index|create)\":\\{\"_index\":\"([^\"\\\\/]+)\",\"_type\":\"([^\"\\\\/]+)\"}}");
+    private static final byte NEW_LINE = '\n';
+
+    private byte[] output = new byte[INITIAL_CAPACITY];
+    private int size;
+    private String endpoint;
+
+    /**
+     * Compacts the given body, replacing the previous output.
+     *
+     * @return False if the items of the body do not all share the same action line,
+     * in which case the body is to be sent as is
+     */
+    boolean compact(final byte[] body, final int offset, final int length) {
+        int end = offset + length;
+        int firstEnd = lineEnd(body, offset, end);
+        Matcher first = ACTION_LINE.matcher(new String(body, offset, firstEnd - offset, StandardCharsets.UTF_8));
+        if (!first.matches()) {
+            return false;
+        }
+        byte[] compactAction = ("{\"" + first.group(1) + "\":{}}\n").getBytes(StandardCharsets.UTF_8);
+        if (output.length > MAX_RETAINED_CAPACITY) {
+            output = new byte[INITIAL_CAPACITY];
+        }
+        if (output.length < length) {
+            output = Arrays.copyOf(output, length);
+        }
+        size = 0;
+        int actionLength = firstEnd - offset;
+        int position = offset;
+        while (position < end) {
+            int actionEnd = lineEnd(body, position, end);
+            if (actionEnd - position != actionLength || !sameBytes(body, offset, position, actionLength)) {
+                return false;
+            }
+            int documentStart = Math.min(actionEnd + 1, end);
+            int documentEnd = Math.min(lineEnd(body, documentStart, end) + 1, end);
+            System.arraycopy(compactAction, 0, output, size, compactAction.length);
+            size += compactAction.length;
+            System.arraycopy(body, documentStart, output, size, documentEnd - documentStart);
+            size += documentEnd - documentStart;
+            position = documentEnd;
+        }
+        endpoint = first.group(2) + "/" + first.group(3) + "/_bulk";
+        return true;
+    }
+
+    /**
+     * @return The offset of the next line terminator, or {@code end} when there is none
+     */
+    private static int lineEnd(final byte[] body, final int from, final int end) {
+        for (int i = from; i < end; i++) {
+            if (body[i] == NEW_LINE) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean sameBytes(final byte[] body, final int first, final int other, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (body[first + i] != body[other + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The backing array of the last compact body, valid from {@code 0} to {@link #size()}
+     */
+    byte[] array() {
+        return output;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The endpoint the last compact body is to be sent to
+     */
+    String endpoint() {
+        return endpoint;
+    }
+
+}
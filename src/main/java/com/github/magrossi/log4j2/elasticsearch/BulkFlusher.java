@@ -0,0 +1,176 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Background worker that sends the batches handed over by the appender.
+ * The appender swaps a filled batch for an empty (recycled) one and keeps
+ * buffering while this thread performs the bulk request.
+ * <p>
+ * On shutdown, extra threads can be started so that the batches still pending
+ * are sent concurrently.
+ */
+class BulkFlusher implements Runnable {
+
+    private static final long POLL_INTERVAL_MILLIS = 100L;
+
+    private final BlockingQueue<BulkBuffer> pending = new LinkedBlockingQueue<>();
+    private final BlockingQueue<BulkBuffer> recycled = new LinkedBlockingQueue<>();
+    private final Consumer<BulkBuffer> sender;
+    private final Thread thread;
+    // The flusher thread and the drain threads, only used by the stopping thread
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param name The owning appender name, used to name the flusher thread
+     * @param sender Callback that sends a single batch
+     */
+    BulkFlusher(final String name, final Consumer<BulkBuffer> sender) {
+        this.sender = sender;
+        this.thread = new Thread(this, "ElasticSearchRestAppender-" + name + "-flusher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        this.threads.add(thread);
+    }
+
+    /**
+     * Hands a filled batch over to the flusher thread.
+     */
+    void submit(final BulkBuffer batch) {
+        pending.add(batch);
+    }
+
+    /**
+     * @return An empty batch, reusing one already sent whenever possible
+     */
+    BulkBuffer emptyBatch() {
+        BulkBuffer batch = recycled.poll();
+        return batch != null ? batch : new BulkBuffer();
+    }
+
+    /**
+     * Takes back the oldest batch still waiting to be sent, if any.
+     * The caller is expected to {@link #recycle(BulkBuffer)} it.
+     */
+    BulkBuffer pollOldest() {
+        return pending.poll();
+    }
+
+    void recycle(final BulkBuffer batch) {
+        batch.reset();
+        recycled.offer(batch);
+    }
+
+    @Override
+    public void run() {
+        while (running || !pending.isEmpty()) {
+            try {
+                BulkBuffer batch = pending.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    flush(batch);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sends the batches pending, until there are none left.
+     */
+    private void drain() {
+        BulkBuffer batch;
+        while ((batch = pending.poll()) != null) {
+            flush(batch);
+        }
+    }
+
+    private void flush(final BulkBuffer batch) {
+        try {
+            sender.accept(batch);
+        } finally {
+            recycle(batch);
+        }
+    }
+
+    /**
+     * @return False once the flusher is stopping
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops accepting work and sends the batches already submitted, with up to
+     * {@code parallelism} of them in flight at once. Does not wait for them to be sent,
+     * see {@link #awaitTermination(long)}.
+     */
+    void shutdown(final int parallelism) {
+        running = false;
+        int drainers = Math.min(parallelism, pending.size()) - 1;
+        for (int i = 0; i < drainers; i++) {
+            Thread drainer = new Thread(this::drain, thread.getName() + "-drain-" + i);
+            drainer.setDaemon(true);
+            drainer.start();
+            threads.add(drainer);
+        }
+    }
+
+    /**
+     * Waits for the batches submitted before {@link #shutdown(int)} to be sent. Batches still
+     * pending at the deadline can be taken back with {@link #pollOldest()}.
+     *
+     * @param deadlineNanos The {@link System#nanoTime()} to stop waiting at
+     * @return False if some batches were still pending or being sent at the deadline
+     */
+    boolean awaitTermination(final long deadlineNanos) {
+        return join(threads, deadlineNanos);
+    }
+
+    /**
+     * @return False if some threads were still alive at the deadline
+     */
+    static boolean join(final List<Thread> threads, final long deadlineNanos) {
+        for (Thread thread : threads) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+            if (millis <= 0) {
+                break;
+            }
+            try {
+                thread.join(millis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import java.io.IOException;
+
+/**
+ * Thrown when bulk items are still rejected by ElasticSearch after all the
+ * retries. It holds the rejected items, in the bulk wire format, so that
+ * callers may keep them for later.
+ */
+public class BulkRejectedException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient byte[] items;
+	private final int itemCount;
+
+	BulkRejectedException(String message, byte[] items, int itemCount) {
+		super(message);
+		this.items = items;
+		this.itemCount = itemCount;
+	}
+
+	/**
+	 * @return The action and document lines of the rejected items
+	 */
+	public byte[] getItems() {
+		return items;
+	}
+
+	public int getItemCount() {
+		return itemCount;
+	}
+}
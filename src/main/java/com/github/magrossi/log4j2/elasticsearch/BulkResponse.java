@@ -0,0 +1,358 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The failed items of a {@code _bulk} response.
+ * <p>
+ * Only the {@code errors} flag and the {@code status} and {@code error} of each
+ * item are read, everything else is skipped. When {@code errors} is false and
+ * precedes the items, as ElasticSearch sends it, the items are not parsed at all.
+ */
+final class BulkResponse {
+
+    static final BulkResponse OK = new BulkResponse(Collections.emptyList());
+
+    /**
+     * A bulk item rejected by ElasticSearch.
+     */
+    static final class Failure {
+        private final int item;
+        private final int status;
+        private final String type;
+        private final String reason;
+
+        Failure(final int item, final int status, final String type, final String reason) {
+            this.item = item;
+            this.status = status;
+            this.type = type;
+            this.reason = reason;
+        }
+
+        /**
+         * @return The position of the item in the bulk request
+         */
+        int getItem() {
+            return item;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return True if sending the item again may succeed, e.g. when rejected due to back pressure
+         */
+        boolean isRetriable() {
+            return isRetriable(status);
+        }
+
+        static boolean isRetriable(final int status) {
+            return status == 429 || status == 502 || status == 503 || status == 504;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + status + "] " + type + ": " + reason;
+        }
+    }
+
+    private final List<Failure> failures;
+
+    private BulkResponse(final List<Failure> failures) {
+        this.failures = failures;
+    }
+
+    boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    List<Failure> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @param json The response body
+     * @return The failures found in it
+     * @throws IllegalArgumentException If the body is not valid JSON
+     */
+    static BulkResponse parse(final byte[] json) {
+        return new Parser(json).parseResponse();
+    }
+
+    /**
+     * Minimal JSON pull parser, just enough to walk a bulk response.
+     */
+    private static final class Parser {
+        private final byte[] json;
+        private int pos;
+
+        private Parser(final byte[] json) {
+            this.json = json;
+        }
+
+        private BulkResponse parseResponse() {
+            List<Failure> failures = new ArrayList<>();
+            expect('{');
+            if (!tryConsume('}')) {
+                do {
+                    String key = readString();
+                    expect(':');
+                    if ("errors".equals(key)) {
+                        if (!readBoolean()) {
+                            return OK;
+                        }
+                    } else if ("items".equals(key)) {
+                        readItems(failures);
+                    } else {
+                        skipValue();
+                    }
+                } while (tryConsume(','));
+                expect('}');
+            }
+            return failures.isEmpty() ? OK : new BulkResponse(failures);
+        }
+
+        private void readItems(final List<Failure> failures) {
+            expect('[');
+            if (tryConsume(']')) {
+                return;
+            }
+            int item = 0;
+            do {
+                // { "<action>" : { ..., "status" : 429, "error" : { "type" : ..., "reason" : ... } } }
+                expect('{');
+                readString();
+                expect(':');
+                readItem(item++, failures);
+                expect('}');
+            } while (tryConsume(','));
+            expect(']');
+        }
+
+        private void readItem(final int item, final List<Failure> failures) {
+            int status = 0;
+            String type = null;
+            String reason = null;
+            boolean failed = false;
+            expect('{');
+            if (!tryConsume('}')) {
+                do {
+                    String key = readString();
+                    expect(':');
+                    if ("status".equals(key)) {
+                        status = (int) readLong();
+                    } else if ("error".equals(key)) {
+                        failed = true;
+                        if (peek() == '{') {
+                            String[] error = readError();
+                            type = error[0];
+                            reason = error[1];
+                        } else {
+                            reason = String.valueOf(readScalar());
+                        }
+                    } else {
+                        skipValue();
+                    }
+                } while (tryConsume(','));
+                expect('}');
+            }
+            if (failed || status >= 300) {
+                failures.add(new Failure(item, status, type, reason));
+            }
+        }
+
+        private String[] readError() {
+            String[] error = new String[2];
+            expect('{');
+            if (!tryConsume('}')) {
+                do {
+                    String key = readString();
+                    expect(':');
+                    if ("type".equals(key) && peek() == '"') {
+                        error[0] = readString();
+                    } else if ("reason".equals(key) && peek() == '"') {
+                        error[1] = readString();
+                    } else {
+                        skipValue();
+                    }
+                } while (tryConsume(','));
+                expect('}');
+            }
+            return error;
+        }
+
+        private void skipValue() {
+            char c = peek();
+            if (c == '{' || c == '[') {
+                char close = c == '{' ? '}' : ']';
+                pos++;
+                if (tryConsume(close)) {
+                    return;
+                }
+                do {
+                    if (c == '{') {
+                        readString();
+                        expect(':');
+                    }
+                    skipValue();
+                } while (tryConsume(','));
+                expect(close);
+            } else {
+                readScalar();
+            }
+        }
+
+        private Object readScalar() {
+            char c = peek();
+            if (c == '"') {
+                return readString();
+            } else if (c == 't' || c == 'f') {
+                return readBoolean();
+            } else if (c == 'n') {
+                expectLiteral("null");
+                return null;
+            }
+            int start = pos;
+            while (pos < json.length && "+-0123456789.eE".indexOf(json[pos]) >= 0) {
+                pos++;
+            }
+            if (start == pos) {
+                throw error("value");
+            }
+            return new String(json, start, pos - start, StandardCharsets.US_ASCII);
+        }
+
+        private long readLong() {
+            Object value = readScalar();
+            try {
+                return value instanceof String ? (long) Double.parseDouble((String) value) : 0L;
+            } catch (NumberFormatException ex) {
+                throw error("number");
+            }
+        }
+
+        private boolean readBoolean() {
+            if (peek() == 't') {
+                expectLiteral("true");
+                return true;
+            }
+            expectLiteral("false");
+            return false;
+        }
+
+        private String readString() {
+            expect('"');
+            int start = pos;
+            boolean escaped = false;
+            while (pos < json.length && json[pos] != '"') {
+                if (json[pos] == '\\') {
+                    escaped = true;
+                    pos++;
+                }
+                pos++;
+            }
+            if (pos >= json.length) {
+                throw error("string end");
+            }
+            String value = new String(json, start, pos - start, StandardCharsets.UTF_8);
+            pos++;
+            return escaped ? unescape(value) : value;
+        }
+
+        private static String unescape(final String value) {
+            StringBuilder unescaped = new StringBuilder(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c != '\\' || i + 1 >= value.length()) {
+                    unescaped.append(c);
+                    continue;
+                }
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 'n':
+                        unescaped.append('\n');
+                        break;
+                    case 'r':
+                        unescaped.append('\r');
+                        break;
+                    case 't':
+                        unescaped.append('\t');
+                        break;
+                    case 'b':
+                        unescaped.append('\b');
+                        break;
+                    case 'f':
+                        unescaped.append('\f');
+                        break;
+                    case 'u':
+                        if (i + 4 < value.length()) {
+                            unescaped.append((char) Integer.parseInt(value.substring(i + 1, i + 5), 16));
+                            i += 4;
+                        }
+                        break;
+                    default:
+                        unescaped.append(next);
+                }
+            }
+            return unescaped.toString();
+        }
+
+        private void expectLiteral(final String literal) {
+            skipWhitespace();
+            for (int i = 0; i < literal.length(); i++) {
+                if (pos >= json.length || json[pos++] != literal.charAt(i)) {
+                    throw error(literal);
+                }
+            }
+        }
+
+        private void expect(final char c) {
+            if (!tryConsume(c)) {
+                throw error("'" + c + "'");
+            }
+        }
+
+        private boolean tryConsume(final char c) {
+            if (peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private char peek() {
+            skipWhitespace();
+            return pos < json.length ? (char) json[pos] : 0;
+        }
+
+        private void skipWhitespace() {
+            while (pos < json.length && (json[pos] == ' ' || json[pos] == '\n' || json[pos] == '\r' || json[pos] == '\t')) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(final String expected) {
+            return new IllegalArgumentException("Invalid bulk response, expected " + expected + " at position " + pos);
+        }
+    }
+
+}
@@ -1,7 +1,24 @@
 package com.github.magrossi.log4j2.elasticsearch;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 public interface BulkSender {
 	void send(String body) throws IOException;
+
+	/**
+	 * Sends a UTF-8 encoded bulk body. The array is only valid for the duration
+	 * of the call, as the appender reuses it for the following bulks.
+	 * Defaults to decoding it and delegating to {@link #send(String)}.
+	 */
+	default void send(byte[] body, int offset, int length) throws IOException {
+		send(new String(body, offset, length, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Releases the resources held by the sender once the appender stops. Bulks still being
+	 * sent are let through. Does nothing by default.
+	 */
+	default void close() {
+	}
 }
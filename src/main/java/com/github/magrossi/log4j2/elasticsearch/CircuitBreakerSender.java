@@ -0,0 +1,199 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends bulks through another sender unless ElasticSearch looks unreachable.
+ * <p>
+ * After {@code threshold} consecutive bulks failed because the cluster could not be reached
+ * (connection failures, timeouts, {@code 502}, {@code 503} or {@code 504}), the circuit opens:
+ * bulks fail right away with a {@link CircuitOpenException} instead of waiting for the connect
+ * and socket timeouts. Once {@code delayMillis} have passed a single bulk is let through as a
+ * probe; the circuit closes again if it is delivered, and stays open for another delay otherwise.
+ * Bulks rejected by a cluster that answers, e.g. with {@code 429} or mapping errors, do not count.
+ */
+final class CircuitBreakerSender implements RetryReportingSender {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final BulkSender delegate;
+    private final int threshold;
+    private final long delayNanos;
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    // Only written by the synchronized methods
+    private volatile int consecutiveFailures;
+    private volatile boolean open;
+    private volatile long probeAt;
+
+    /**
+     * @param delegate The sender performing the requests
+     * @param threshold The number of bulks failing in a row that opens the circuit, at least 1
+     * @param delayMillis How long the circuit stays open before a bulk is let through as a probe
+     */
+    CircuitBreakerSender(final BulkSender delegate, final int threshold, final long delayMillis) {
+        this.delegate = delegate;
+        this.threshold = Math.max(1, threshold);
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, delayMillis));
+    }
+
+    BulkSender getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void send(final String body) throws IOException {
+        guard(() -> {
+            delegate.send(body);
+            return 0;
+        });
+    }
+
+    @Override
+    public void send(final byte[] body, final int offset, final int length) throws IOException {
+        guard(() -> {
+            delegate.send(body, offset, length);
+            return 0;
+        });
+    }
+
+    @Override
+    public int sendReportingRetries(final byte[] body, final int offset, final int length) throws IOException {
+        return guard(() -> RetryReportingSender.send(delegate, body, offset, length));
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private interface Request {
+        int perform() throws IOException;
+    }
+
+    private int guard(final Request request) throws IOException {
+        boolean probe = acquire();
+        int retried;
+        try {
+            retried = request.perform();
+        } catch (IOException ex) {
+            failed(ex, probe);
+            throw ex;
+        } catch (RuntimeException ex) {
+            if (probe) {
+                reopen();
+            }
+            throw ex;
+        }
+        succeeded(probe);
+        return retried;
+    }
+
+    /**
+     * @return True if the bulk is let through as the probe of an open circuit
+     * @throws CircuitOpenException If the circuit is open and the bulk is not the probe
+     */
+    private boolean acquire() throws CircuitOpenException {
+        if (!open) {
+            return false;
+        }
+        if (System.nanoTime() - probeAt >= 0 && probing.compareAndSet(false, true)) {
+            return true;
+        }
+        throw new CircuitOpenException("ElasticSearch unreachable after " + threshold
+                + " failed bulks in a row, not sending until a probe request succeeds");
+    }
+
+    private synchronized void succeeded(final boolean probe) {
+        consecutiveFailures = 0;
+        if (probe) {
+            open = false;
+            probing.set(false);
+            LOGGER.info("ElasticSearch reachable again, closing the circuit.");
+        }
+    }
+
+    private synchronized void failed(final IOException failure, final boolean probe) {
+        if (!isUnreachable(failure)) {
+            // The cluster answered
+            succeeded(probe);
+            return;
+        }
+        consecutiveFailures++;
+        if (probe) {
+            reopen();
+            LOGGER.debug("Probe request to ElasticSearch failed, keeping the circuit open.", failure);
+        } else if (!open && consecutiveFailures >= threshold) {
+            probeAt = System.nanoTime() + delayNanos;
+            open = true;
+            LOGGER.warn("ElasticSearch unreachable after {} failed bulks in a row, opening the circuit for {} ms: {}",
+                    consecutiveFailures, TimeUnit.NANOSECONDS.toMillis(delayNanos), failure.toString());
+        }
+    }
+
+    private synchronized void reopen() {
+        probeAt = System.nanoTime() + delayNanos;
+        probing.set(false);
+    }
+
+    /**
+     * @return True if the failure shows that the cluster could not be reached, rather than a rejection
+     */
+    static boolean isUnreachable(final Throwable failure) {
+        if (failure instanceof CircuitOpenException) {
+            return false;
+        }
+        if (failure instanceof BulkRejectedException) {
+            // Some items made it, the rest is only unreachable if resending them failed to connect
+            return failure.getCause() != null && isUnreachable(failure.getCause());
+        }
+        int status = ElasticBulkSender.statusOf(failure);
+        if (status > 0) {
+            return status == 502 || status == 503 || status == 504;
+        }
+        return failure instanceof IOException;
+    }
+
+    State getState() {
+        if (!open) {
+            return State.CLOSED;
+        }
+        return probing.get() || System.nanoTime() - probeAt >= 0 ? State.HALF_OPEN : State.OPEN;
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return How long in millis before the next probe may be sent, 0 or less if it may be sent already
+     */
+    long millisUntilProbe() {
+        return open ? TimeUnit.NANOSECONDS.toMillis(probeAt - System.nanoTime()) : 0L;
+    }
+
+}
@@ -1,32 +1,491 @@
 package com.github.magrossi.log4j2.elasticsearch;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.entity.ContentType;
-import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
 import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
 import org.elasticsearch.client.RestClient;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 
-public class ElasticBulkSender implements BulkSender {
+/**
+ * Sends bulks with the ElasticSearch REST client.
+ * <p>
+ * Bulk responses are checked item by item: items rejected for a transient reason
+ * (e.g. {@code 429} when the cluster is under pressure) are sent again on their own,
+ * with exponential backoff and jitter, up to {@code maxRetries} times. Items rejected
+ * for good (e.g. mapping errors) are reported and not retried.
+ * <p>
+ * Responses are filtered down to the {@code errors} flag and the status and error of each item,
+ * the only parts that are read. Bodies whose items all go to the same index can be sent in their
+ * compact form, see {@link BulkCompactor}.
+ */
+public class ElasticBulkSender implements RetryReportingSender {
+
+	private static final Logger LOGGER = StatusLogger.getLogger();
 
 	private static final String ES_BULK_METHOD = "POST";
 	private static final String ES_BULK_ENDPOINT = "_bulk";
+	private static final String GZIP_ENCODING = "gzip";
+	private static final String FILTER_PATH = "errors,items.*.status,items.*.error.type,items.*.error.reason";
+	private static final long MAX_BACKOFF_MILLIS = 30000L;
+
+	static class Builder implements org.apache.logging.log4j.core.util.Builder<ElasticBulkSender> {
+
+		private RestClient restClient;
+		private Integer compressionLevel;
+		private int maxRetries = 3;
+		private long retryBackoff = 100L;
+		private long maxBackoff = MAX_BACKOFF_MILLIS;
+		private boolean compactBulks;
+		private String pipeline;
+
+		Builder withRestClient(final RestClient restClient) {
+			this.restClient = restClient;
+			return this;
+		}
+
+		/**
+		 * @param compressionLevel The gzip compression level of the bulk bodies, or null to send them uncompressed
+		 */
+		Builder withCompressionLevel(final Integer compressionLevel) {
+			this.compressionLevel = compressionLevel;
+			return this;
+		}
+
+		/**
+		 * @param maxRetries How many times rejected items are sent again, 0 disables retries
+		 */
+		Builder withMaxRetries(final int maxRetries) {
+			this.maxRetries = maxRetries;
+			return this;
+		}
+
+		/**
+		 * @param retryBackoff The base delay in millis before the first retry, doubled on each subsequent one
+		 */
+		Builder withRetryBackoff(final long retryBackoff) {
+			this.retryBackoff = retryBackoff;
+			return this;
+		}
+
+		/**
+		 * @param maxBackoff The longest delay in millis before a retry, whatever the attempt
+		 */
+		Builder withMaxBackoff(final long maxBackoff) {
+			this.maxBackoff = maxBackoff;
+			return this;
+		}
+
+		/**
+		 * @param compactBulks True to send the bodies whose items all go to the same index to the
+		 * {@code {index}/{type}/_bulk} endpoint, with empty action lines
+		 */
+		Builder withCompactBulks(final boolean compactBulks) {
+			this.compactBulks = compactBulks;
+			return this;
+		}
+
+		/**
+		 * @param pipeline The ingest pipeline the documents go through, or null for none
+		 */
+		Builder withPipeline(final String pipeline) {
+			this.pipeline = pipeline;
+			return this;
+		}
+
+		@Override
+		public ElasticBulkSender build() {
+			return new ElasticBulkSender(this);
+		}
+	}
+
+	static Builder newBuilder() {
+		return new Builder();
+	}
 
 	private final RestClient restClient;
+	private final Integer compressionLevel;
+	private final int maxRetries;
+	private final long retryBackoff;
+	private final long maxBackoff;
+	private final boolean compactBulks;
+	private final Map<String, String> params;
+	private final Queue<GzipCompressor> compressors = new ConcurrentLinkedQueue<>();
+	private final Queue<BulkCompactor> compactors = new ConcurrentLinkedQueue<>();
+	private final LongAdder itemsRetried = new LongAdder();
+	private final LongAdder itemsRejected = new LongAdder();
+	private volatile boolean closed;
 
 	ElasticBulkSender(RestClient restClient) {
-		this.restClient = restClient;
+		this(newBuilder().withRestClient(restClient));
+	}
+
+	private ElasticBulkSender(Builder builder) {
+		this.restClient = builder.restClient;
+		this.compressionLevel = builder.compressionLevel;
+		this.maxRetries = Math.max(0, builder.maxRetries);
+		this.retryBackoff = Math.max(0L, builder.retryBackoff);
+		this.maxBackoff = Math.max(0L, builder.maxBackoff);
+		this.compactBulks = builder.compactBulks;
+		Map<String, String> params = new HashMap<>();
+		params.put("filter_path", FILTER_PATH);
+		if (builder.pipeline != null && !builder.pipeline.isEmpty()) {
+			params.put("pipeline", builder.pipeline);
+		}
+		this.params = Collections.unmodifiableMap(params);
 	}
 
 	@Override
 	public void send(String body) throws IOException {
-		HttpEntity entity = new NStringEntity(body, ContentType.APPLICATION_JSON);
-		Response response = this.restClient.performRequest(ES_BULK_METHOD, ES_BULK_ENDPOINT, Collections.emptyMap(), entity);
-		if (response.getStatusLine().getStatusCode() >= 300) {
-			throw new HttpResponseException(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase());
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		send(bytes, 0, bytes.length);
+	}
+
+	@Override
+	public void send(byte[] body, int offset, int length) throws IOException {
+		sendReportingRetries(body, offset, length);
+	}
+
+	@Override
+	public int sendReportingRetries(byte[] body, int offset, int length) throws IOException {
+		byte[] items = body;
+		int itemsOffset = offset;
+		int itemsLength = length;
+		int retried = 0;
+		for (int attempt = 0; ; attempt++) {
+			BulkResponse response;
+			try {
+				response = perform(items, itemsOffset, itemsLength);
+			} catch (HttpResponseException | ResponseException ex) {
+				int status = statusOf(ex);
+				if (status == HttpStatus.SC_REQUEST_TOO_LONG) {
+					return retried + sendHalves(items, itemsOffset, itemsLength, ex, items != body);
+				}
+				if (!BulkResponse.Failure.isRetriable(status)) {
+					throw ex;
+				}
+				if (attempt >= maxRetries) {
+					throw undelivered(ex, items, itemsOffset, itemsLength, items != body);
+				}
+				backOff(attempt);
+				int count = itemCount(items, itemsOffset, itemsLength);
+				itemsRetried.add(count);
+				retried += count;
+				continue;
+			} catch (IOException ex) {
+				throw undelivered(ex, items, itemsOffset, itemsLength, items != body);
+			}
+
+			List<BulkResponse.Failure> retriable = retriableFailures(response);
+			if (retriable.isEmpty()) {
+				return retried;
+			}
+			items = selectItems(items, itemsOffset, itemsLength, retriable);
+			itemsOffset = 0;
+			itemsLength = items.length;
+			if (attempt >= maxRetries) {
+				throw new BulkRejectedException(retriable.size() + " bulk items still rejected after " + maxRetries
+						+ " retries, last failure " + retriable.get(retriable.size() - 1), items, retriable.size());
+			}
+			backOff(attempt);
+			itemsRetried.add(retriable.size());
+			retried += retriable.size();
+		}
+	}
+
+	/**
+	 * @param resent True if the items are the ones left over from a previous attempt, the others being indexed
+	 * @return The failure as is, or a {@link BulkRejectedException} holding only the items left over,
+	 * so that callers do not keep the items already indexed for later
+	 */
+	private static IOException undelivered(IOException failure, byte[] items, int offset, int length, boolean resent) {
+		if (!resent) {
+			return failure;
+		}
+		int count = itemCount(items, offset, length);
+		byte[] leftOver = offset == 0 && length == items.length ? items : Arrays.copyOfRange(items, offset, offset + length);
+		BulkRejectedException undelivered = new BulkRejectedException(count + " bulk items could not be sent again: "
+				+ failure, leftOver, count);
+		undelivered.initCause(failure);
+		return undelivered;
+	}
+
+	/**
+	 * Reports the items rejected for good and returns the ones worth sending again.
+	 */
+	private List<BulkResponse.Failure> retriableFailures(BulkResponse response) {
+		if (!response.hasFailures()) {
+			return Collections.emptyList();
+		}
+		List<BulkResponse.Failure> retriable = new ArrayList<>();
+		BulkResponse.Failure permanent = null;
+		int permanentCount = 0;
+		for (BulkResponse.Failure failure : response.getFailures()) {
+			if (failure.isRetriable()) {
+				retriable.add(failure);
+			} else {
+				permanent = failure;
+				permanentCount++;
+				LOGGER.debug("Bulk item {} rejected by ElasticSearch {}", failure.getItem(), failure);
+			}
+		}
+		if (permanentCount > 0) {
+			itemsRejected.add(permanentCount);
+			LOGGER.error("{} bulk items rejected by ElasticSearch and dropped, last failure {}", permanentCount, permanent);
+		}
+		return retriable;
+	}
+
+	/**
+	 * @return A new body holding only the given items, each made of an action and a document line
+	 */
+	static byte[] selectItems(byte[] body, int offset, int length, List<BulkResponse.Failure> failures) {
+		List<Integer> lineStarts = new ArrayList<>();
+		lineStarts.add(offset);
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			if (body[i] == '\n') {
+				lineStarts.add(i + 1);
+			}
+		}
+		int size = 0;
+		for (BulkResponse.Failure failure : failures) {
+			size += itemEnd(lineStarts, failure.getItem(), end) - lineStarts.get(failure.getItem() * 2);
+		}
+		byte[] selected = new byte[size];
+		int position = 0;
+		for (BulkResponse.Failure failure : failures) {
+			int start = lineStarts.get(failure.getItem() * 2);
+			int itemLength = itemEnd(lineStarts, failure.getItem(), end) - start;
+			System.arraycopy(body, start, selected, position, itemLength);
+			position += itemLength;
+		}
+		return selected;
+	}
+
+	private static int itemEnd(List<Integer> lineStarts, int item, int end) {
+		int next = item * 2 + 2;
+		return next < lineStarts.size() ? lineStarts.get(next) : end;
+	}
+
+	private void backOff(int attempt) throws InterruptedIOException {
+		int shift = Math.min(attempt, 20);
+		// Compared before shifting, so that a long base delay cannot overflow
+		long ceiling = retryBackoff > maxBackoff >> shift ? maxBackoff : retryBackoff << shift;
+		// "Equal jitter", keeps at least half of the delay while spreading the retries of several senders
+		long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry bulk items");
+		}
+	}
+
+	/**
+	 * Splits a bulk rejected with {@code 413 Request Entity Too Large} in two halves
+	 * and sends each of them, splitting further as needed.
+	 * Any other failure, or a bulk holding a single item, is rethrown. Once some items
+	 * are indexed, the failure is a {@link BulkRejectedException} holding only the others.
+	 *
+	 * @param resent True if the items are the ones left over from a previous attempt, the others being indexed
+	 * @return The number of items of both halves that were sent again
+	 */
+	private int sendHalves(byte[] body, int offset, int length, IOException failure, boolean resent) throws IOException {
+		int split = splitPoint(body, offset, length);
+		if (split < 0) {
+			throw undelivered(failure, body, offset, length, resent);
+		}
+		int secondLength = offset + length - split;
+		int retried;
+		try {
+			retried = sendReportingRetries(body, offset, split - offset);
+		} catch (BulkRejectedException ex) {
+			// Part of the first half is indexed, the second half was not sent at all
+			throw withItems(ex, body, split, secondLength);
+		} catch (IOException ex) {
+			throw undelivered(ex, body, offset, length, resent);
+		}
+		try {
+			return retried + sendReportingRetries(body, split, secondLength);
+		} catch (BulkRejectedException ex) {
+			throw ex;
+		} catch (IOException ex) {
+			// The first half is indexed, sending it again would duplicate its documents
+			throw undelivered(ex, body, split, secondLength, true);
+		}
+	}
+
+	/**
+	 * @return A {@link BulkRejectedException} holding the rejected items followed by the given ones
+	 */
+	private static BulkRejectedException withItems(BulkRejectedException rejection, byte[] body, int offset, int length) {
+		byte[] rejected = rejection.getItems();
+		byte[] items = Arrays.copyOf(rejected, rejected.length + length);
+		System.arraycopy(body, offset, items, rejected.length, length);
+		int count = rejection.getItemCount() + itemCount(body, offset, length);
+		BulkRejectedException undelivered = new BulkRejectedException(count + " bulk items could not be sent: "
+				+ rejection.getMessage(), items, count);
+		undelivered.initCause(rejection);
+		return undelivered;
+	}
+
+	/**
+	 * @return The HTTP status of a failed request, -1 if it did not get a response
+	 */
+	static int statusOf(Throwable failure) {
+		if (failure instanceof ResponseException) {
+			return ((ResponseException) failure).getResponse().getStatusLine().getStatusCode();
+		} else if (failure instanceof HttpResponseException) {
+			return ((HttpResponseException) failure).getStatusCode();
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The offset of the bulk item closest to the middle of the body, or -1
+	 * when it holds a single item. Items are made of an action and a document line.
+	 */
+	static int splitPoint(byte[] body, int offset, int length) {
+		int end = offset + length;
+		int items = itemCount(body, offset, length);
+		if (items < 2) {
+			return -1;
+		}
+		int targetLines = (items / 2) * 2;
+		for (int i = offset; i < end; i++) {
+			if (body[i] == '\n' && --targetLines == 0) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The number of items of a bulk body, made of an action and a document line each
+	 */
+	private static int itemCount(byte[] body, int offset, int length) {
+		int end = offset + length;
+		int lines = 0;
+		for (int i = offset; i < end; i++) {
+			if (body[i] == '\n') {
+				lines++;
+			}
+		}
+		return lines / 2;
+	}
+
+	/**
+	 * @return The number of items sent again after being rejected for a transient reason
+	 */
+	long getItemsRetried() {
+		return itemsRetried.sum();
+	}
+
+	/**
+	 * @return The number of items rejected for good by ElasticSearch
+	 */
+	long getItemsRejected() {
+		return itemsRejected.sum();
+	}
+
+	private BulkResponse perform(byte[] body, int offset, int length) throws IOException {
+		if (!compactBulks) {
+			return perform(ES_BULK_ENDPOINT, body, offset, length);
+		}
+		// Compactors are pooled, like compressors, so concurrent sends do not share one
+		BulkCompactor compactor = compactors.poll();
+		if (compactor == null) {
+			compactor = new BulkCompactor();
+		}
+		try {
+			if (compactor.compact(body, offset, length)) {
+				return perform(compactor.endpoint(), compactor.array(), 0, compactor.size());
+			}
+			return perform(ES_BULK_ENDPOINT, body, offset, length);
+		} finally {
+			compactors.offer(compactor);
+		}
+	}
+
+	private BulkResponse perform(String endpoint, byte[] body, int offset, int length) throws IOException {
+		if (compressionLevel != null) {
+			return performCompressed(endpoint, body, offset, length);
+		} else {
+			// Wraps the array as is, no copy is made
+			return perform(endpoint, new NByteArrayEntity(body, offset, length, ContentType.APPLICATION_JSON));
+		}
+	}
+
+	private BulkResponse performCompressed(String endpoint, byte[] body, int offset, int length) throws IOException {
+		// Compressors (and their deflaters) are pooled so concurrent sends do not share one
+		GzipCompressor compressor = compressors.poll();
+		if (compressor == null) {
+			compressor = new GzipCompressor(compressionLevel);
+		}
+		try {
+			compressor.compress(body, offset, length);
+			NByteArrayEntity entity = new NByteArrayEntity(compressor.array(), 0, compressor.size(), ContentType.APPLICATION_JSON);
+			entity.setContentEncoding(GZIP_ENCODING);
+			return perform(endpoint, entity);
+		} finally {
+			compressors.offer(compressor);
+			if (closed) {
+				closeCompressors();
+			}
+		}
+	}
+
+	/**
+	 * Ends the deflaters of the pooled compressors. Those in use are ended once their bulk is sent.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		closeCompressors();
+	}
+
+	private void closeCompressors() {
+		GzipCompressor compressor;
+		while ((compressor = compressors.poll()) != null) {
+			compressor.close();
+		}
+	}
+
+	private BulkResponse perform(String endpoint, HttpEntity entity) throws IOException {
+		Response response = this.restClient.performRequest(ES_BULK_METHOD, endpoint, params, entity);
+		int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode >= 300) {
+			throw new HttpResponseException(statusCode, response.getStatusLine().getReasonPhrase());
+		}
+		HttpEntity responseEntity = response.getEntity();
+		if (responseEntity == null) {
+			return BulkResponse.OK;
+		}
+		try {
+			return BulkResponse.parse(EntityUtils.toByteArray(responseEntity));
+		} catch (IllegalArgumentException ex) {
+			// Which items were indexed is unknown, keep them all for later rather than count them as delivered
+			throw new IOException("Could not read the bulk response", ex);
 		}
 	}
 
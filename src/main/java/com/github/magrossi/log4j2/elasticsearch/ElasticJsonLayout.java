@@ -0,0 +1,351 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Layout writing compact, ElasticSearch ready JSON documents with ECS style field names:
+ * <pre>
+ * {"@timestamp":"2017-01-01T12:00:00.000Z","log.level":"INFO","message":"...","log.logger":"...",
+ *  "process.thread.name":"...","labels":{...},"error.type":"...","error.message":"...","error.stack_trace":"..."}
+ * </pre>
+ * The logger, thread, context map and stack trace fields can be turned off, and the message
+ * and stack trace are truncated to a maximum number of characters.
+ * <p>
+ * Documents are written field by field into a reused {@link StringBuilder} and encoded to UTF-8
+ * without reflection nor intermediate tree, so that, unlike {@code JsonLayout}, events without
+ * a throwable are encoded without allocating once the thread local buffers are warmed up.
+ */
+@Plugin(name = "ElasticJsonLayout", category = Node.CATEGORY, elementType = Layout.ELEMENT_TYPE, printObject = true)
+public final class ElasticJsonLayout extends AbstractStringLayout {
+
+    private static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+    private static final String TRUNCATED = "...";
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<StringBuilder> SCRATCH = new ThreadLocal<>();
+    private static final TriConsumer<String, Object, StringBuilder> LABEL_WRITER = (key, value, out) -> {
+        if (out.charAt(out.length() - 1) != '{') {
+            out.append(',');
+        }
+        out.append('"');
+        appendEscaped(out, key, 0);
+        out.append("\":\"");
+        appendEscaped(out, value instanceof CharSequence ? (CharSequence) value : String.valueOf(value), 0);
+        out.append('"');
+    };
+
+    public static class Builder implements org.apache.logging.log4j.core.util.Builder<ElasticJsonLayout> {
+
+        @PluginBuilderAttribute
+        private boolean includeLogger = true;
+
+        @PluginBuilderAttribute
+        private boolean includeThread = true;
+
+        @PluginBuilderAttribute
+        private boolean includeContext = true;
+
+        @PluginBuilderAttribute
+        private boolean includeStacktrace = true;
+
+        @PluginBuilderAttribute
+        private int maxMessageLength = 32 * 1024;
+
+        @PluginBuilderAttribute
+        private int maxStackTraceLength = 32 * 1024;
+
+        public Builder withIncludeLogger(final boolean includeLogger) {
+            this.includeLogger = includeLogger;
+            return this;
+        }
+
+        public Builder withIncludeThread(final boolean includeThread) {
+            this.includeThread = includeThread;
+            return this;
+        }
+
+        public Builder withIncludeContext(final boolean includeContext) {
+            this.includeContext = includeContext;
+            return this;
+        }
+
+        public Builder withIncludeStacktrace(final boolean includeStacktrace) {
+            this.includeStacktrace = includeStacktrace;
+            return this;
+        }
+
+        /**
+         * @param maxMessageLength The maximum number of characters of the message, {@code 0} for no limit
+         */
+        public Builder withMaxMessageLength(final int maxMessageLength) {
+            this.maxMessageLength = maxMessageLength;
+            return this;
+        }
+
+        /**
+         * @param maxStackTraceLength The maximum number of characters of the stack trace, {@code 0} for no limit
+         */
+        public Builder withMaxStackTraceLength(final int maxStackTraceLength) {
+            this.maxStackTraceLength = maxStackTraceLength;
+            return this;
+        }
+
+        @Override
+        public ElasticJsonLayout build() {
+            return new ElasticJsonLayout(this);
+        }
+    }
+
+    @PluginBuilderFactory
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * The formatted date of the day being logged, e.g. {@code 2017-01-01T}.
+     */
+    private static final class Day {
+        private final long start;
+        private final String prefix;
+
+        private Day(final long start, final String prefix) {
+            this.start = start;
+            this.prefix = prefix;
+        }
+    }
+
+    private final boolean includeLogger;
+    private final boolean includeThread;
+    private final boolean includeContext;
+    private final boolean includeStacktrace;
+    private final int maxMessageLength;
+    private final int maxStackTraceLength;
+    private volatile Day day;
+
+    private ElasticJsonLayout(final Builder builder) {
+        super(StandardCharsets.UTF_8);
+        this.includeLogger = builder.includeLogger;
+        this.includeThread = builder.includeThread;
+        this.includeContext = builder.includeContext;
+        this.includeStacktrace = builder.includeStacktrace;
+        this.maxMessageLength = Math.max(0, builder.maxMessageLength);
+        this.maxStackTraceLength = Math.max(0, builder.maxStackTraceLength);
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public String toSerializable(final LogEvent event) {
+        return format(event).toString();
+    }
+
+    @Override
+    public void encode(final LogEvent event, final ByteBufferDestination destination) {
+        getStringBuilderEncoder().encode(format(event), destination);
+    }
+
+    private StringBuilder format(final LogEvent event) {
+        StringBuilder out = getStringBuilder();
+        out.append("{\"@timestamp\":\"");
+        appendTimestamp(out, event.getTimeMillis());
+        out.append("\",\"log.level\":\"");
+        appendEscaped(out, event.getLevel().name(), 0);
+        out.append("\",\"message\":\"");
+        appendMessage(out, event.getMessage());
+        out.append('"');
+        if (includeLogger && event.getLoggerName() != null) {
+            out.append(",\"log.logger\":\"");
+            appendEscaped(out, event.getLoggerName(), 0);
+            out.append('"');
+        }
+        if (includeThread && event.getThreadName() != null) {
+            out.append(",\"process.thread.name\":\"");
+            appendEscaped(out, event.getThreadName(), 0);
+            out.append('"');
+        }
+        if (includeContext && event.getContextData() != null && !event.getContextData().isEmpty()) {
+            out.append(",\"labels\":{");
+            event.getContextData().forEach(LABEL_WRITER, out);
+            out.append('}');
+        }
+        Throwable thrown = event.getThrown();
+        if (thrown != null) {
+            appendError(out, thrown);
+        }
+        out.append('}');
+        return out;
+    }
+
+    /**
+     * Appends the time in the ISO 8601 format, in UTC and with milliseconds.
+     */
+    private void appendTimestamp(final StringBuilder out, final long timeMillis) {
+        Day current = day;
+        if (current == null || timeMillis < current.start || timeMillis >= current.start + MILLIS_PER_DAY) {
+            long epochDay = Math.floorDiv(timeMillis, MILLIS_PER_DAY);
+            current = new Day(epochDay * MILLIS_PER_DAY, LocalDate.ofEpochDay(epochDay).toString() + 'T');
+            day = current;
+        }
+        int time = (int) (timeMillis - current.start);
+        out.append(current.prefix);
+        appendDigits(out, time / 3600000, 2);
+        out.append(':');
+        appendDigits(out, time / 60000 % 60, 2);
+        out.append(':');
+        appendDigits(out, time / 1000 % 60, 2);
+        out.append('.');
+        appendDigits(out, time % 1000, 3);
+        out.append('Z');
+    }
+
+    private static void appendDigits(final StringBuilder out, final int value, final int digits) {
+        for (int divisor = digits == 3 ? 100 : 10; divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + value / divisor % 10));
+        }
+    }
+
+    private void appendMessage(final StringBuilder out, final Message message) {
+        if (message == null) {
+            return;
+        }
+        StringBuilder text = scratch();
+        if (message instanceof StringBuilderFormattable) {
+            ((StringBuilderFormattable) message).formatTo(text);
+        } else {
+            text.append(message.getFormattedMessage());
+        }
+        appendEscaped(out, text, maxMessageLength);
+    }
+
+    private void appendError(final StringBuilder out, final Throwable thrown) {
+        out.append(",\"error.type\":\"");
+        appendEscaped(out, thrown.getClass().getName(), 0);
+        out.append('"');
+        String message = thrown.getMessage();
+        if (message != null) {
+            out.append(",\"error.message\":\"");
+            appendEscaped(out, message, maxMessageLength);
+            out.append('"');
+        }
+        if (includeStacktrace) {
+            StringBuilder stackTrace = scratch();
+            appendStackTrace(stackTrace, thrown, maxStackTraceLength);
+            out.append(",\"error.stack_trace\":\"");
+            appendEscaped(out, stackTrace, maxStackTraceLength);
+            out.append('"');
+        }
+    }
+
+    /**
+     * Writes the stack trace in the format of {@link Throwable#printStackTrace()}, causes
+     * included, stopping as soon as {@code maxLength} characters are written.
+     */
+    private static void appendStackTrace(final StringBuilder out, final Throwable thrown, final int maxLength) {
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Throwable current = thrown;
+        while (current != null && seen.add(current)) {
+            if (current != thrown) {
+                out.append("Caused by: ");
+            }
+            out.append(current).append('\n');
+            for (StackTraceElement element : current.getStackTrace()) {
+                if (maxLength > 0 && out.length() > maxLength) {
+                    return;
+                }
+                out.append("\tat ").append(element).append('\n');
+            }
+            current = current.getCause();
+        }
+    }
+
+    /**
+     * @return The calling thread's scratch buffer, emptied
+     */
+    private static StringBuilder scratch() {
+        StringBuilder scratch = SCRATCH.get();
+        if (scratch == null) {
+            scratch = new StringBuilder(DEFAULT_STRING_BUILDER_SIZE);
+            SCRATCH.set(scratch);
+        }
+        trimToMaxSize(scratch);
+        scratch.setLength(0);
+        return scratch;
+    }
+
+    /**
+     * Appends the text escaped as the content of a JSON string.
+     *
+     * @param maxLength The maximum number of characters of the text to append, {@code 0} for no limit
+     */
+    private static void appendEscaped(final StringBuilder out, final CharSequence text, final int maxLength) {
+        int length = text.length();
+        boolean truncated = maxLength > 0 && length > maxLength;
+        if (truncated) {
+            length = Character.isHighSurrogate(text.charAt(maxLength - 1)) ? maxLength - 1 : maxLength;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xf]);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        if (truncated) {
+            out.append(TRUNCATED);
+        }
+    }
+
+}
@@ -19,7 +19,11 @@ import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
@@ -30,20 +34,38 @@ import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
 import org.apache.logging.log4j.core.layout.JsonLayout;
 import org.apache.logging.log4j.util.Strings;
+import org.elasticsearch.client.ResponseException;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.security.InvalidParameterException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
 import static org.apache.logging.log4j.core.Appender.ELEMENT_TYPE;
 import static org.apache.logging.log4j.core.Core.CATEGORY_NAME;
@@ -51,7 +73,13 @@ import static org.apache.logging.log4j.core.Core.CATEGORY_NAME;
 /**
  * Elastic REST Log4J2 appender that sends documents in bulk.
  * Log messages are buffered and sent at pre-defined interval or
- * when the message buffer gets filled (whichever comes first). * 
+ * when the message buffer gets filled (whichever comes first).
+ * When {@code async} is set the bulk requests are performed by a
+ * background flusher thread instead of the logging thread.
+ * <p>
+ * Logging threads encode their events into striped buffers and only contend
+ * on the appender lock to merge the stripes into a bulk, so the order of events
+ * logged by different threads is not preserved within a bulk.
  */
 @SuppressWarnings("WeakerAccess")
 @Plugin(name = "ElasticSearch", category = CATEGORY_NAME, elementType = ELEMENT_TYPE, printObject = true)
@@ -83,11 +111,140 @@ public class ElasticSearchRestAppender extends AbstractAppender {
         
         @PluginBuilderAttribute
         private Long maxDelayTime = null;
+
+        @PluginBuilderAttribute
+        private Long maxBulkBytes = null;
+
+        @PluginBuilderAttribute
+        private boolean adaptiveBatching;
+
+        @PluginBuilderAttribute
+        private Integer minBulkSize = null;
+
+        @PluginBuilderAttribute
+        private Long minDelayTime = null;
+
+        @PluginBuilderAttribute
+        private Long targetBulkLatency = null;
+
+        @PluginBuilderAttribute
+        private boolean async;
+
+        @PluginBuilderAttribute
+        private boolean collapseRepeats;
+
+        @PluginBuilderAttribute
+        private Level priorityLevel;
+
+        @PluginBuilderAttribute
+        private Integer priorityBulkSize = null;
+
+        @PluginBuilderAttribute
+        private Long priorityDelayTime = null;
+
+        @PluginBuilderAttribute
+        private Integer priorityBufferCapacity = null;
+
+        @PluginBuilderAttribute
+        private Integer stripes = null;
+
+        @PluginBuilderAttribute
+        private Integer encoderThreads = null;
+
+        @PluginBuilderAttribute
+        private Integer encoderQueueSize = null;
+
+        @PluginBuilderAttribute
+        private Integer bufferCapacity = null;
+
+        @PluginBuilderAttribute
+        private Long bufferCapacityBytes = null;
+
+        @PluginBuilderAttribute
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+        @PluginBuilderAttribute
+        private Level overflowLevel = Level.WARN;
+
+        @PluginBuilderAttribute
+        private Long blockTimeout = null;
+
+        @PluginBuilderAttribute
+        private String compression;
+
+        @PluginBuilderAttribute
+        private Integer compressionLevel = null;
+
+        @PluginBuilderAttribute
+        private Integer maxRetries = null;
+
+        @PluginBuilderAttribute
+        private Long retryBackoff = null;
+
+        @PluginBuilderAttribute
+        private Long maxRetryBackoff = null;
+
+        @PluginBuilderAttribute
+        private boolean compactBulks;
+
+        @PluginBuilderAttribute
+        private String opType;
+
+        @PluginBuilderAttribute
+        private String pipeline;
+
+        @PluginBuilderAttribute
+        private Integer ioThreadCount = null;
+
+        @PluginBuilderAttribute
+        private Integer maxConnectionsPerRoute = null;
+
+        @PluginBuilderAttribute
+        private Integer maxConnectionsTotal = null;
+
+        @PluginBuilderAttribute
+        private Integer connectTimeout = null;
+
+        @PluginBuilderAttribute
+        private Integer socketTimeout = null;
+
+        @PluginBuilderAttribute
+        private Integer connectionRequestTimeout = null;
+
+        @PluginBuilderAttribute
+        private Integer maxRetryTimeout = null;
+
+        @PluginBuilderAttribute
+        private Long keepAlive = null;
+
+        @PluginBuilderAttribute
+        private boolean tcpKeepAlive;
+
+        @PluginBuilderAttribute
+        private Integer circuitBreakerThreshold = null;
+
+        @PluginBuilderAttribute
+        private Long circuitBreakerDelay = null;
+
+        @PluginBuilderAttribute
+        private String spillDirectory;
+
+        @PluginBuilderAttribute
+        private Long spillMaxBytes = null;
+
+        @PluginBuilderAttribute
+        private Long shutdownTimeout = null;
+
+        @PluginBuilderAttribute
+        private String shutdownFallback;
         
         @PluginElement("Hosts")
         @Required(message = "No Elastic hosts provided")
         private HttpAddress[] hosts;
 
+        @PluginElement("RateLimits")
+        private RateLimit[] rateLimits;
+
         private BulkSender bulkSender;
 
         public B withIndex(final String index) {
@@ -110,6 +267,11 @@ public class ElasticSearchRestAppender extends AbstractAppender {
             return asBuilder();
         }
 
+        public B withRateLimits(final RateLimit... rateLimits) {
+            this.rateLimits = rateLimits;
+            return asBuilder();
+        }
+
         public B withMaxBulkSize(final Integer maxBulkSize) {
             this.maxBulkSize = maxBulkSize;
             return asBuilder();
@@ -120,6 +282,216 @@ public class ElasticSearchRestAppender extends AbstractAppender {
             return asBuilder();
         }
         
+        public B withMaxBulkBytes(final Long maxBulkBytes) {
+            this.maxBulkBytes = maxBulkBytes;
+            return asBuilder();
+        }
+        
+        public B withAdaptiveBatching(final boolean adaptiveBatching) {
+            this.adaptiveBatching = adaptiveBatching;
+            return asBuilder();
+        }
+        
+        public B withMinBulkSize(final Integer minBulkSize) {
+            this.minBulkSize = minBulkSize;
+            return asBuilder();
+        }
+        
+        public B withMinDelayTime(final Long minDelayTime) {
+            this.minDelayTime = minDelayTime;
+            return asBuilder();
+        }
+        
+        public B withTargetBulkLatency(final Long targetBulkLatency) {
+            this.targetBulkLatency = targetBulkLatency;
+            return asBuilder();
+        }
+        
+        public B withAsync(final boolean async) {
+            this.async = async;
+            return asBuilder();
+        }
+        
+        public B withCollapseRepeats(final boolean collapseRepeats) {
+            this.collapseRepeats = collapseRepeats;
+            return asBuilder();
+        }
+        
+        public B withPriorityLevel(final Level priorityLevel) {
+            this.priorityLevel = priorityLevel;
+            return asBuilder();
+        }
+        
+        public B withPriorityBulkSize(final Integer priorityBulkSize) {
+            this.priorityBulkSize = priorityBulkSize;
+            return asBuilder();
+        }
+        
+        public B withPriorityDelayTime(final Long priorityDelayTime) {
+            this.priorityDelayTime = priorityDelayTime;
+            return asBuilder();
+        }
+        
+        public B withPriorityBufferCapacity(final Integer priorityBufferCapacity) {
+            this.priorityBufferCapacity = priorityBufferCapacity;
+            return asBuilder();
+        }
+        
+        public B withStripes(final Integer stripes) {
+            this.stripes = stripes;
+            return asBuilder();
+        }
+        
+        public B withEncoderThreads(final Integer encoderThreads) {
+            this.encoderThreads = encoderThreads;
+            return asBuilder();
+        }
+        
+        public B withEncoderQueueSize(final Integer encoderQueueSize) {
+            this.encoderQueueSize = encoderQueueSize;
+            return asBuilder();
+        }
+        
+        public B withBufferCapacity(final Integer bufferCapacity) {
+            this.bufferCapacity = bufferCapacity;
+            return asBuilder();
+        }
+        
+        public B withBufferCapacityBytes(final Long bufferCapacityBytes) {
+            this.bufferCapacityBytes = bufferCapacityBytes;
+            return asBuilder();
+        }
+        
+        public B withOverflowPolicy(final OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return asBuilder();
+        }
+        
+        public B withOverflowLevel(final Level overflowLevel) {
+            this.overflowLevel = overflowLevel;
+            return asBuilder();
+        }
+        
+        public B withBlockTimeout(final Long blockTimeout) {
+            this.blockTimeout = blockTimeout;
+            return asBuilder();
+        }
+        
+        public B withCompression(final String compression) {
+            this.compression = compression;
+            return asBuilder();
+        }
+        
+        public B withCompressionLevel(final Integer compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return asBuilder();
+        }
+        
+        public B withMaxRetries(final Integer maxRetries) {
+            this.maxRetries = maxRetries;
+            return asBuilder();
+        }
+        
+        public B withRetryBackoff(final Long retryBackoff) {
+            this.retryBackoff = retryBackoff;
+            return asBuilder();
+        }
+        
+        public B withMaxRetryBackoff(final Long maxRetryBackoff) {
+            this.maxRetryBackoff = maxRetryBackoff;
+            return asBuilder();
+        }
+        
+        public B withCompactBulks(final boolean compactBulks) {
+            this.compactBulks = compactBulks;
+            return asBuilder();
+        }
+        
+        public B withOpType(final String opType) {
+            this.opType = opType;
+            return asBuilder();
+        }
+        
+        public B withPipeline(final String pipeline) {
+            this.pipeline = pipeline;
+            return asBuilder();
+        }
+        
+        public B withIoThreadCount(final Integer ioThreadCount) {
+            this.ioThreadCount = ioThreadCount;
+            return asBuilder();
+        }
+        
+        public B withMaxConnectionsPerRoute(final Integer maxConnectionsPerRoute) {
+            this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+            return asBuilder();
+        }
+        
+        public B withMaxConnectionsTotal(final Integer maxConnectionsTotal) {
+            this.maxConnectionsTotal = maxConnectionsTotal;
+            return asBuilder();
+        }
+        
+        public B withConnectTimeout(final Integer connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return asBuilder();
+        }
+        
+        public B withSocketTimeout(final Integer socketTimeout) {
+            this.socketTimeout = socketTimeout;
+            return asBuilder();
+        }
+        
+        public B withConnectionRequestTimeout(final Integer connectionRequestTimeout) {
+            this.connectionRequestTimeout = connectionRequestTimeout;
+            return asBuilder();
+        }
+        
+        public B withMaxRetryTimeout(final Integer maxRetryTimeout) {
+            this.maxRetryTimeout = maxRetryTimeout;
+            return asBuilder();
+        }
+        
+        public B withKeepAlive(final Long keepAlive) {
+            this.keepAlive = keepAlive;
+            return asBuilder();
+        }
+        
+        public B withTcpKeepAlive(final boolean tcpKeepAlive) {
+            this.tcpKeepAlive = tcpKeepAlive;
+            return asBuilder();
+        }
+        
+        public B withCircuitBreakerThreshold(final Integer circuitBreakerThreshold) {
+            this.circuitBreakerThreshold = circuitBreakerThreshold;
+            return asBuilder();
+        }
+        
+        public B withCircuitBreakerDelay(final Long circuitBreakerDelay) {
+            this.circuitBreakerDelay = circuitBreakerDelay;
+            return asBuilder();
+        }
+        
+        public B withSpillDirectory(final String spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return asBuilder();
+        }
+        
+        public B withSpillMaxBytes(final Long spillMaxBytes) {
+            this.spillMaxBytes = spillMaxBytes;
+            return asBuilder();
+        }
+        
+        public B withShutdownTimeout(final Long shutdownTimeout) {
+            this.shutdownTimeout = shutdownTimeout;
+            return asBuilder();
+        }
+        
+        public B withShutdownFallback(final String shutdownFallback) {
+            this.shutdownFallback = shutdownFallback;
+            return asBuilder();
+        }
+        
         public B withCredentials(final String user, final String password) {
         	this.user = user;
         	this.password = password;
@@ -133,7 +505,7 @@ public class ElasticSearchRestAppender extends AbstractAppender {
         
     	@Override
     	public Layout<? extends Serializable> getOrCreateLayout() {
-    		return getOrCreateLayout(Charset.defaultCharset());
+    		return getOrCreateLayout(StandardCharsets.UTF_8);
     	}
 
     	@Override
@@ -166,6 +538,70 @@ public class ElasticSearchRestAppender extends AbstractAppender {
             	maxDelayTime = 2000L;
             }
 
+            if (maxBulkBytes == null || maxBulkBytes < 0) {
+            	maxBulkBytes = 5L * 1024 * 1024;
+            }
+
+            BatchSizer batchSizer = null;
+            if (adaptiveBatching) {
+            	if (minBulkSize == null || minBulkSize < 1) {
+            		minBulkSize = Math.max(1, maxBulkSize / 10);
+            	}
+            	if (minDelayTime == null || minDelayTime < 1) {
+            		minDelayTime = Math.max(1L, maxDelayTime / 20);
+            	}
+            	if (targetBulkLatency == null || targetBulkLatency < 1) {
+            		targetBulkLatency = 500L;
+            	}
+            	batchSizer = BatchSizer.adaptive(minBulkSize, maxBulkSize, minDelayTime, maxDelayTime, targetBulkLatency);
+            }
+
+            PriorityLane priorityLane = null;
+            if (priorityLevel != null) {
+            	if (priorityBulkSize == null || priorityBulkSize < 0) {
+            		priorityBulkSize = 20;
+            	}
+            	if (priorityDelayTime == null || priorityDelayTime < 0) {
+            		priorityDelayTime = 100L;
+            	}
+            	if (priorityBufferCapacity == null || priorityBufferCapacity < 0) {
+            		priorityBufferCapacity = 10000;
+            	}
+            	priorityLane = new PriorityLane(priorityLevel, priorityBulkSize, priorityDelayTime, priorityBufferCapacity);
+            }
+
+            if (encoderThreads == null || encoderThreads < 0) {
+            	encoderThreads = 0;
+            }
+
+            if (encoderQueueSize == null || encoderQueueSize < 1) {
+            	encoderQueueSize = 16384;
+            }
+
+            if (bufferCapacity == null || bufferCapacity < 0) {
+            	bufferCapacity = 100000;
+            }
+
+            if (bufferCapacityBytes == null || bufferCapacityBytes < 0) {
+            	bufferCapacityBytes = 64L * 1024 * 1024;
+            }
+
+            if (blockTimeout == null || blockTimeout < 0) {
+            	blockTimeout = 1000L;
+            }
+
+            if (maxRetries == null || maxRetries < 0) {
+            	maxRetries = 3;
+            }
+
+            if (retryBackoff == null || retryBackoff < 0) {
+            	retryBackoff = 100L;
+            }
+
+            if (maxRetryBackoff == null || maxRetryBackoff < 0) {
+            	maxRetryBackoff = DEFAULT_MAX_RETRY_BACKOFF_MILLIS;
+            }
+
             HttpHost[] httpHosts;
             if (hosts == null || hosts.length == 0) {
     			LOGGER.warn("No hosts found for appender {} using [http://localhost:9200].", getName());
@@ -192,29 +628,161 @@ public class ElasticSearchRestAppender extends AbstractAppender {
             	esType = "log";
             }
             
+            if (Strings.isBlank(opType)) {
+            	opType = "index";
+            } else if (!"index".equals(opType) && !"create".equals(opType)) {
+            	LOGGER.warn("Unsupported opType {} for appender {} using [index].", opType, getName());
+            	opType = "index";
+            }
+            
+            if (shutdownTimeout == null || shutdownTimeout <= 0) {
+            	shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT_MILLIS;
+            }
+            
+            boolean stderrFallback = true;
+            if ("none".equalsIgnoreCase(shutdownFallback)) {
+            	stderrFallback = false;
+            } else if (!Strings.isBlank(shutdownFallback) && !"stderr".equalsIgnoreCase(shutdownFallback)) {
+            	LOGGER.warn("Unsupported shutdownFallback {} for appender {} using [stderr].", shutdownFallback, getName());
+            }
+            
+            Integer gzipLevel = null;
+            if ("gzip".equalsIgnoreCase(compression)) {
+                if (compressionLevel == null || compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+                    gzipLevel = Deflater.DEFAULT_COMPRESSION;
+                } else {
+                    gzipLevel = compressionLevel;
+                }
+            } else if (!Strings.isBlank(compression) && !"none".equalsIgnoreCase(compression)) {
+                LOGGER.warn("Unsupported compression {} for appender {}, sending uncompressed bulks.", compression, getName());
+            }
+
             if (bulkSender == null) {
-                RestClient restClient = RestClient.builder(httpHosts).setHttpClientConfigCallback(httpClientConfigCallback(user, password)).build();
-                bulkSender = new ElasticBulkSender(restClient);
+                RestClientBuilder.HttpClientConfigCallback credentials = httpClientConfigCallback(user, password);
+                RestClientBuilder.HttpClientConfigCallback connections = connectionConfigCallback(ioThreadCount,
+                		maxConnectionsPerRoute, maxConnectionsTotal, keepAlive, tcpKeepAlive);
+                RestClientBuilder restClientBuilder = RestClient.builder(httpHosts)
+                		.setHttpClientConfigCallback(httpClientBuilder -> connections.customizeHttpClient(
+                				credentials.customizeHttpClient(httpClientBuilder)))
+                		.setRequestConfigCallback(requestConfigCallback(connectTimeout, socketTimeout, connectionRequestTimeout));
+                if (maxRetryTimeout != null && maxRetryTimeout > 0) {
+                	restClientBuilder.setMaxRetryTimeoutMillis(maxRetryTimeout);
+                } else if (socketTimeout != null && socketTimeout > RestClientBuilder.DEFAULT_MAX_RETRY_TIMEOUT_MILLIS) {
+                	// The client gives up on a request after maxRetryTimeout, whatever the socket timeout
+                	restClientBuilder.setMaxRetryTimeoutMillis(socketTimeout);
+                }
+                RestClient restClient = restClientBuilder.build();
+                bulkSender = ElasticBulkSender.newBuilder()
+                		.withRestClient(restClient)
+                		.withCompressionLevel(gzipLevel)
+                		.withMaxRetries(maxRetries)
+                		.withRetryBackoff(retryBackoff)
+                		.withMaxBackoff(async ? maxRetryBackoff : Math.min(maxRetryBackoff, SYNC_MAX_RETRY_BACKOFF_MILLIS))
+                		.withCompactBulks(compactBulks)
+                		.withPipeline(pipeline)
+                		.build();
             } else {
             	LOGGER.warn("Appender {} using custom bulk sender {}.", getName(), bulkSender.getClass().getName());
             }
 
-            return new ElasticSearchRestAppender(getName(), getFilter(), getOrCreateLayout(), isIgnoreExceptions(),
-            		maxDelayTime, maxBulkSize, new SimpleDateFormat(dateFormat), esIndex, esType, bulkSender);
-        }
+            if (circuitBreakerThreshold == null || circuitBreakerThreshold < 0) {
+            	circuitBreakerThreshold = 5;
+            }
 
-        static RestClientBuilder.HttpClientConfigCallback httpClientConfigCallback(String user, String password) {
-            return httpClientBuilder -> {
-                if (!Strings.isBlank(user)) {
-                    CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-                    credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(user, password));
-                    return httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
+            if (circuitBreakerDelay == null || circuitBreakerDelay < 0) {
+            	circuitBreakerDelay = 10000L;
+            }
+
+            BulkSender sender = bulkSender;
+            if (circuitBreakerThreshold > 0) {
+            	sender = new CircuitBreakerSender(bulkSender, circuitBreakerThreshold, circuitBreakerDelay);
+            }
+
+            SpillQueue spillQueue = null;
+            if (!Strings.isBlank(spillDirectory)) {
+                if (spillMaxBytes == null || spillMaxBytes <= 0) {
+                    spillMaxBytes = 256L * 1024 * 1024;
+                }
+                try {
+                    spillQueue = new SpillQueue(Paths.get(spillDirectory), spillMaxBytes);
+                } catch (IOException | InvalidPathException ex) {
+                    LOGGER.error("Cannot use spill directory {} for appender {}, undelivered logs will be dropped.", spillDirectory, getName(), ex);
+                }
+            }
+
+            return new ElasticSearchRestAppender(getName(), getFilter(), getOrCreateLayout(), isIgnoreExceptions(),
+            		maxDelayTime, maxBulkSize, maxBulkBytes, new SimpleDateFormat(dateFormat), esIndex, esType, sender, async,
+            		new BufferLimits(bufferCapacity, bufferCapacityBytes,
+            				overflowPolicy != null ? overflowPolicy : OverflowPolicy.DROP_NEWEST,
+            				overflowLevel != null ? overflowLevel : Level.WARN, blockTimeout),
+            		spillQueue, BufferStripe.count(stripes != null ? stripes : 0), batchSizer,
+            		collapseRepeats ? new EventCollapser(MAX_COLLAPSED_FINGERPRINTS) : null, priorityLane,
+            		rateLimits != null && rateLimits.length > 0 ? new RateLimiter(rateLimits) : null,
+            		encoderThreads, encoderQueueSize, opType, shutdownTimeout, stderrFallback);
+        }
+
+        static RestClientBuilder.HttpClientConfigCallback httpClientConfigCallback(String user, String password) {
+            return httpClientBuilder -> {
+                if (!Strings.isBlank(user)) {
+                    CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+                    credentialsProvider.setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(user, password));
+                    return httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
                 } else {
                     return httpClientBuilder;
                 }
             };
         }
 
+        /**
+         * @return A callback sizing the IO reactor and connection pool of the HTTP client, null values keep
+         * the defaults of the REST client
+         */
+        static RestClientBuilder.HttpClientConfigCallback connectionConfigCallback(Integer ioThreadCount,
+        		Integer maxConnectionsPerRoute, Integer maxConnectionsTotal, Long keepAlive, boolean tcpKeepAlive) {
+            return httpClientBuilder -> {
+                if ((ioThreadCount != null && ioThreadCount > 0) || tcpKeepAlive) {
+                    IOReactorConfig.Builder reactorConfig = IOReactorConfig.custom().setSoKeepAlive(tcpKeepAlive);
+                    if (ioThreadCount != null && ioThreadCount > 0) {
+                        reactorConfig.setIoThreadCount(ioThreadCount);
+                    }
+                    httpClientBuilder.setDefaultIOReactorConfig(reactorConfig.build());
+                }
+                if (maxConnectionsPerRoute != null && maxConnectionsPerRoute > 0) {
+                    httpClientBuilder.setMaxConnPerRoute(maxConnectionsPerRoute);
+                }
+                if (maxConnectionsTotal != null && maxConnectionsTotal > 0) {
+                    httpClientBuilder.setMaxConnTotal(maxConnectionsTotal);
+                }
+                if (keepAlive != null && keepAlive > 0) {
+                    // Idle connections are closed after keepAlive millis, or sooner if the server asks to
+                    httpClientBuilder.setKeepAliveStrategy((response, context) -> {
+                        long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                        return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive) : keepAlive;
+                    });
+                }
+                return httpClientBuilder;
+            };
+        }
+
+        /**
+         * @return A callback setting the timeouts of the requests, in millis, null values keep the defaults of the REST client
+         */
+        static RestClientBuilder.RequestConfigCallback requestConfigCallback(Integer connectTimeout, Integer socketTimeout,
+        		Integer connectionRequestTimeout) {
+            return requestConfigBuilder -> {
+                if (connectTimeout != null && connectTimeout >= 0) {
+                    requestConfigBuilder.setConnectTimeout(connectTimeout);
+                }
+                if (socketTimeout != null && socketTimeout >= 0) {
+                    requestConfigBuilder.setSocketTimeout(socketTimeout);
+                }
+                if (connectionRequestTimeout != null && connectionRequestTimeout >= 0) {
+                    requestConfigBuilder.setConnectionRequestTimeout(connectionRequestTimeout);
+                }
+                return requestConfigBuilder;
+            };
+        }
+
     }
 	
     @PluginBuilderFactory
@@ -222,16 +790,61 @@ public class ElasticSearchRestAppender extends AbstractAppender {
         return new Builder<B>().asBuilder();
     }
     
-    private final Lock lock = new ReentrantLock();
+    private static final long SPILL_REPLAY_INTERVAL_MILLIS = 5000L;
+    private static final int MAX_COLLAPSED_FINGERPRINTS = 1000;
+    private static final int MAX_INDEX_ROUTES = 1024;
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 30000L;
+    private static final int SHUTDOWN_PARALLELISM = 4;
+    // Retries sleep on the flusher thread in async mode, holding up the bulks queued behind them
+    private static final long DEFAULT_MAX_RETRY_BACKOFF_MILLIS = 30000L;
+    // Synchronous retries sleep on a logging thread holding the appender lock, keep each of them short
+    private static final long SYNC_MAX_RETRY_BACKOFF_MILLIS = 1000L;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
     private final BulkSender bulkSender;
+    private final CircuitBreakerSender circuitBreaker;
     private final String index;
     private final String type; 
-    private final DateFormat dateFormat;
-    private final String bulkItemFormat;
-    private final int maxBulkSize;
-    private Timer timer;
-    private final long maxDelayTime;
-    private final List<String> buffered;
+    private final IndexRouter indexRouter;
+    // Groups the items by destination index when merging the stripes, null if they all go to the same one
+    private final IndexGroups indexGroups;
+    private final Charset layoutCharset;
+    private final BatchSizer batchSizer;
+    private final long maxBulkBytes;
+    private volatile ScheduledFuture<?> deadline;
+    // Guards the reference to the shared flush scheduler, only taken once a deadline is scheduled
+    private final Object scheduling = new Object();
+    private boolean scheduled;
+    private boolean released;
+    private final ExecutorService deadlineExecutor;
+    // Set once stopping, when failed bulks can no longer be kept in the buffer for later
+    private volatile boolean stopping;
+    private volatile boolean unsentOnStop;
+    private final BulkFlusher flusher;
+    private final SpillQueue spillQueue;
+    private final BufferLimits bufferLimits;
+    private final BufferStripe[] stripes;
+    private final RateLimiter rateLimiter;
+    private final EventCollapser collapser;
+    // The priority lane collapses its repeats in windows of its own, ended by its own bulks
+    private final EventCollapser priorityCollapser;
+    // Holds the documents standing for collapsed repeats, only used while holding the appender lock
+    private final BufferStripe repeats = new BufferStripe();
+    private final PriorityLane priorityLane;
+    private final BulkFlusher priorityFlusher;
+    private final EncoderPool encoderPool;
+    private final AtomicInteger stripedEvents = new AtomicInteger();
+    private final AtomicLong stripedBytes = new AtomicLong();
+    private BulkBuffer buffered;
+    // Events out of the stripes, written while holding the lock but read without it when appending
+    private volatile long bufferedEvents;
+    private volatile long bufferedBytes;
+    private long droppedEvents;
+    private long reportedDroppedEvents;
+    private final AppenderMetrics metrics;
+    private final long shutdownTimeout;
+    private final boolean stderrFallback;
 
     /**
      * @param name The appender name
@@ -248,17 +861,93 @@ public class ElasticSearchRestAppender extends AbstractAppender {
     protected ElasticSearchRestAppender(String name, Filter filter, Layout<? extends Serializable> layout, final boolean ignoreExceptions,
     		final long maxDelayTime, final int maxBulkSize, DateFormat dateFormat,
     		String index, String type, BulkSender bulkSender) {
+        this(name, filter, layout, ignoreExceptions, maxDelayTime, maxBulkSize, 0, dateFormat, index, type, bulkSender, false,
+        		BufferLimits.UNBOUNDED, null, 1, null, null, null, null, 0, 0, "index", DEFAULT_SHUTDOWN_TIMEOUT_MILLIS, true);
+    }
+
+    /**
+     * @param name The appender name
+     * @param filter The appender filter
+     * @param layout The layout
+     * @param ignoreExceptions True if we are to ignore exceptions during logging
+     * @param maxDelayTime Max delay time in millis before sending the messages to the database
+     * @param maxBulkSize Max buffer size of messages held in memory before sending
+     * @param maxBulkBytes Max size in bytes of the bulk body held in memory before sending
+     * @param dateFormat Format of the timestamp that is appended to the esIndex name while saving
+     * @param index The ElasticSearch destination index, possibly routing events with lookups such as {@code ${ctx:tenant}}
+     * @param type The ElasticSearch destination type
+     * @param bulkSender The Elastic bulk sender
+     * @param async True if bulks are to be sent by a background thread instead of the logging thread
+     * @param bufferLimits Max number of events and bytes buffered, including the bulks being sent in async mode
+     * @param spillQueue The disk queue keeping the bulks that could not be sent, null to drop them
+     * @param stripes The number of buffers logging threads encode their events into, a power of two
+     * @param batchSizer Tunes the bulk size and delay time at runtime, null to stick to maxBulkSize and maxDelayTime
+     * @param collapser Collapses the events repeated within a bulk into a single document, null to send them all
+     * @param priorityLane Buffers the events at or above a level apart from the others, null to buffer them all together
+     * @param rateLimiter Samples and limits the events of some loggers before they are serialized, null to send them all
+     * @param encoderThreads The number of threads serializing the events in the background, 0 to serialize them
+     * on the logging threads
+     * @param encoderQueueSize The number of events waiting to be serialized per encoder thread
+     * @param opType The action of the bulk items, {@code index} or {@code create} (as data streams require)
+     * @param shutdownTimeout How long in millis stopping waits for the buffered events to be sent, unless
+     * Log4j gives a timeout of its own
+     * @param stderrFallback True to write the items still unsent once stopped to the standard error stream
+     * when they cannot be spilled, false to drop them
+     */
+    protected ElasticSearchRestAppender(String name, Filter filter, Layout<? extends Serializable> layout, final boolean ignoreExceptions,
+    		final long maxDelayTime, final int maxBulkSize, final long maxBulkBytes, DateFormat dateFormat,
+    		String index, String type, BulkSender bulkSender, final boolean async, BufferLimits bufferLimits,
+    		SpillQueue spillQueue, final int stripes, BatchSizer batchSizer, EventCollapser collapser,
+    		PriorityLane priorityLane, RateLimiter rateLimiter, final int encoderThreads, final int encoderQueueSize,
+    		String opType, final long shutdownTimeout, final boolean stderrFallback) {
         super(name, filter, layout, ignoreExceptions);
-        this.buffered = new ArrayList<>();
-        this.timer = null;
-        this.maxBulkSize = maxBulkSize;
-        this.maxDelayTime = maxDelayTime;
+        this.buffered = new BulkBuffer();
+        this.deadline = null;
+        this.batchSizer = batchSizer != null ? batchSizer : BatchSizer.fixed(maxBulkSize, maxDelayTime);
+        this.maxBulkBytes = maxBulkBytes;
+        this.shutdownTimeout = shutdownTimeout;
+        this.stderrFallback = stderrFallback;
         this.index = index;
         this.type = type;
         this.bulkSender = bulkSender;
-        this.dateFormat = dateFormat;
-        this.bulkItemFormat = String.format("{ \"index\" : { \"_index\" : \"%s%%s\", \"_type\" : \"%s\" } }%n%%s%n", index, type);
+        this.circuitBreaker = bulkSender instanceof CircuitBreakerSender ? (CircuitBreakerSender) bulkSender : null;
+        this.indexRouter = new IndexRouter(index, dateFormat, type, opType, MAX_INDEX_ROUTES);
+        this.indexGroups = indexRouter.isDynamic() ? new IndexGroups() : null;
         this.validate();
+        this.layoutCharset = getLayoutCharset(getLayout());
+        this.flusher = async ? newFlusher(name, this::sendInBackground) : null;
+        // Sending must not hold up the shared scheduler thread. The one thread started by the first
+        // deadline is kept until the appender stops, rather than started again for each bulk.
+        this.deadlineExecutor = async ? null : new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        		new LinkedBlockingQueue<>(), runnable -> {
+        			Thread thread = new Thread(runnable, "ElasticSearchRestAppender-" + name + "-deadline");
+        			thread.setDaemon(true);
+        			return thread;
+        		});
+        this.bufferLimits = bufferLimits;
+        this.spillQueue = spillQueue;
+        this.stripes = new BufferStripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new BufferStripe();
+        }
+        this.rateLimiter = rateLimiter;
+        this.collapser = collapser;
+        this.priorityLane = priorityLane;
+        this.priorityCollapser = collapser != null && priorityLane != null ? new EventCollapser(MAX_COLLAPSED_FINGERPRINTS) : null;
+        this.priorityFlusher = async && priorityLane != null
+        		? newFlusher(name + "-priority", this::sendPriorityInBackground) : null;
+        // The location of the log call is never rendered by ElasticJsonLayout, no need to compute it.
+        // Encoders only get events once the appender is constructed and published.
+        this.encoderPool = encoderThreads > 0 ? new EncoderPool(name, encoderThreads, encoderQueueSize,
+        		!(getLayout() instanceof ElasticJsonLayout), bufferLimits.getBlockTimeoutMillis(), this::encodeInBackground) : null;
+        this.metrics = new AppenderMetrics(
+        		() -> bufferedEvents + stripedEvents.get() + (priorityLane != null ? priorityLane.getEvents() : 0)
+        				+ (encoderPool != null ? encoderPool.queued() : 0),
+        		() -> bufferedBytes + stripedBytes.get() + (priorityLane != null ? priorityLane.getBytes() : 0L),
+        		bulkSender, this.batchSizer);
+        if (spillQueue != null) {
+            spillQueue.start(name, bulkSender, SPILL_REPLAY_INTERVAL_MILLIS);
+        }
     }
     
     private void validate() {
@@ -272,88 +961,909 @@ public class ElasticSearchRestAppender extends AbstractAppender {
         }
     }
     
-    private String getBulkItem(String jsonMessage) {
-   		return String.format(bulkItemFormat, this.dateFormat.format(new Date()), jsonMessage);
+    /**
+     * @return The layout charset when documents must be re-encoded to UTF-8, null otherwise
+     */
+    private static Charset getLayoutCharset(Layout<? extends Serializable> layout) {
+        if (layout instanceof AbstractStringLayout) {
+            Charset charset = ((AbstractStringLayout) layout).getCharset();
+            if (!StandardCharsets.UTF_8.equals(charset)) {
+                LOGGER.warn("Layout charset {} is not UTF-8, documents will be re-encoded before sending.", charset);
+                return charset;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the event to the buffer of the given stripe, whose lock must be held. UTF-8 layouts
+     * encode it straight into the buffer, which does not allocate with garbage free layouts;
+     * documents of other charsets go through an intermediate array to be re-encoded.
+     */
+    private void addItem(BufferStripe stripe, LogEvent event) {
+        byte[] actionLine = stripe.actionLine(event, indexRouter);
+        if (layoutCharset == null) {
+            stripe.buffer.beginItem(actionLine);
+            getLayout().encode(event, stripe.buffer);
+            stripe.buffer.endItem();
+        } else {
+            byte[] document = new String(getLayout().toByteArray(event), layoutCharset).getBytes(StandardCharsets.UTF_8);
+            stripe.buffer.addItem(actionLine, document, 0, document.length);
+        }
     }
     
     @Override
     public void append(LogEvent event) {
-    	lock.lock();
         try {
-        	String json = new String(getLayout().toByteArray(event));
-        	buffered.add(getBulkItem(json));
-        	this.check();        	
+        	RateLimit limit = rateLimiter != null ? rateLimiter.limitOf(event) : null;
+        	if (limit != null && !limit.tryAcquire()) {
+        		metrics.eventSuppressed();
+        		return;
+        	}
+        	if (encoderPool != null) {
+        		if (encoderPool.submit(event)) {
+        			return;
+        		}
+        		if (encoderPool.isRunning()) {
+        			// Its queue stayed full, serializing the event here would overtake the ones still queued
+        			lock.lock();
+        			try {
+        				droppedEvents++;
+        				metrics.eventsDropped(1);
+        			} finally {
+        				lock.unlock();
+        			}
+        			return;
+        		}
+        	}
+        	encode(event, limit);
         } catch (Exception ex) {
+        	if (ex instanceof InterruptedException) {
+        		Thread.currentThread().interrupt();
+        	}
             if (!ignoreExceptions()) {
                 throw new AppenderLoggingException(ex);
             } else {
             	LOGGER.error("Failed to process event.", ex);
             }
-        } finally {
-        	lock.unlock();
         }
     }
 
-    private void cancelTimer() {
-		if (timer != null) {
-			timer.cancel();
-			timer = null;
+    /**
+     * Serializes an event on an encoder thread, where there is no caller to propagate failures to.
+     */
+    private void encodeInBackground(LogEvent event) {
+    	try {
+    		encode(event, rateLimiter != null ? rateLimiter.limitOf(event) : null);
+    	} catch (Exception ex) {
+    		if (ex instanceof InterruptedException) {
+    			Thread.currentThread().interrupt();
+    		}
+    		LOGGER.error("Failed to process event.", ex);
+    	}
+    }
+
+    /**
+     * Collapses, buffers and serializes an event that went through its rate limit, if any.
+     */
+    private void encode(LogEvent event, RateLimit limit) throws InterruptedException {
+    	if (priorityLane != null && priorityLane.accepts(event)) {
+    		if (priorityCollapser != null && priorityCollapser.collapse(event)) {
+    			metrics.eventCollapsed();
+    			return;
+    		}
+    		appendPriority(event, limit);
+    		return;
+    	}
+    	if (collapser != null && collapser.collapse(event)) {
+    		metrics.eventCollapsed();
+    		return;
+    	}
+    	if (isFull() && !admitWhenFull(event)) {
+    		return;
+    	}
+    	BufferStripe stripe = BufferStripe.of(stripes);
+    	int added;
+    	stripe.lock.lock();
+    	try {
+    		int size = stripe.buffer.size();
+    		addItem(stripe, event);
+    		addSuppressed(stripe.buffer, limit);
+    		added = stripe.buffer.size() - size;
+    	} finally {
+    		stripe.lock.unlock();
+    	}
+    	metrics.eventAppended(added);
+    	this.check(stripedEvents.incrementAndGet(), stripedBytes.addAndGet(added));
+    }
+
+    /**
+     * Adds the number of events suppressed by a rate limit since its last event sent, if any,
+     * to the document of the item just added.
+     */
+    private static void addSuppressed(BulkBuffer buffer, RateLimit limit) {
+    	if (limit != null) {
+    		byte[] suppressed = limit.takeSuppressed();
+    		if (suppressed != null) {
+    			buffer.appendFields(suppressed);
+    		}
+    	}
+    }
+
+    /**
+     * Adds an event to the priority lane, which is flushed once it holds a full bulk or its delay expires.
+     */
+    private void appendPriority(LogEvent event, RateLimit limit) {
+    	PriorityLane lane = priorityLane;
+    	lane.stripe.lock.lock();
+    	try {
+    		if (lane.isFull()) {
+    			lane.eventDropped();
+    			metrics.eventsDropped(1);
+    			return;
+    		}
+    		int size = lane.stripe.buffer.size();
+    		addItem(lane.stripe, event);
+    		addSuppressed(lane.stripe.buffer, limit);
+    		int added = lane.stripe.buffer.size() - size;
+    		lane.added(added);
+    		metrics.eventAppended(added);
+    		if (lane.isBulkReady()) {
+    			flushPriority();
+    		} else if (lane.getDelayTime() > 0 && lane.deadline == null) {
+    			lane.deadline = schedule(priorityDeadlineTask(), lane.getDelayTime());
+    		}
+    	} finally {
+    		lane.stripe.lock.unlock();
+    	}
+    }
+
+    /**
+     * @return True if the events buffered, from the stripes to the bulks being sent, reach the buffer limits.
+     * The limits are soft: threads appending concurrently may all get past a nearly full buffer.
+     */
+    private boolean isFull() {
+    	return bufferLimits.isFull(bufferedEvents + stripedEvents.get(), bufferedBytes + stripedBytes.get());
+    }
+
+    /**
+     * @return False if the event is to be dropped
+     */
+    private boolean admitWhenFull(LogEvent event) throws InterruptedException {
+    	lock.lock();
+    	try {
+    		if (!admit(event)) {
+    			droppedEvents++;
+    			metrics.eventsDropped(1);
+    			return false;
+    		}
+    		return true;
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    /**
+     * Makes room for a new event when the buffer is full, according to the overflow policy.
+     * Must be called while holding the lock.
+     *
+     * @return False if the event is to be dropped
+     */
+    private boolean admit(LogEvent event) throws InterruptedException {
+    	if (!isFull()) {
+    		return true;
+    	}
+    	// Let the bulk being filled go, synchronous sends always make room
+    	flush();
+    	if (flusher == null) {
+    		return true;
+    	}
+    	switch (bufferLimits.getPolicy()) {
+    		case BLOCK:
+    			long nanos = TimeUnit.MILLISECONDS.toNanos(bufferLimits.getBlockTimeoutMillis());
+    			while (isFull() && nanos > 0) {
+    				nanos = notFull.awaitNanos(nanos);
+    			}
+    			break;
+    		case DROP_OLDEST:
+    			BulkBuffer oldest;
+    			while (isFull() && (oldest = flusher.pollOldest()) != null) {
+    				droppedEvents += oldest.items();
+    				metrics.eventsDropped(oldest.items());
+    				release(oldest);
+    				flusher.recycle(oldest);
+    			}
+    			break;
+    		case DROP_BELOW_LEVEL:
+    			return event.getLevel().isMoreSpecificThan(bufferLimits.getLevel());
+    		default:
+    			break;
+    	}
+    	return !isFull();
+    }
+
+    /**
+     * Gives back the room taken by a batch that left the buffer. Must be called while holding the lock.
+     */
+    private void release(BulkBuffer batch) {
+    	bufferedEvents -= batch.items();
+    	bufferedBytes -= batch.size();
+    	notFull.signalAll();
+    }
+
+    /**
+     * @return The counters of the appender, also registered as an MBean while the appender is started
+     */
+    public ElasticSearchRestAppenderMXBean getMetrics() {
+    	return metrics;
+    }
+
+    /**
+     * @return The number of events dropped because the buffer was full
+     */
+    public long getDroppedEvents() {
+    	lock.lock();
+    	try {
+    		return droppedEvents + (priorityLane != null ? priorityLane.getDroppedEvents() : 0L);
+    	} finally {
+    		lock.unlock();
+    	}
+    }
+
+    private void cancelDeadline() {
+		if (deadline != null) {
+			deadline.cancel(false);
+			deadline = null;
 		}
     }
     
-    private void check() {
-    	if (this.maxBulkSize == 0 && this.maxDelayTime == 0) {
-    		send();
-    	} else if (this.maxBulkSize > 0 && buffered.size() >= this.maxBulkSize) {
-    		send();
-    	} else if (this.maxDelayTime > 0 && timer == null) {
-    		timer = new Timer();
-    		timer.schedule(timerTask(), this.maxDelayTime);
+    /**
+     * Flushes the stripes once they hold a full bulk, or makes sure they will be flushed
+     * when the batch delay expires.
+     *
+     * @param events The number of events in the stripes after the append
+     * @param bytes The size of the items in the stripes after the append
+     */
+    private void check(int events, long bytes) {
+    	if (isBulkReady(events, bytes)) {
+    		lock.lock();
+    		try {
+    			// Another thread may have flushed the stripes while this one was waiting
+    			if (isBulkReady(stripedEvents.get(), stripedBytes.get())) {
+    				flush();
+    			}
+    		} finally {
+    			lock.unlock();
+    		}
+    	} else if (batchSizer.getDelayTime() > 0 && deadline == null) {
+    		lock.lock();
+    		try {
+    			if (deadline == null && stripedEvents.get() > 0) {
+    				deadline = schedule(deadlineTask(), batchSizer.getDelayTime());
+    			}
+    		} finally {
+    			lock.unlock();
+    		}
     	}
     }
 
-    TimerTask timerTask() {
-        return new TimerTask() {
-            @Override
-            public void run() {
-                lock.lock();
-                try {
-                    send();
-                } finally {
-                    lock.unlock();
-                }
+    private boolean isBulkReady(int events, long bytes) {
+    	if (events == 0) {
+    		return false;
+    	}
+    	int bulkSize = batchSizer.getBulkSize();
+    	return (bulkSize == 0 && batchSizer.getDelayTime() == 0)
+    			|| (bulkSize > 0 && events >= bulkSize)
+    			|| (this.maxBulkBytes > 0 && bytes >= this.maxBulkBytes);
+    }
+
+    /**
+     * Schedules a deadline on the shared scheduler, taking a reference to it on first use so that
+     * appenders which are built but never used or stopped do not keep it running.
+     */
+    private ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+    	synchronized (scheduling) {
+    		if (!scheduled && !released) {
+    			scheduled = true;
+    			FlushScheduler.acquire();
+    		}
+    	}
+    	return FlushScheduler.schedule(task, delayMillis);
+    }
+
+    private void releaseScheduler() {
+    	synchronized (scheduling) {
+    		if (!released) {
+    			released = true;
+    			if (scheduled) {
+    				FlushScheduler.release();
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * @return The task that flushes the buffer once the batch delay expires.
+     * It runs on the shared scheduler thread, which in synchronous mode only
+     * hands the bulk request over to the deadline thread of the appender.
+     */
+    Runnable deadlineTask() {
+        return onDeadline(() -> {
+            lock.lock();
+            try {
+                deadline = null;
+                batchSizer.lingerExpired(buffered.items() + stripedEvents.get());
+                flush();
+            } catch (AppenderLoggingException ex) {
+                LOGGER.error("Failed to send data to Elastic server.", ex);
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * @return The task that flushes the priority lane once its delay expires
+     */
+    Runnable priorityDeadlineTask() {
+        return onDeadline(() -> {
+            try {
+                flushPriorityLane();
+            } catch (AppenderLoggingException ex) {
+                LOGGER.error("Failed to send data to Elastic server.", ex);
             }
-        };
+        });
+    }
+
+    private Runnable onDeadline(Runnable flush) {
+    	if (deadlineExecutor == null) {
+    		// Flushing only hands the bulk over to a flusher thread
+    		return flush;
+    	}
+    	return () -> {
+    		try {
+    			deadlineExecutor.execute(flush);
+    		} catch (RejectedExecutionException ex) {
+    			// Stopped, the buffered events are sent by stop()
+    		}
+    	};
+    }
+
+    private void flushPriorityLane() {
+    	priorityLane.stripe.lock.lock();
+    	try {
+    		flushPriority();
+    	} finally {
+    		priorityLane.stripe.lock.unlock();
+    	}
+    }
+
+    /**
+     * Sends the events of the priority lane, either right away or by handing them over to
+     * its own background flusher. Must be called while holding the lock of the lane.
+     */
+    private void flushPriority() {
+    	PriorityLane lane = priorityLane;
+    	if (lane.deadline != null) {
+    		lane.deadline.cancel(false);
+    		lane.deadline = null;
+    	}
+    	collectPriorityRepeats();
+    	BulkBuffer items = lane.stripe.buffer;
+    	if (items.isEmpty()) {
+    		return;
+    	}
+    	if (priorityFlusher != null) {
+    		// Priority bulks are small, copying them keeps the lane buffer in place
+    		BulkBuffer batch = priorityFlusher.emptyBatch();
+    		batch.addItems(items);
+    		items.reset();
+    		priorityFlusher.submit(batch);
+    		return;
+    	}
+    	try {
+    		sendBatch(items, false);
+    	} catch (Exception ex) {
+    		if (!spill(items, ex)) {
+    			if (!ignoreExceptions()) {
+    				throw new AppenderLoggingException(ex);
+    			}
+    			logSendFailure(ex);
+    		}
+    	} finally {
+    		lane.release(items);
+    		items.reset();
+    	}
+    }
+
+    /**
+     * Sends the buffered messages, either right away or by handing them
+     * over to the background flusher. Must be called while holding the lock.
+     */
+    private void flush() {
+    	cancelDeadline();
+    	mergeStripes();
+    	if (flusher != null) {
+    		handOff();
+    	} else {
+    		send();
+    	}
+    }
+
+    /**
+     * Moves the items of all the stripes into the bulk being filled. Must be called while holding the lock.
+     */
+    private void mergeStripes() {
+    	if (indexGroups != null) {
+    		mergeStripesByIndex();
+    		return;
+    	}
+    	for (BufferStripe stripe : stripes) {
+    		stripe.lock.lock();
+    		try {
+    			BulkBuffer items = stripe.buffer;
+    			if (!items.isEmpty()) {
+    				buffered.addItems(items);
+    				// Counted as buffered before leaving the stripes, so the buffer never looks emptier than it is
+    				bufferedEvents += items.items();
+    				bufferedBytes += items.size();
+    				stripedEvents.addAndGet(-items.items());
+    				stripedBytes.addAndGet(-items.size());
+    				items.reset();
+    			}
+    		} finally {
+    			stripe.lock.unlock();
+    		}
+    	}
+    	if (collapser != null) {
+    		collectRepeats();
+    		BulkBuffer items = repeats.buffer;
+    		if (!items.isEmpty()) {
+    			buffered.addItems(items);
+    			bufferedEvents += items.items();
+    			bufferedBytes += items.size();
+    			items.reset();
+    		}
+    	}
+    }
+
+    /**
+     * Moves the items of all the stripes, then the documents of collapsed repeats, into the bulk being
+     * filled, grouped by destination index. The stripes stay locked until their items are copied.
+     * Must be called while holding the lock.
+     */
+    private void mergeStripesByIndex() {
+    	if (collapser != null) {
+    		collectRepeats();
+    	}
+    	int locked = 0;
+    	try {
+    		for (BufferStripe stripe : stripes) {
+    			stripe.lock.lock();
+    			locked++;
+    			indexGroups.add(stripe);
+    		}
+    		indexGroups.add(repeats);
+    		indexGroups.drainTo(buffered);
+    		for (BufferStripe stripe : stripes) {
+    			BulkBuffer items = stripe.buffer;
+    			bufferedEvents += items.items();
+    			bufferedBytes += items.size();
+    			stripedEvents.addAndGet(-items.items());
+    			stripedBytes.addAndGet(-items.size());
+    			items.reset();
+    		}
+    		bufferedEvents += repeats.buffer.items();
+    		bufferedBytes += repeats.buffer.size();
+    		repeats.buffer.reset();
+    	} finally {
+    		for (int i = 0; i < locked; i++) {
+    			stripes[i].lock.unlock();
+    		}
+    	}
+    }
+
+    /**
+     * Ends the window of the collapser, adding a document to the repeats stripe for each event repeated
+     * since the last bulk. Must be called while holding the lock.
+     */
+    private void collectRepeats() {
+    	collapser.drain(repeated -> {
+    		addItem(repeats, repeated.getEvent());
+    		repeats.buffer.appendFields(repeated.fields());
+    	});
+    }
+
+    /**
+     * Ends the window of the priority collapser, if any, adding the documents of the repeats to the lane
+     * so that they go out with its bulk rather than wait for the other events. Must be called while
+     * holding the lock of the lane.
+     */
+    private void collectPriorityRepeats() {
+    	if (priorityCollapser == null) {
+    		return;
+    	}
+    	BulkBuffer buffer = priorityLane.stripe.buffer;
+    	priorityCollapser.drain(repeated -> {
+    		int size = buffer.size();
+    		addItem(priorityLane.stripe, repeated.getEvent());
+    		buffer.appendFields(repeated.fields());
+    		priorityLane.added(buffer.size() - size);
+    	});
+    }
+
+    private void handOff() {
+    	cancelDeadline();
+    	if (!buffered.isEmpty()) {
+    		BulkBuffer batch = buffered;
+    		buffered = flusher.emptyBatch();
+    		flusher.submit(batch);
+    	}
     }
 
     private void send() {
     	try {
-			cancelTimer();
-    		if (buffered.size() > 0) {
-	    		StringBuilder bulkRequestBody = new StringBuilder();
-	    		for (String bulkItem : buffered) {
-	    		    bulkRequestBody.append(bulkItem);
-	    		}
-	        	try {
-	        		this.bulkSender.send(bulkRequestBody.toString());
-				} catch (Exception ex) {
-		            if (!ignoreExceptions()) {
-		                throw new AppenderLoggingException(ex);
-		            } else {
-		            	LOGGER.error("Failed to send data to Elastic server.", ex);
-		            }
+			cancelDeadline();
+        	try {
+        		sendBatch(buffered, true);
+			} catch (Exception ex) {
+				if (spill(buffered, ex)) {
+					return;
 				}
+	            if (!ignoreExceptions()) {
+	                throw new AppenderLoggingException(ex);
+	            } else {
+	            	logSendFailure(ex);
+	            }
+			}
+    	} finally {
+    		release(buffered);
+    		buffered.reset();
+    	}
+    }
+
+    /**
+     * Starts a flusher whose sender is given the flusher itself, which may be draining the last bulks
+     * of a synchronous appender rather than be its {@code flusher}.
+     */
+    private static BulkFlusher newFlusher(String name, BiConsumer<BulkBuffer, BulkFlusher> sender) {
+    	// Batches are only submitted once the flusher is set
+    	AtomicReference<BulkFlusher> started = new AtomicReference<>();
+    	started.set(new BulkFlusher(name, batch -> sender.accept(batch, started.get())));
+    	return started.get();
+    }
+
+    private void sendInBackground(BulkBuffer batch, BulkFlusher sendingFlusher) {
+    	try {
+    		deliver(batch, sendingFlusher, true);
+    	} finally {
+    		long dropped;
+    		lock.lock();
+    		try {
+    			release(batch);
+    			dropped = droppedEvents - reportedDroppedEvents;
+    			reportedDroppedEvents = droppedEvents;
+    		} finally {
+    			lock.unlock();
+    		}
+    		if (dropped > 0) {
+    			LOGGER.warn("Buffer of appender {} is full, dropped {} events.", getName(), dropped);
     		}
+    	}
+    }
+
+    private void sendPriorityInBackground(BulkBuffer batch, BulkFlusher sendingFlusher) {
+    	try {
+    		deliver(batch, sendingFlusher, false);
     	} finally {
-    		buffered.clear();
+    		priorityLane.release(batch);
+    		long dropped = priorityLane.takeDroppedEvents();
+    		if (dropped > 0) {
+    			LOGGER.warn("Priority lane of appender {} is full, dropped {} events.", getName(), dropped);
+    		}
+    	}
+    }
+
+    /**
+     * Sends a batch from the given flusher thread, spilling or logging the failures as there is no caller to propagate to.
+     *
+     * @param tuneBatches True if the outcome is to tune the bulk size and delay time
+     */
+    private void deliver(BulkBuffer batch, BulkFlusher sendingFlusher, boolean tuneBatches) {
+    	try {
+    		while (true) {
+    			try {
+    				sendBatch(batch, tuneBatches);
+    				break;
+    			} catch (IOException ex) {
+    				// Keeps the bulk while ElasticSearch is unreachable, the buffer limits still apply to new events.
+    				// Partly delivered bulks are not sent again, their remaining items are spilled or dropped.
+    				if (ex instanceof BulkRejectedException || circuitBreaker == null || !circuitBreaker.isOpen()
+    						|| !awaitProbe(sendingFlusher)) {
+    					throw ex;
+    				}
+    			}
+    		}
+    	} catch (Exception ex) {
+    		if (!spill(batch, ex)) {
+    			if (stopping) {
+    				// No later attempt follows, so even an open circuit is worth reporting
+    				LOGGER.error("Failed to send data to Elastic server while stopping.", ex);
+    			} else {
+    				logSendFailure(ex);
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * Keeps the items of a bulk that failed for a transient reason in the spill queue, if any.
+     * While stopping, the items that cannot be spilled go to the shutdown fallback instead.
+     *
+     * @return True if the items were kept
+     */
+    private boolean spill(BulkBuffer batch, Exception failure) {
+    	byte[] items = batch.array();
+    	int length = batch.size();
+    	int itemCount = batch.items();
+    	if (failure instanceof BulkRejectedException) {
+    		items = ((BulkRejectedException) failure).getItems();
+    		length = items.length;
+    		itemCount = ((BulkRejectedException) failure).getItemCount();
+    	}
+    	if (spillQueue != null && isTransient(failure)) {
+    		try {
+    			if (spillQueue.append(items, 0, length, itemCount)) {
+    				metrics.itemsSpilled(itemCount);
+    				LOGGER.warn("Failed to send {} bulk items to Elastic server, spilled them to disk: {}", itemCount, failure.toString());
+    				return true;
+    			}
+    			LOGGER.error("Spill queue is full, cannot keep {} bulk items.", itemCount);
+    		} catch (IOException ex) {
+    			LOGGER.error("Failed to spill bulk items to disk.", ex);
+    		}
+    	}
+    	if (stopping && writeUnsent(items, length, itemCount, failure)) {
+    		return true;
+    	}
+    	metrics.itemsDropped(itemCount);
+    	return false;
+    }
+
+    /**
+     * Writes bulk items that could not be sent before the appender stopped to the standard error stream,
+     * unless the fallback is disabled.
+     *
+     * @return False if the items are to be dropped
+     */
+    private boolean writeUnsent(byte[] items, int length, int itemCount, Exception failure) {
+    	unsentOnStop = true;
+    	if (!stderrFallback) {
+    		return false;
     	}
+    	System.err.write(items, 0, length);
+    	System.err.flush();
+    	LOGGER.warn("Wrote {} unsent bulk items of appender {} to the standard error stream: {}", itemCount, getName(),
+    			failure != null ? failure.toString() : "shutdown timeout expired");
+    	return true;
+    }
+
+    /**
+     * Waits on the flusher thread until the circuit breaker lets a probe request through.
+     *
+     * @return False if the appender is stopping
+     */
+    private boolean awaitProbe(BulkFlusher sendingFlusher) {
+    	long wait;
+    	while (sendingFlusher.isRunning() && (wait = circuitBreaker.millisUntilProbe()) > 0) {
+    		try {
+    			Thread.sleep(Math.min(wait, 100L));
+    		} catch (InterruptedException ex) {
+    			Thread.currentThread().interrupt();
+    			return false;
+    		}
+    	}
+    	return sendingFlusher.isRunning();
+    }
+
+    private static void logSendFailure(Exception failure) {
+    	if (failure instanceof CircuitOpenException) {
+    		// Reported once by the circuit breaker when it opened
+    		LOGGER.debug("Failed to send data to Elastic server.", failure);
+    	} else {
+    		LOGGER.error("Failed to send data to Elastic server.", failure);
+    	}
+    }
+
+    /**
+     * @return True if sending the same items later may succeed
+     */
+    private static boolean isTransient(Exception failure) {
+    	if (failure instanceof BulkRejectedException) {
+    		return true;
+    	} else if (failure instanceof ResponseException) {
+    		return isTransient(((ResponseException) failure).getResponse().getStatusLine().getStatusCode());
+    	} else if (failure instanceof HttpResponseException) {
+    		return isTransient(((HttpResponseException) failure).getStatusCode());
+    	}
+    	// Connection failures, timeouts...
+    	return failure instanceof IOException;
+    }
+
+    private static boolean isTransient(int status) {
+    	return status == 408 || status == 429 || status >= 500;
+    }
+
+    /**
+     * @param tuneBatches True if the outcome is to tune the bulk size and delay time, false for priority bulks
+     */
+    private void sendBatch(BulkBuffer batch, boolean tuneBatches) throws IOException {
+		if (!batch.isEmpty()) {
+			int retried;
+			long start = System.nanoTime();
+			try {
+				// Counted for this bulk alone, other threads may be retrying bulks through the same sender
+				retried = RetryReportingSender.send(this.bulkSender, batch.array(), 0, batch.size());
+			} catch (IOException | RuntimeException ex) {
+				metrics.bulkFailed();
+				if (tuneBatches) {
+					batchSizer.bulkFailed(batch.items());
+				}
+				throw ex;
+			}
+			long latency = System.nanoTime() - start;
+			metrics.bulkSent(latency);
+			if (tuneBatches) {
+				batchSizer.bulkSent(batch.items(), latency, retried > 0);
+			}
+		}
     }
     
     @Override
-    public void stop() {
-    	cancelTimer();
-    	this.send();
-    	super.stop();
+    public void start() {
+    	super.start();
+    	metrics.register(getName());
+    }
+
+    /**
+     * Sends the events still buffered, with several bulk requests in flight at once, and gives up once
+     * the timeout given by Log4j, or {@code shutdownTimeout} if none, expires. The bulks not sent by then
+     * are spilled if possible, else written to the standard error stream unless {@code shutdownFallback}
+     * is {@code none}. Bulks still being sent are left to complete.
+     *
+     * @return False if some events could not be sent in time
+     */
+    @Override
+    public boolean stop(final long timeout, final TimeUnit timeUnit) {
+    	setStopping();
+    	stopping = true;
+    	boolean stopped = super.stop(timeout, timeUnit, false);
+    	long deadline = System.nanoTime() + (timeout > 0 ? timeUnit.toNanos(timeout) : TimeUnit.MILLISECONDS.toNanos(shutdownTimeout));
+    	// Serializes the events still queued, which may flush bulks and so must not hold the lock
+    	if (encoderPool != null && !encoderPool.stop(deadline)) {
+    		LOGGER.warn("Appender {} stopped before serializing {} queued events.", getName(), encoderPool.queued());
+    		stopped = false;
+    	}
+    	// In synchronous mode the last bulks are sent by threads of their own too, so that the deadline holds
+    	BulkFlusher bulks = flusher != null ? flusher : newFlusher(getName(), this::sendInBackground);
+    	BulkFlusher priorityBulks = priorityLane == null ? null : priorityFlusher != null ? priorityFlusher
+    			: newFlusher(getName() + "-priority", this::sendPriorityInBackground);
+    	if (priorityLane != null) {
+    		handOffPriority(priorityBulks);
+    	}
+    	lock.lock();
+    	try {
+    		cancelDeadline();
+    		mergeStripes();
+    		if (!buffered.isEmpty()) {
+    			BulkBuffer batch = buffered;
+    			buffered = bulks.emptyBatch();
+    			bulks.submit(batch);
+    		}
+    	} finally {
+    		releaseScheduler();
+    		lock.unlock();
+    	}
+    	if (deadlineExecutor != null) {
+    		deadlineExecutor.shutdown();
+    	}
+    	bulks.shutdown(SHUTDOWN_PARALLELISM);
+    	if (priorityBulks != null) {
+    		priorityBulks.shutdown(1);
+    	}
+    	boolean sent = bulks.awaitTermination(deadline);
+    	sent &= priorityBulks == null || priorityBulks.awaitTermination(deadline);
+    	if (!sent) {
+    		LOGGER.warn("Appender {} could not send all of its buffered events within the shutdown timeout.", getName());
+    		fallBack(bulks, this::releaseInBackground);
+    		if (priorityBulks != null) {
+    			fallBack(priorityBulks, priorityLane::release);
+    		}
+    		stopped = false;
+    	}
+    	if (spillQueue != null) {
+    		// Bulks still being sent past the deadline are then refused by the queue and go to the fallback
+    		spillQueue.close();
+    	}
+    	bulkSender.close();
+    	metrics.unregister();
+    	setStopped();
+    	return stopped && !unsentOnStop;
+    }
+
+    /**
+     * Hands the events of the priority lane over to the given flusher.
+     */
+    private void handOffPriority(BulkFlusher priorityBulks) {
+    	PriorityLane lane = priorityLane;
+    	lane.stripe.lock.lock();
+    	try {
+    		if (lane.deadline != null) {
+    			lane.deadline.cancel(false);
+    			lane.deadline = null;
+    		}
+    		collectPriorityRepeats();
+    		BulkBuffer items = lane.stripe.buffer;
+    		if (!items.isEmpty()) {
+    			BulkBuffer batch = priorityBulks.emptyBatch();
+    			batch.addItems(items);
+    			items.reset();
+    			priorityBulks.submit(batch);
+    		}
+    	} finally {
+    		lane.stripe.lock.unlock();
+    	}
+    }
+
+    /**
+     * Takes back the batches a flusher did not get to send before the deadline and keeps their items
+     * in the spill queue, or writes them to the standard error stream, rather than dropping them.
+     */
+    private void fallBack(BulkFlusher pendingFlusher, Consumer<BulkBuffer> release) {
+    	BulkBuffer batch;
+    	while ((batch = pendingFlusher.pollOldest()) != null) {
+    		try {
+    			if (!spillOnShutdown(batch) && !writeUnsent(batch.array(), batch.size(), batch.items(), null)) {
+    				metrics.itemsDropped(batch.items());
+    				LOGGER.error("Dropped {} unsent bulk items of appender {}.", batch.items(), getName());
+    			}
+    		} finally {
+    			release.accept(batch);
+    			pendingFlusher.recycle(batch);
+    		}
+    	}
+    }
+
+    /**
+     * @return True if the items of the batch were kept in the spill queue
+     */
+    private boolean spillOnShutdown(BulkBuffer batch) {
+    	if (spillQueue == null) {
+    		return false;
+    	}
+    	try {
+    		if (spillQueue.append(batch.array(), 0, batch.size(), batch.items())) {
+    			metrics.itemsSpilled(batch.items());
+    			LOGGER.warn("Spilled {} unsent bulk items of appender {} to disk.", batch.items(), getName());
+    			return true;
+    		}
+    		LOGGER.error("Spill queue is full, cannot keep {} unsent bulk items.", batch.items());
+    	} catch (IOException ex) {
+    		LOGGER.error("Failed to spill bulk items to disk.", ex);
+    	}
+    	return false;
+    }
+
+    /**
+     * Gives back the room taken by a batch from a thread not holding the lock.
+     */
+    private void releaseInBackground(BulkBuffer batch) {
+    	lock.lock();
+    	try {
+    		release(batch);
+    	} finally {
+    		lock.unlock();
+    	}
     }
 
     protected String getIndex() {
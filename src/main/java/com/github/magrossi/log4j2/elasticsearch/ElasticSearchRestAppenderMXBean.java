@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+/**
+ * Activity of an {@link ElasticSearchRestAppender}, registered in the platform MBean server as
+ * {@code com.github.magrossi.log4j2.elasticsearch:type=ElasticSearchRestAppender,name="<appender name>"}
+ * while the appender is started. Counters accumulate from the creation of the appender.
+ */
+public interface ElasticSearchRestAppenderMXBean {
+
+    /**
+     * @return The number of events added to the buffer
+     */
+    long getEventsAppended();
+
+    /**
+     * @return The size in bytes of the bulk items (action and document lines) of the appended events
+     */
+    long getBytesSerialized();
+
+    /**
+     * @return The number of events dropped because the buffer was full
+     */
+    long getEventsDropped();
+
+    /**
+     * @return The number of events left out as repeats with {@code collapseRepeats}, each counted
+     * in the {@code count} field of the document sent in their stead
+     */
+    long getEventsCollapsed();
+
+    /**
+     * @return The number of events sampled out or rate limited by a {@code RateLimit}, before being serialized
+     */
+    long getEventsSuppressed();
+
+    /**
+     * @return The number of events currently buffered, including the bulks being sent
+     */
+    long getBufferedEvents();
+
+    /**
+     * @return The size in bytes of the events currently buffered, including the bulks being sent
+     */
+    long getBufferedBytes();
+
+    /**
+     * @return The number of bulks delivered
+     */
+    long getBulksSent();
+
+    /**
+     * @return The number of bulks that could not be delivered in full
+     */
+    long getBulksFailed();
+
+    /**
+     * @return The number of bulk items sent again after being rejected for a transient reason
+     */
+    long getItemsRetried();
+
+    /**
+     * @return The number of bulk items rejected for good by ElasticSearch, e.g. because of mapping errors
+     */
+    long getItemsRejected();
+
+    /**
+     * @return The number of bulk items of failed bulks kept in the spill queue
+     */
+    long getItemsSpilled();
+
+    /**
+     * @return The number of bulk items of failed bulks that were neither delivered nor spilled
+     */
+    long getItemsDropped();
+
+    /**
+     * @return The median time taken to deliver a bulk, retries included
+     */
+    double getBulkLatencyP50Millis();
+
+    /**
+     * @return The 99th percentile of the time taken to deliver a bulk, retries included
+     */
+    double getBulkLatencyP99Millis();
+
+    /**
+     * @return The longest time taken to deliver a bulk, retries included
+     */
+    double getBulkLatencyMaxMillis();
+
+    /**
+     * @return The number of events bulks are currently sent at, 0 for no limit, tuned at runtime with {@code adaptiveBatching}
+     */
+    int getMaxBulkSize();
+
+    /**
+     * @return How long in millis partial bulks currently wait for more events, tuned at runtime with {@code adaptiveBatching}
+     */
+    long getMaxDelayTime();
+
+    /**
+     * @return {@code CLOSED} while bulks are sent, {@code OPEN} while they fail right away because ElasticSearch
+     * is unreachable, {@code HALF_OPEN} once a probe request may be sent
+     */
+    String getCircuitState();
+
+}
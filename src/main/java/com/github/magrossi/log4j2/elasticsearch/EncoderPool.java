@@ -0,0 +1,149 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Background threads serializing the events of an appender, so that logging threads only take
+ * a snapshot of their events and queue it. Each logging thread is assigned to one encoder, by id,
+ * which keeps its events in order; encoders write into stripes of their own, merged into bulks
+ * as usual.
+ * <p>
+ * Queues are bounded: when the queue of a logging thread is full, {@link #submit(LogEvent)} waits
+ * for room, which slows the logging thread down to the pace of the encoders. Serializing the event
+ * on the logging thread instead would overtake its events still queued.
+ */
+class EncoderPool {
+
+    private static final long POLL_INTERVAL_MILLIS = 100L;
+
+    private final BlockingQueue<LogEvent>[] queues;
+    private final Thread[] threads;
+    private final Consumer<LogEvent> encoder;
+    private final boolean captureLocation;
+    private final long offerTimeoutMillis;
+    private volatile boolean running = true;
+
+    /**
+     * @param name The owning appender name, used to name the encoder threads
+     * @param threads The number of encoder threads
+     * @param queueCapacity The number of events queued per encoder thread
+     * @param captureLocation True if the layout may render the location of the log call, which can only
+     * be computed on the logging thread
+     * @param offerTimeoutMillis How long a logging thread waits for room in its full queue
+     * @param encoder Callback that serializes and buffers a single event
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    EncoderPool(final String name, final int threads, final int queueCapacity, final boolean captureLocation,
+                final long offerTimeoutMillis, final Consumer<LogEvent> encoder) {
+        this.queues = new BlockingQueue[threads];
+        this.threads = new Thread[threads];
+        this.encoder = encoder;
+        this.captureLocation = captureLocation;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        for (int i = 0; i < threads; i++) {
+            BlockingQueue<LogEvent> queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.queues[i] = queue;
+            this.threads[i] = new Thread(() -> run(queue), "ElasticSearchRestAppender-" + name + "-encoder-" + i);
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * Queues a snapshot of the event for an encoder thread, waiting up to the offer timeout while the queue is full.
+     *
+     * @return False if the event was not queued, because the queue stayed full or the pool stopped
+     * @see #isRunning()
+     */
+    boolean submit(final LogEvent event) throws InterruptedException {
+        if (!running) {
+            return false;
+        }
+        BlockingQueue<LogEvent> queue = queues[(int) (Thread.currentThread().getId() % queues.length)];
+        return queue.offer(snapshot(event, captureLocation), offerTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return False once stopped, when the events are to be serialized by the logging threads
+     */
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return An immutable copy of the event, with everything computed from the logging thread filled in
+     */
+    static LogEvent snapshot(final LogEvent event, final boolean captureLocation) {
+        LogEvent snapshot = event.toImmutable();
+        // Computed lazily from the current thread, which the event is about to leave
+        snapshot.getThreadName();
+        snapshot.getThreadId();
+        snapshot.getThreadPriority();
+        if (captureLocation) {
+            snapshot.getSource();
+        }
+        // Formatted now, as the parameters may change once the log call returns
+        if (snapshot.getMessage() != null) {
+            snapshot.getMessage().getFormattedMessage();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return The number of events waiting to be serialized
+     */
+    int queued() {
+        int queued = 0;
+        for (BlockingQueue<LogEvent> queue : queues) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    private void run(final BlockingQueue<LogEvent> queue) {
+        while (running || !queue.isEmpty()) {
+            try {
+                LogEvent event = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (event != null) {
+                    encoder.accept(event);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting events and waits for the events already queued to be serialized, up to the deadline.
+     *
+     * @param deadlineNanos The {@link System#nanoTime()} to stop waiting at
+     * @return False if some events were still being serialized at the deadline
+     */
+    boolean stop(final long deadlineNanos) {
+        running = false;
+        return BulkFlusher.join(Arrays.asList(threads), deadlineNanos);
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Collapses the events repeated within a batch window, e.g. the same error logged thousands
+ * of times per second while a dependency is down. Events are told apart by a fingerprint made
+ * of their logger, level, message template (the format before parameters are substituted),
+ * throwable type and top stack frames.
+ * <p>
+ * The first event of each fingerprint is sent as usual, so that it is not delayed. The repeats
+ * that follow until the window ends, i.e. until the bulk is flushed, are only counted and sent
+ * as a single document: the first repeat, with a {@code count} field holding the number of events
+ * it stands for and {@code first_seen} and {@code last_seen} fields holding the time of the first
+ * and last of them. Summing {@code count}, taken as 1 when missing, gives the number of events.
+ */
+final class EventCollapser {
+
+    private static final int TOP_FRAMES = 5;
+
+    /**
+     * The events of one fingerprint seen in the current window, guarded by the map holding it.
+     */
+    static final class Repeats {
+        private LogEvent event;
+        private int count;
+        private long firstSeen;
+        private long lastSeen;
+
+        /**
+         * @return The first repeated event, null if the fingerprint was only seen once
+         */
+        LogEvent getEvent() {
+            return event;
+        }
+
+        /**
+         * @return The number of events left out after the first one
+         */
+        int getCount() {
+            return count;
+        }
+
+        long getFirstSeen() {
+            return firstSeen;
+        }
+
+        long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * @return The {@code count}, {@code first_seen} and {@code last_seen} fields, UTF-8 encoded
+         */
+        byte[] fields() {
+            return ("\"count\":" + count + ",\"first_seen\":\"" + Instant.ofEpochMilli(firstSeen)
+                    + "\",\"last_seen\":\"" + Instant.ofEpochMilli(lastSeen) + '"').getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private final ConcurrentMap<Fingerprint, Repeats> window = new ConcurrentHashMap<>();
+    private final int maxFingerprints;
+
+    /**
+     * @param maxFingerprints The number of distinct events tracked per window, events beyond are sent as usual
+     */
+    EventCollapser(final int maxFingerprints) {
+        this.maxFingerprints = maxFingerprints;
+    }
+
+    /**
+     * @return True if the event repeats one already sent in this window and is left out,
+     * false if it is to be sent
+     */
+    boolean collapse(final LogEvent event) {
+        Fingerprint fingerprint = new Fingerprint(event);
+        if (window.size() >= maxFingerprints && !window.containsKey(fingerprint)) {
+            return false;
+        }
+        boolean[] repeated = new boolean[1];
+        window.compute(fingerprint, (key, repeats) -> {
+            if (repeats == null) {
+                return new Repeats();
+            }
+            if (repeats.count++ == 0) {
+                // Copied as mutable events are reused by the logging thread once appended
+                repeats.event = event.toImmutable();
+                repeats.firstSeen = event.getTimeMillis();
+            }
+            repeats.lastSeen = event.getTimeMillis();
+            repeated[0] = true;
+            return repeats;
+        });
+        return repeated[0];
+    }
+
+    /**
+     * Ends the window, handing the events left out to the given consumer. Events of the same
+     * fingerprint collapsed concurrently are either handed out or start the next window.
+     */
+    void drain(final Consumer<Repeats> consumer) {
+        Iterator<Fingerprint> fingerprints = window.keySet().iterator();
+        while (fingerprints.hasNext()) {
+            Repeats repeats = window.remove(fingerprints.next());
+            if (repeats != null && repeats.count > 0) {
+                consumer.accept(repeats);
+            }
+        }
+    }
+
+    /**
+     * What makes events repeats of each other.
+     */
+    static final class Fingerprint {
+        private final String loggerName;
+        private final Level level;
+        private final String template;
+        private final Class<?> thrownType;
+        private final StackTraceElement[] topFrames;
+        private final int hash;
+
+        Fingerprint(final LogEvent event) {
+            this.loggerName = event.getLoggerName();
+            this.level = event.getLevel();
+            this.template = template(event.getMessage());
+            Throwable thrown = event.getThrown();
+            this.thrownType = thrown != null ? thrown.getClass() : null;
+            this.topFrames = thrown != null ? topFrames(thrown.getStackTrace()) : null;
+            this.hash = Objects.hash(loggerName, level, template, thrownType) * 31 + Arrays.hashCode(topFrames);
+        }
+
+        private static String template(final Message message) {
+            if (message == null) {
+                return null;
+            }
+            String format = message.getFormat();
+            return format != null ? format : message.getFormattedMessage();
+        }
+
+        private static StackTraceElement[] topFrames(final StackTraceElement[] frames) {
+            return frames.length > TOP_FRAMES ? Arrays.copyOf(frames, TOP_FRAMES) : frames;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint other = (Fingerprint) o;
+            return hash == other.hash
+                    && level == other.level
+                    && thrownType == other.thrownType
+                    && Objects.equals(loggerName, other.loggerName)
+                    && Objects.equals(template, other.template)
+                    && Arrays.equals(topFrames, other.topFrames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
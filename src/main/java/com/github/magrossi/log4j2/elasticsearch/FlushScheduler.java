@@ -0,0 +1,66 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single scheduler thread shared by all the appenders in the JVM to fire
+ * their flush deadlines. Appenders {@link #acquire()} it when they first
+ * schedule a deadline and {@link #release()} it when stopped; the thread is
+ * shut down once the last appender releases it and recreated on demand.
+ * <p>
+ * Tasks run on the shared thread, so they are expected to be short: they
+ * hand bulk requests over to the threads of the appenders.
+ */
+final class FlushScheduler {
+
+    private static ScheduledThreadPoolExecutor executor;
+    private static int references;
+
+    private FlushScheduler() {
+    }
+
+    static synchronized void acquire() {
+        references++;
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "ElasticSearchRestAppender-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Deadlines are cancelled on every flush, do not keep them queued until they expire
+            executor.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    static synchronized void release() {
+        if (references > 0 && --references == 0) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    static synchronized ScheduledFuture<?> schedule(final Runnable task, final long delayMillis) {
+        if (executor == null) {
+            throw new IllegalStateException("Flush scheduler is not running");
+        }
+        return executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+}
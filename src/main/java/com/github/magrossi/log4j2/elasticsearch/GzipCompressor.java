@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses bulk bodies in the gzip format into a reusable output buffer.
+ * The {@link Deflater} is reset between bodies instead of being reallocated,
+ * and its native memory freed by {@link #close()}.
+ * Instances are not thread safe.
+ */
+class GzipCompressor {
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b,  // magic
+            Deflater.DEFLATED,  // method
+            0, 0, 0, 0, 0,      // flags and modification time
+            0, (byte) 0xff      // extra flags and unknown OS
+    };
+    private static final int TRAILER_LENGTH = 8;
+
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private byte[] output = new byte[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @param level The compression level, from {@code 0} to {@code 9} or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    GzipCompressor(final int level) {
+        this.deflater = new Deflater(level, true);
+    }
+
+    /**
+     * Compresses the given body, replacing the previous output.
+     */
+    void compress(final byte[] body, final int offset, final int length) {
+        if (output.length > MAX_RETAINED_CAPACITY) {
+            output = new byte[INITIAL_CAPACITY];
+        }
+        deflater.reset();
+        crc.reset();
+        crc.update(body, offset, length);
+        System.arraycopy(HEADER, 0, output, 0, HEADER.length);
+        size = HEADER.length;
+
+        deflater.setInput(body, offset, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (size == output.length) {
+                output = Arrays.copyOf(output, output.length << 1);
+            }
+            size += deflater.deflate(output, size, output.length - size);
+        }
+
+        if (size + TRAILER_LENGTH > output.length) {
+            output = Arrays.copyOf(output, size + TRAILER_LENGTH);
+        }
+        writeIntLE((int) crc.getValue());
+        writeIntLE(length);
+    }
+
+    private void writeIntLE(final int value) {
+        output[size++] = (byte) value;
+        output[size++] = (byte) (value >>> 8);
+        output[size++] = (byte) (value >>> 16);
+        output[size++] = (byte) (value >>> 24);
+    }
+
+    /**
+     * @return The backing array of the last compressed body, valid from {@code 0} to {@link #size()}
+     */
+    byte[] array() {
+        return output;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Frees the native memory of the deflater, the compressor cannot be used afterwards.
+     */
+    void close() {
+        deflater.end();
+    }
+
+}
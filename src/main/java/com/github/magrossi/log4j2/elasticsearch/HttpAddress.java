@@ -21,13 +21,15 @@ import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
 import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
-import org.apache.logging.log4j.core.config.plugins.validation.constraints.ValidHost;
 import org.apache.logging.log4j.core.config.plugins.validation.constraints.ValidPort;
 
 import java.net.InetAddress;
 
 /**
  * Plugin to hold an http address.
+ * <p>
+ * Host names are kept as is and only resolved by the HTTP client when it connects, so that
+ * DNS changes are followed and TLS connections send the host name (SNI) and verify it.
  *
  * @see HttpHost
  */
@@ -37,7 +39,7 @@ public class HttpAddress {
 
     private HttpHost httpHost;
 
-    private HttpAddress(final InetAddress host, final int port, final String scheme) {
+    private HttpAddress(final String host, final int port, final String scheme) {
         this.httpHost = new HttpHost(host, port, scheme);
     }
 
@@ -56,9 +58,9 @@ public class HttpAddress {
         private String scheme = "http";
 
         @PluginBuilderAttribute
-        @ValidHost
         @Required(message = "Host address is required")
-        private InetAddress host = InetAddress.getLoopbackAddress();
+        // The loopback IP as before host names were accepted, "localhost" may resolve to ::1 instead
+        private String host = InetAddress.getLoopbackAddress().getHostAddress();
 
         @PluginBuilderAttribute
         @ValidPort
@@ -69,11 +71,22 @@ public class HttpAddress {
             return this;
         }
 
-        public Builder withHost(final InetAddress host) {
+        /**
+         * @param host The host name or IP address
+         */
+        public Builder withHost(final String host) {
             this.host = host;
             return this;
         }
 
+        /**
+         * @param host An address, whose IP is used as is
+         */
+        public Builder withHost(final InetAddress host) {
+            this.host = host.getHostAddress();
+            return this;
+        }
+
         public Builder withPort(final int port) {
             this.port = port;
             return this;
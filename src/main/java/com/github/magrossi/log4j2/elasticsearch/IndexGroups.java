@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the items of several stripes into a bulk grouped by destination index, the indices
+ * coming in the order they first show up. Items of the same index keep the order they have
+ * in their stripe, and the stripes their relative order.
+ * <p>
+ * The stripes added must stay locked until {@link #drainTo(BulkBuffer)} copied their items.
+ * Not thread safe, only used while holding the appender lock.
+ */
+final class IndexGroups {
+
+    private static final class Slice {
+        private final BulkBuffer buffer;
+        private final int from;
+        private final int to;
+        private final int items;
+
+        private Slice(final BulkBuffer buffer, final int from, final int to, final int items) {
+            this.buffer = buffer;
+            this.from = from;
+            this.to = to;
+            this.items = items;
+        }
+    }
+
+    private final Map<String, List<Slice>> groups = new LinkedHashMap<>();
+
+    /**
+     * Adds the items of a stripe to their groups, without copying them yet.
+     */
+    void add(final BufferStripe stripe) {
+        stripe.forEachRun((indexName, from, to, items) ->
+                groups.computeIfAbsent(indexName, name -> new ArrayList<>()).add(new Slice(stripe.buffer, from, to, items)));
+    }
+
+    /**
+     * Copies the items added so far into the bulk, one index after the other, and forgets them.
+     */
+    void drainTo(final BulkBuffer bulk) {
+        for (List<Slice> group : groups.values()) {
+            for (Slice slice : group) {
+                bulk.addItems(slice.buffer, slice.from, slice.to, slice.items);
+            }
+        }
+        groups.clear();
+    }
+
+}
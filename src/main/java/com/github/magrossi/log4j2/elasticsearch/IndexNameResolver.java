@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Resolves the destination index name ({@code index + dateFormat}) for an event timestamp.
+ * <p>
+ * The formatted name is cached for the period covered by the finest field of the date
+ * pattern (e.g. a day for {@code yyyyMMdd}) and only recomputed when an event falls
+ * outside of it, so late or replayed events still land in the index of their own date.
+ * Cache hits are lock free; the date format, which is not thread safe, is only used
+ * while holding its monitor.
+ */
+final class IndexNameResolver {
+
+    private static final class Period {
+        private final long start;
+        private final long end;
+        private final String indexName;
+
+        private Period(final long start, final long end, final String indexName) {
+            this.start = start;
+            this.end = end;
+            this.indexName = indexName;
+        }
+    }
+
+    private final String index;
+    private final DateFormat dateFormat;
+    private final Calendar calendar;
+    private final int granularity;
+    private volatile Period period;
+
+    /**
+     * @param index The index name prefix
+     * @param dateFormat The format of the suffix, or null when the index name has no date suffix
+     */
+    IndexNameResolver(final String index, final DateFormat dateFormat) {
+        this.index = index;
+        if (dateFormat != null) {
+            this.dateFormat = (DateFormat) dateFormat.clone();
+            this.calendar = Calendar.getInstance(dateFormat.getTimeZone());
+            this.granularity = dateFormat instanceof SimpleDateFormat
+                    ? granularityOf(((SimpleDateFormat) dateFormat).toPattern())
+                    : Calendar.MILLISECOND;
+        } else {
+            this.dateFormat = null;
+            this.calendar = null;
+            this.granularity = Calendar.MILLISECOND;
+            this.period = new Period(Long.MIN_VALUE, Long.MAX_VALUE, index);
+        }
+    }
+
+    /**
+     * @return The index name for the given event time in millis. The same
+     * instance is returned for all the timestamps of a period.
+     */
+    String resolve(final long timeMillis) {
+        Period current = period;
+        if (current == null || timeMillis < current.start || timeMillis >= current.end) {
+            current = newPeriod(timeMillis);
+            period = current;
+        }
+        return current.indexName;
+    }
+
+    @SuppressWarnings("fallthrough")
+    private Period newPeriod(final long timeMillis) {
+        synchronized (dateFormat) {
+            calendar.setTimeInMillis(timeMillis);
+            switch (granularity) {
+                case Calendar.DAY_OF_MONTH:
+                    calendar.set(Calendar.HOUR_OF_DAY, 0);
+                    // fall through
+                case Calendar.HOUR_OF_DAY:
+                    calendar.set(Calendar.MINUTE, 0);
+                    // fall through
+                case Calendar.MINUTE:
+                    calendar.set(Calendar.SECOND, 0);
+                    // fall through
+                case Calendar.SECOND:
+                    calendar.set(Calendar.MILLISECOND, 0);
+                    // fall through
+                default:
+                    break;
+            }
+            long start = calendar.getTimeInMillis();
+            calendar.add(granularity, 1);
+            long end = calendar.getTimeInMillis();
+            return new Period(start, end, index + dateFormat.format(new Date(timeMillis)));
+        }
+    }
+
+    /**
+     * @return The calendar field of the finest date component in a {@link SimpleDateFormat} pattern
+     */
+    static int granularityOf(final String pattern) {
+        int granularity = Calendar.DAY_OF_MONTH;
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted) {
+                granularity = finest(granularity, granularityOf(c));
+            }
+        }
+        return granularity;
+    }
+
+    private static int granularityOf(final char letter) {
+        switch (letter) {
+            case 'S':
+                return Calendar.MILLISECOND;
+            case 's':
+                return Calendar.SECOND;
+            case 'm':
+                return Calendar.MINUTE;
+            case 'H':
+            case 'k':
+            case 'K':
+            case 'h':
+            case 'a':
+            case 'z':
+            case 'Z':
+            case 'X':
+                return Calendar.HOUR_OF_DAY;
+            default:
+                return Calendar.DAY_OF_MONTH;
+        }
+    }
+
+    private static int finest(final int a, final int b) {
+        return rank(a) >= rank(b) ? a : b;
+    }
+
+    private static int rank(final int field) {
+        switch (field) {
+            case Calendar.MILLISECOND:
+                return 4;
+            case Calendar.SECOND:
+                return 3;
+            case Calendar.MINUTE:
+                return 2;
+            case Calendar.HOUR_OF_DAY:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+}
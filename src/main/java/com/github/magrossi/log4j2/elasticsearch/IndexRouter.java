@@ -0,0 +1,265 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Routes events to their destination index and provides the action lines of their bulk items.
+ * <p>
+ * The index name is compiled once into literals and lookups, {@code ${ctx:key}} for a value of the
+ * thread context, {@code ${level}}, {@code ${logger}} and {@code ${marker}}, each taking an optional
+ * default ({@code ${ctx:tenant:-shared}}), followed by the date suffix of {@link IndexNameResolver}.
+ * Looked up values are lower cased and the characters ElasticSearch does not allow in index names
+ * are replaced by {@code _}; a missing value without default is left empty.
+ * <p>
+ * Routing an event only evaluates its lookups. The action line is cached per distinct set of values
+ * and date period, up to {@code maxRoutes} of them, and only built on a miss; the least recently looked
+ * up one makes room for a new one once the cache is full. Callers hand back the
+ * last {@link Route} they got, which is reused as is while the values do not change, so runs of
+ * events of the same destination do not reach the cache at all.
+ */
+final class IndexRouter {
+
+    private static final String LOOKUP_START = "${";
+    private static final String LOOKUP_END = "}";
+    private static final String DEFAULT_SEPARATOR = ":-";
+
+    /**
+     * The destination of an event, with the encoded action line of its bulk items.
+     */
+    static final class Route {
+        private final Key key;
+        private final String indexName;
+        private final byte[] actionLine;
+        // Stamp of the last lookup, racy updates are fine as eviction only needs an approximate order
+        private long lastUsed;
+
+        private Route(final Key key, final String indexName, final String actionLineStart, final String actionLineType) {
+            this.key = key;
+            this.indexName = indexName;
+            this.actionLine = (actionLineStart + indexName + actionLineType).getBytes(StandardCharsets.UTF_8);
+        }
+
+        String getIndexName() {
+            return indexName;
+        }
+
+        byte[] getActionLine() {
+            return actionLine;
+        }
+    }
+
+    private static final class Key {
+        private final String[] values;
+        private final String dateSuffix;
+        private final int hash;
+
+        private Key(final String[] values, final String dateSuffix) {
+            this.values = values;
+            this.dateSuffix = dateSuffix;
+            this.hash = 31 * Arrays.hashCode(values) + dateSuffix.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && dateSuffix.equals(other.dateSuffix) && Arrays.equals(values, other.values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final String[] literals;
+    private final List<Function<LogEvent, String>> lookups;
+    private final IndexNameResolver dateSuffix;
+    private final String actionLineStart;
+    private final String actionLineType;
+    private final int maxRoutes;
+    private final ConcurrentMap<Key, Route> routes = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * @param index The index name, possibly holding lookups
+     * @param dateFormat The format of the date suffix, or null when the index name has no date suffix
+     * @param type The document type
+     * @param opType The action of the bulk items, {@code index} or {@code create}
+     * @param maxRoutes The number of action lines kept in the cache
+     * @throws IllegalArgumentException If the index name holds an unknown or unterminated lookup
+     */
+    IndexRouter(final String index, final DateFormat dateFormat, final String type, final String opType, final int maxRoutes) {
+        List<String> literals = new ArrayList<>();
+        List<Function<LogEvent, String>> lookups = new ArrayList<>();
+        int position = 0;
+        int start;
+        while ((start = index.indexOf(LOOKUP_START, position)) >= 0) {
+            int end = index.indexOf(LOOKUP_END, start);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated lookup in index name " + index);
+            }
+            literals.add(index.substring(position, start));
+            lookups.add(compile(index.substring(start + LOOKUP_START.length(), end)));
+            position = end + LOOKUP_END.length();
+        }
+        literals.add(index.substring(position));
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.lookups = lookups;
+        this.dateSuffix = new IndexNameResolver("", dateFormat);
+        this.actionLineStart = "{\"" + opType + "\":{\"_index\":\"";
+        this.actionLineType = "\",\"_type\":\"" + type + "\"}}\n";
+        this.maxRoutes = Math.max(1, maxRoutes);
+    }
+
+    private static Function<LogEvent, String> compile(final String lookup) {
+        int separator = lookup.indexOf(DEFAULT_SEPARATOR);
+        String name = separator >= 0 ? lookup.substring(0, separator) : lookup;
+        String defaultValue = separator >= 0 ? lookup.substring(separator + DEFAULT_SEPARATOR.length()) : "";
+        Function<LogEvent, String> value;
+        if (name.startsWith("ctx:")) {
+            String key = name.substring("ctx:".length());
+            value = event -> {
+                Object contextValue = event.getContextData() != null ? event.getContextData().getValue(key) : null;
+                return contextValue != null ? contextValue.toString() : null;
+            };
+        } else if (name.equals("level")) {
+            value = event -> event.getLevel().name();
+        } else if (name.equals("logger")) {
+            value = LogEvent::getLoggerName;
+        } else if (name.equals("marker")) {
+            value = event -> event.getMarker() != null ? event.getMarker().getName() : null;
+        } else {
+            throw new IllegalArgumentException("Unknown lookup ${" + lookup + "} in index name, expected one of "
+                    + "${ctx:key}, ${level}, ${logger} or ${marker}");
+        }
+        return event -> {
+            String resolved = value.apply(event);
+            return resolved == null || resolved.isEmpty() ? defaultValue : resolved;
+        };
+    }
+
+    /**
+     * @return True if the index name holds lookups, so that events may go to different indices
+     * within the same date period
+     */
+    boolean isDynamic() {
+        return !lookups.isEmpty();
+    }
+
+    /**
+     * @param event The event to route
+     * @param last The route last returned to the caller, or null
+     * @return The route of the event, {@code last} itself when the event shares its destination
+     */
+    Route route(final LogEvent event, final Route last) {
+        String suffix = dateSuffix.resolve(event.getTimeMillis());
+        if (last != null && matches(last.key, event, suffix)) {
+            return last;
+        }
+        String[] values = new String[lookups.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = lookups.get(i).apply(event);
+        }
+        Key key = new Key(values, suffix);
+        Route route = routes.get(key);
+        if (route == null) {
+            if (routes.size() >= maxRoutes) {
+                evictOne();
+            }
+            Route created = new Route(key, indexName(values, suffix), actionLineStart, actionLineType);
+            route = routes.putIfAbsent(key, created);
+            if (route == null) {
+                route = created;
+            }
+        }
+        route.lastUsed = clock.incrementAndGet();
+        return route;
+    }
+
+    private boolean matches(final Key key, final LogEvent event, final String suffix) {
+        // The date suffix is the same instance for all the events of a period
+        if (key.dateSuffix != suffix && !key.dateSuffix.equals(suffix)) {
+            return false;
+        }
+        for (int i = 0; i < key.values.length; i++) {
+            if (!key.values[i].equals(lookups.get(i).apply(event))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes room for a new route by evicting the least recently looked up one, e.g. of a past date period.
+     * Scanning the cache is fine as it only happens on a miss once it holds {@code maxRoutes} destinations.
+     */
+    private void evictOne() {
+        Route oldest = null;
+        for (Route route : routes.values()) {
+            if (oldest == null || route.lastUsed < oldest.lastUsed) {
+                oldest = route;
+            }
+        }
+        if (oldest != null) {
+            routes.remove(oldest.key, oldest);
+        }
+    }
+
+    private String indexName(final String[] values, final String suffix) {
+        StringBuilder name = new StringBuilder(literals[0]);
+        for (int i = 0; i < values.length; i++) {
+            appendSanitized(name, values[i]);
+            name.append(literals[i + 1]);
+        }
+        return name.append(suffix).toString();
+    }
+
+    /**
+     * Appends a looked up value, lower cased and with the characters not allowed in index names
+     * (which include those to be escaped in JSON) replaced by {@code _}.
+     */
+    private static void appendSanitized(final StringBuilder name, final String value) {
+        String lowerCase = value.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < lowerCase.length(); i++) {
+            char c = lowerCase.charAt(i);
+            if (c < ' ' || "\\/*?\"<>| ,#:".indexOf(c) >= 0) {
+                name.append('_');
+            } else {
+                name.append(c);
+            }
+        }
+    }
+
+}
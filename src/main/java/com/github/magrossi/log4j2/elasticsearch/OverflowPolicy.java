@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+/**
+ * What the appender does with a new event when its buffer is full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Waits up to {@code blockTimeout} millis for room, then drops the event.
+     */
+    BLOCK,
+
+    /**
+     * Drops the new event.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drops the oldest bulk waiting to be sent, or the new event if all the buffered bulks are being sent.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drops the new event if it is less specific than {@code overflowLevel}, buffers it regardless otherwise.
+     */
+    DROP_BELOW_LEVEL
+
+}
@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffer of the events at or above a level, e.g. errors, sent apart from the other events in
+ * small bulks after a short delay, so that they neither wait behind nor get dropped with the bulk
+ * traffic. The lane has its own bulk size, delay time and capacity, and in async mode its own
+ * flusher thread.
+ * <p>
+ * The buffer and the deadline are guarded by the lock of {@link #stripe}; the counters also
+ * include the bulks being sent, which are released without holding it.
+ */
+final class PriorityLane {
+
+    final BufferStripe stripe = new BufferStripe();
+    ScheduledFuture<?> deadline;
+
+    private final Level level;
+    private final int bulkSize;
+    private final long delayTime;
+    private final int capacity;
+    private final AtomicInteger events = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private long droppedEvents;
+    private long reportedDroppedEvents;
+
+    /**
+     * @param level The least specific level of the events of the lane
+     * @param bulkSize The number of events per bulk, 0 for no limit
+     * @param delayTime The delay in millis before a partial bulk is sent, 0 to send partial bulks only
+     * when the bulk size is 0 as well
+     * @param capacity Max number of events buffered, including the bulks being sent, 0 for no limit
+     */
+    PriorityLane(final Level level, final int bulkSize, final long delayTime, final int capacity) {
+        this.level = level;
+        this.bulkSize = bulkSize;
+        this.delayTime = delayTime;
+        this.capacity = capacity;
+    }
+
+    boolean accepts(final LogEvent event) {
+        return event.getLevel().isMoreSpecificThan(level);
+    }
+
+    boolean isFull() {
+        return capacity > 0 && events.get() >= capacity;
+    }
+
+    /**
+     * @return True if the buffer holds a full bulk, must be called while holding the lock
+     */
+    boolean isBulkReady() {
+        int items = stripe.buffer.items();
+        return items > 0 && ((bulkSize == 0 && delayTime == 0) || (bulkSize > 0 && items >= bulkSize));
+    }
+
+    long getDelayTime() {
+        return delayTime;
+    }
+
+    void added(final int itemBytes) {
+        events.incrementAndGet();
+        bytes.addAndGet(itemBytes);
+    }
+
+    /**
+     * Gives back the room taken by a bulk that was sent, or failed.
+     */
+    void release(final BulkBuffer batch) {
+        events.addAndGet(-batch.items());
+        bytes.addAndGet(-batch.size());
+    }
+
+    int getEvents() {
+        return events.get();
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    synchronized void eventDropped() {
+        droppedEvents++;
+    }
+
+    synchronized long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    /**
+     * @return The number of events dropped since the last call
+     */
+    synchronized long takeDroppedEvents() {
+        long dropped = droppedEvents - reportedDroppedEvents;
+        reportedDroppedEvents = droppedEvents;
+        return dropped;
+    }
+
+}
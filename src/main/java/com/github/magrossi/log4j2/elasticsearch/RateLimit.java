@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plugin to limit the events of the loggers whose name starts with a prefix, at or below a level,
+ * before they are serialized. Events are first sampled, keeping each with a probability of
+ * {@code sampleRate}, then go through a token bucket refilled with {@code eventsPerSecond} tokens
+ * per second and holding up to {@code burst} of them.
+ * <p>
+ * The number of events suppressed is added, as a {@code suppressed} field, to the document of the
+ * next event of the limit that is sent.
+ */
+@SuppressWarnings("WeakerAccess")
+@Plugin(name = "RateLimit", category = Node.CATEGORY, printObject = true)
+public class RateLimit {
+
+    private final String logger;
+    private final Level level;
+    private final double eventsPerSecond;
+    private final double sampleRate;
+    // The token bucket, as the time the bucket is full again (the "theoretical arrival time" of GCRA)
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong suppressed = new AtomicLong();
+
+    private RateLimit(final String logger, final Level level, final double eventsPerSecond, final int burst,
+                      final double sampleRate) {
+        this.logger = logger;
+        this.level = level;
+        this.eventsPerSecond = eventsPerSecond;
+        this.sampleRate = sampleRate;
+        this.intervalNanos = eventsPerSecond > 0 ? Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / eventsPerSecond)) : 0L;
+        this.burstNanos = intervalNanos * burst;
+    }
+
+    String getLogger() {
+        return logger;
+    }
+
+    /**
+     * @return True if events of the given level are limited
+     */
+    boolean appliesTo(final Level eventLevel) {
+        return eventLevel.isLessSpecificThan(level);
+    }
+
+    /**
+     * @return True if the event is to be sent, false if it is suppressed
+     */
+    boolean tryAcquire() {
+        if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+        if (intervalNanos == 0L) {
+            return true;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = (current == Long.MIN_VALUE || current - now < 0 ? now : current) + intervalNanos;
+            if (next - now > burstNanos) {
+                suppressed.incrementAndGet();
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return The {@code suppressed} field, UTF-8 encoded, holding the number of events suppressed since
+     * the last call, or null if there were none
+     */
+    byte[] takeSuppressed() {
+        long count = suppressed.get() > 0 ? suppressed.getAndSet(0L) : 0L;
+        return count > 0 ? ("\"suppressed\":" + count).getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    @PluginBuilderFactory
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder implements org.apache.logging.log4j.core.util.Builder<RateLimit> {
+
+        @PluginBuilderAttribute
+        private String logger = "";
+
+        @PluginBuilderAttribute
+        private Level level = Level.OFF;
+
+        @PluginBuilderAttribute
+        private double eventsPerSecond;
+
+        @PluginBuilderAttribute
+        private Integer burst = null;
+
+        @PluginBuilderAttribute
+        private double sampleRate = 1.0;
+
+        /**
+         * @param logger The prefix of the names of the loggers limited, all of them by default
+         */
+        public Builder withLogger(final String logger) {
+            this.logger = logger;
+            return this;
+        }
+
+        /**
+         * @param level The most specific level limited, e.g. {@code INFO} leaves warnings and errors alone,
+         * all levels by default
+         */
+        public Builder withLevel(final Level level) {
+            this.level = level;
+            return this;
+        }
+
+        /**
+         * @param eventsPerSecond The number of events sent per second on average, 0 for no limit
+         */
+        public Builder withEventsPerSecond(final double eventsPerSecond) {
+            this.eventsPerSecond = eventsPerSecond;
+            return this;
+        }
+
+        /**
+         * @param burst The number of events sent at once after a quiet period, {@code eventsPerSecond} by default
+         */
+        public Builder withBurst(final Integer burst) {
+            this.burst = burst;
+            return this;
+        }
+
+        /**
+         * @param sampleRate The share of the events kept, from 0 to 1
+         */
+        public Builder withSampleRate(final double sampleRate) {
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        @Override
+        public RateLimit build() {
+            if (burst == null || burst < 1) {
+                burst = (int) Math.max(1L, (long) Math.ceil(eventsPerSecond));
+            }
+            return new RateLimit(logger != null ? logger : "", level != null ? level : Level.OFF,
+                    Math.max(0.0, eventsPerSecond), burst, Math.min(1.0, Math.max(0.0, sampleRate)));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimit[logger=" + logger + ", level=" + level + ", eventsPerSecond=" + eventsPerSecond
+                + ", sampleRate=" + sampleRate + "]";
+    }
+
+}
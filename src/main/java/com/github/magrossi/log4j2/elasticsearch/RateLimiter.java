@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the {@link RateLimit} an event falls under: the one with the longest logger prefix among
+ * those matching the logger name and level of the event. The limits matching each logger name
+ * are looked up once and cached.
+ */
+final class RateLimiter {
+
+    private static final RateLimit[] NONE = new RateLimit[0];
+
+    private final RateLimit[] limits;
+    private final ConcurrentMap<String, RateLimit[]> limitsByLogger = new ConcurrentHashMap<>();
+
+    RateLimiter(final RateLimit... limits) {
+        this.limits = limits.clone();
+        // Longest prefixes first, so that the most specific limit wins
+        Arrays.sort(this.limits, Comparator.comparingInt((RateLimit limit) -> limit.getLogger().length()).reversed());
+    }
+
+    /**
+     * @return The limit of the event, null if it is not limited
+     */
+    RateLimit limitOf(final LogEvent event) {
+        String loggerName = event.getLoggerName() != null ? event.getLoggerName() : "";
+        RateLimit[] candidates = limitsByLogger.get(loggerName);
+        if (candidates == null) {
+            candidates = limitsByLogger.computeIfAbsent(loggerName, this::matching);
+        }
+        for (RateLimit limit : candidates) {
+            if (limit.appliesTo(event.getLevel())) {
+                return limit;
+            }
+        }
+        return null;
+    }
+
+    private RateLimit[] matching(final String loggerName) {
+        List<RateLimit> matching = new ArrayList<>();
+        for (RateLimit limit : limits) {
+            if (loggerName.startsWith(limit.getLogger())) {
+                matching.add(limit);
+            }
+        }
+        return matching.isEmpty() ? NONE : matching.toArray(new RateLimit[matching.size()]);
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import java.io.IOException;
+
+/**
+ * A {@link BulkSender} that reports, for each bulk it sends, how many of its items had to be sent again.
+ * The count belongs to the call, unlike the totals of the sender shared by every thread sending through it.
+ */
+interface RetryReportingSender extends BulkSender {
+
+    /**
+     * Sends a UTF-8 encoded bulk body, as {@link #send(byte[], int, int)} does.
+     *
+     * @return The number of items of this bulk that were sent again
+     */
+    int sendReportingRetries(byte[] body, int offset, int length) throws IOException;
+
+    /**
+     * Sends a bulk body through any sender, those that cannot tell reporting no retries.
+     *
+     * @return The number of items of this bulk that were sent again
+     */
+    static int send(final BulkSender sender, final byte[] body, final int offset, final int length) throws IOException {
+        if (sender instanceof RetryReportingSender) {
+            return ((RetryReportingSender) sender).sendReportingRetries(body, offset, length);
+        }
+        sender.send(body, offset, length);
+        return 0;
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ *  Copyright 2017 Marcelo Grossi
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0*
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead queue of bulk items that could not be delivered, kept on disk until
+ * ElasticSearch is reachable again.
+ * <p>
+ * Items are appended, in the bulk wire format, to segment files under a directory.
+ * Each record is prefixed by its length, item count and CRC32 so that a record torn
+ * by a crash is detected and skipped. Each record is forced to the storage device before
+ * {@link #append(byte[], int, int, int)} returns. A replay thread periodically sends the oldest
+ * segment through the {@link BulkSender} and deletes it once fully delivered, so
+ * spilled items survive a restart of the JVM. The items of a record that are still
+ * rejected are appended again as a new record. Delivery is at least once: records of
+ * a partially replayed segment may be sent again after a restart.
+ * <p>
+ * The total size of the segments is bounded, items that do not fit are dropped.
+ */
+class SpillQueue {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spill";
+    private static final int HEADER_LENGTH = 12;
+    private static final long MAX_SEGMENT_BYTES = 16L * 1024 * 1024;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final Deque<Path> segments = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    private long totalBytes;
+    private long nextSequence;
+    private FileChannel writer;
+    private long writerBytes;
+    private long droppedItems;
+
+    private Path replaySegment;
+    private long replayPosition;
+    private Thread replayer;
+    private volatile boolean running;
+    private boolean closed;
+
+    /**
+     * @param directory The directory holding the segment files, created if needed
+     * @param maxBytes The maximum size of all the segments together
+     * @throws IOException If the directory cannot be created or read
+     */
+    SpillQueue(final Path directory, final long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = Math.max(1L, Math.min(MAX_SEGMENT_BYTES, maxBytes / 4));
+        Files.createDirectories(directory);
+        List<Path> existing = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream) {
+                existing.add(segment);
+            }
+        }
+        // Sequence numbers are zero padded, so names sort in creation order
+        Collections.sort(existing);
+        for (Path segment : existing) {
+            segments.add(segment);
+            totalBytes += Files.size(segment);
+            nextSequence = Math.max(nextSequence, sequenceOf(segment) + 1);
+        }
+        if (!segments.isEmpty()) {
+            LOGGER.info("Found {} bytes of spilled bulk items in {}.", totalBytes, directory);
+        }
+    }
+
+    private static long sequenceOf(final Path segment) {
+        String name = segment.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Appends bulk items to the queue.
+     *
+     * @param items The action and document lines of the items
+     * @param itemCount The number of items
+     * @return False if the items were dropped because the queue is full
+     * @throws IOException If the items could not be written or the queue is closed
+     */
+    synchronized boolean append(final byte[] items, final int offset, final int length, final int itemCount) throws IOException {
+        if (closed) {
+            throw new IOException("Spill queue in " + directory + " is closed");
+        }
+        long recordBytes = HEADER_LENGTH + (long) length;
+        if (totalBytes + recordBytes > maxBytes) {
+            droppedItems += itemCount;
+            return false;
+        }
+        if (writer == null || writerBytes >= segmentBytes) {
+            roll();
+        }
+        crc.reset();
+        crc.update(items, offset, length);
+        header.clear();
+        header.putInt(length).putInt(itemCount).putInt((int) crc.getValue()).flip();
+        writeFully(header);
+        writeFully(ByteBuffer.wrap(items, offset, length));
+        // Spilled items are only kept once on disk, a crash must not lose what the page cache held
+        writer.force(false);
+        writerBytes += recordBytes;
+        totalBytes += recordBytes;
+        return true;
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            writer.write(buffer);
+        }
+    }
+
+    private void roll() throws IOException {
+        closeWriter();
+        Path segment = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+        writer = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        writerBytes = 0;
+        segments.add(segment);
+    }
+
+    private void closeWriter() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * @return The oldest segment, closing it for writes if it is still being written
+     */
+    private synchronized Path oldestSegment() throws IOException {
+        Path oldest = segments.peekFirst();
+        if (oldest != null && writer != null && oldest.equals(segments.peekLast())) {
+            closeWriter();
+        }
+        return oldest;
+    }
+
+    private synchronized void delete(final Path segment) throws IOException {
+        long size = Files.size(segment);
+        Files.deleteIfExists(segment);
+        segments.remove(segment);
+        totalBytes = Math.max(0L, totalBytes - size);
+    }
+
+    /**
+     * Sends the spilled items, oldest first, until the queue is empty or a send fails.
+     *
+     * @return True if the queue was fully drained
+     */
+    boolean replay(final BulkSender sender) {
+        try {
+            Path segment;
+            while ((segment = oldestSegment()) != null) {
+                if (!segment.equals(replaySegment)) {
+                    replaySegment = segment;
+                    replayPosition = 0L;
+                }
+                if (!replay(segment, sender)) {
+                    return false;
+                }
+                delete(segment);
+            }
+            return true;
+        } catch (IOException ex) {
+            LOGGER.error("Failed to replay spilled bulk items from {}.", directory, ex);
+            return false;
+        }
+    }
+
+    private boolean replay(final Path segment, final BulkSender sender) throws IOException {
+        try (FileChannel reader = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer recordHeader = ByteBuffer.allocate(HEADER_LENGTH);
+            long size = reader.size();
+            while (replayPosition < size) {
+                recordHeader.clear();
+                if (!readFully(reader, recordHeader, replayPosition)) {
+                    break;
+                }
+                recordHeader.flip();
+                int length = recordHeader.getInt();
+                int itemCount = recordHeader.getInt();
+                int checksum = recordHeader.getInt();
+                if (length < 0 || replayPosition + HEADER_LENGTH + length > size) {
+                    break;
+                }
+                byte[] items = new byte[length];
+                readFully(reader, ByteBuffer.wrap(items), replayPosition + HEADER_LENGTH);
+                CRC32 recordCrc = new CRC32();
+                recordCrc.update(items, 0, length);
+                if ((int) recordCrc.getValue() != checksum) {
+                    break;
+                }
+                try {
+                    sender.send(items, 0, length);
+                } catch (CircuitOpenException ex) {
+                    return false;
+                } catch (BulkRejectedException ex) {
+                    // Some of the items made it, only the rest is kept for the next attempt
+                    requeue(ex, itemCount);
+                    replayPosition += HEADER_LENGTH + length;
+                    return false;
+                } catch (Exception ex) {
+                    LOGGER.warn("Failed to replay spilled bulk items, will retry later.", ex);
+                    return false;
+                }
+                replayPosition += HEADER_LENGTH + length;
+            }
+            if (replayPosition < size) {
+                LOGGER.warn("Discarding {} bytes of corrupted spilled data in {}.", size - replayPosition, segment);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Appends the items of a replayed record still rejected as a record of their own.
+     */
+    private void requeue(final BulkRejectedException rejection, final int itemCount) throws IOException {
+        byte[] items = rejection.getItems();
+        if (append(items, 0, items.length, rejection.getItemCount())) {
+            LOGGER.warn("{} of {} spilled bulk items still rejected, will retry later.", rejection.getItemCount(), itemCount);
+        } else {
+            LOGGER.error("Spill queue is full, dropped {} of {} spilled bulk items still rejected.", rejection.getItemCount(), itemCount);
+        }
+    }
+
+    private static boolean readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                return false;
+            }
+            offset += read;
+        }
+        return true;
+    }
+
+    /**
+     * Starts the thread replaying the queue every {@code intervalMillis} through the given sender.
+     */
+    synchronized void start(final String name, final BulkSender sender, final long intervalMillis) {
+        running = true;
+        replayer = new Thread(() -> {
+            while (running) {
+                if (!isEmpty()) {
+                    replay(sender);
+                }
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }, "ElasticSearchRestAppender-" + name + "-replay");
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    synchronized boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    /**
+     * @return The number of items dropped since the queue was created because it was full
+     */
+    synchronized long getDroppedItems() {
+        return droppedItems;
+    }
+
+    /**
+     * Stops the replay thread and closes the segment being written. Spilled items stay on disk,
+     * items appended afterwards are refused.
+     */
+    void close() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = replayer;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            closed = true;
+            try {
+                closeWriter();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to close spill segment in {}.", directory, ex);
+            }
+        }
+    }
+
+}
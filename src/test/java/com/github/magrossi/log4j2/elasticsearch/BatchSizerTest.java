@@ -0,0 +1,125 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchSizerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(1000);
+
+    @Test
+    public void keepsFixedValues() {
+        BatchSizer sizer = BatchSizer.fixed(200, 2000L);
+
+        sizer.bulkSent(200, SLOW, true);
+        sizer.lingerExpired(1);
+
+        assertThat(sizer.isAdaptive()).isFalse();
+        assertThat(sizer.getBulkSize()).isEqualTo(200);
+        assertThat(sizer.getDelayTime()).isEqualTo(2000L);
+    }
+
+    @Test
+    public void startsFromTheSmallestBulkAndLongestDelay() {
+        BatchSizer sizer = BatchSizer.adaptive(10, 330, 100L, 2000L, 500L);
+
+        assertThat(sizer.getBulkSize()).isEqualTo(10);
+        assertThat(sizer.getDelayTime()).isEqualTo(2000L);
+    }
+
+    @Test
+    public void growsFullBulksDeliveredWithinTargetLatency() {
+        BatchSizer sizer = BatchSizer.adaptive(10, 330, 100L, 2000L, 500L);
+
+        sizer.bulkSent(10, FAST, false);
+        sizer.bulkSent(20, FAST, false);
+        sizer.bulkSent(5, FAST, false);
+
+        assertThat(sizer.getBulkSize()).isEqualTo(30);
+    }
+
+    @Test
+    public void doesNotGrowPastTheLargestBulk() {
+        BatchSizer sizer = BatchSizer.adaptive(10, 330, 100L, 2000L, 500L);
+
+        for (int i = 0; i < 100; i++) {
+            sizer.bulkSent(sizer.getBulkSize(), FAST, false);
+        }
+
+        assertThat(sizer.getBulkSize()).isEqualTo(330);
+    }
+
+    @Test
+    public void halvesBulksOnRejectionsSlownessAndFailures() {
+        BatchSizer sizer = BatchSizer.adaptive(10, 330, 100L, 2000L, 500L);
+        for (int i = 0; i < 100; i++) {
+            sizer.bulkSent(sizer.getBulkSize(), FAST, false);
+        }
+
+        sizer.bulkSent(330, FAST, true);
+        assertThat(sizer.getBulkSize()).isEqualTo(165);
+        sizer.bulkSent(165, SLOW, false);
+        assertThat(sizer.getBulkSize()).isEqualTo(82);
+        sizer.bulkFailed(82);
+        assertThat(sizer.getBulkSize()).isEqualTo(41);
+        sizer.bulkFailed(41);
+        sizer.bulkFailed(20);
+        assertThat(sizer.getBulkSize()).isEqualTo(10);
+    }
+
+    @Test
+    public void ignoresBulksBuiltBeforeTheLastDecrease() {
+        BatchSizer sizer = BatchSizer.adaptive(10, 330, 100L, 2000L, 500L);
+        for (int i = 0; i < 100; i++) {
+            sizer.bulkSent(sizer.getBulkSize(), FAST, false);
+        }
+
+        sizer.bulkSent(330, SLOW, false);
+        sizer.bulkSent(330, SLOW, false);
+
+        assertThat(sizer.getBulkSize()).isEqualTo(165);
+    }
+
+    @Test
+    public void shortensDelayWhenItExpiresOnFewEvents() {
+        BatchSizer sizer = BatchSizer.adaptive(100, 1000, 100L, 2000L, 500L);
+
+        sizer.lingerExpired(1);
+        assertThat(sizer.getDelayTime()).isEqualTo(1000L);
+        sizer.lingerExpired(1);
+        sizer.lingerExpired(1);
+        sizer.lingerExpired(1);
+        sizer.lingerExpired(1);
+        assertThat(sizer.getDelayTime()).isEqualTo(100L);
+    }
+
+    @Test
+    public void lengthensDelayWhenItExpiresOnHalfABulk() {
+        BatchSizer sizer = BatchSizer.adaptive(100, 1000, 100L, 2000L, 500L);
+        sizer.lingerExpired(1);
+
+        sizer.lingerExpired(50);
+        assertThat(sizer.getDelayTime()).isEqualTo(1250L);
+        sizer.lingerExpired(30);
+        assertThat(sizer.getDelayTime()).isEqualTo(1250L);
+        for (int i = 0; i < 10; i++) {
+            sizer.lingerExpired(100);
+        }
+        assertThat(sizer.getDelayTime()).isEqualTo(2000L);
+    }
+
+    @Test
+    public void tunesNothingWithoutBulkSize() {
+        BatchSizer sizer = BatchSizer.adaptive(10, 0, 100L, 2000L, 500L);
+
+        sizer.lingerExpired(1);
+
+        assertThat(sizer.isAdaptive()).isFalse();
+        assertThat(sizer.getBulkSize()).isZero();
+        assertThat(sizer.getDelayTime()).isEqualTo(2000L);
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BufferStripeTest {
+
+    @Test
+    public void roundsStripesUpToPowersOfTwo() {
+        assertThat(BufferStripe.count(1)).isEqualTo(1);
+        assertThat(BufferStripe.count(3)).isEqualTo(4);
+        assertThat(BufferStripe.count(8)).isEqualTo(8);
+        assertThat(BufferStripe.count(33)).isEqualTo(64);
+    }
+
+    @Test
+    public void capsStripesAt64() {
+        assertThat(BufferStripe.count(1000)).isEqualTo(64);
+    }
+
+    @Test
+    public void usesOneStripePerProcessorByDefault() {
+        int stripes = BufferStripe.count(0);
+
+        assertThat(Integer.bitCount(stripes)).isEqualTo(1);
+        assertThat(stripes).isGreaterThanOrEqualTo(Math.min(Runtime.getRuntime().availableProcessors(), 64));
+    }
+
+    @Test
+    public void rebuildsActionLineOnlyWhenIndexChanges() {
+        BufferStripe stripe = new BufferStripe();
+        IndexRouter router = new IndexRouter("logs-", null, "log", "index", 10);
+
+        byte[] actionLine = stripe.actionLine(event("acme"), router);
+
+        assertThat(stripe.actionLine(event("acme"), router)).isSameAs(actionLine);
+        assertThat(new String(actionLine)).isEqualTo("{\"index\":{\"_index\":\"logs-\",\"_type\":\"log\"}}\n");
+    }
+
+    @Test
+    public void tracksRunsOfItemsSharingAnIndex() {
+        BufferStripe stripe = new BufferStripe();
+        IndexRouter router = new IndexRouter("logs-${ctx:tenant}", null, "log", "index", 10);
+        addItem(stripe, router, "a");
+        addItem(stripe, router, "a");
+        addItem(stripe, router, "b");
+        List<String> runs = new ArrayList<>();
+
+        stripe.forEachRun((indexName, from, to, items) -> runs.add(indexName + ":" + items));
+
+        assertThat(runs).containsExactly("logs-a:2", "logs-b:1");
+    }
+
+    @Test
+    public void forgetsRunsOnceBufferIsReset() {
+        BufferStripe stripe = new BufferStripe();
+        IndexRouter router = new IndexRouter("logs-${ctx:tenant}", null, "log", "index", 10);
+        addItem(stripe, router, "a");
+        stripe.buffer.reset();
+        addItem(stripe, router, "b");
+        List<String> runs = new ArrayList<>();
+
+        stripe.forEachRun((indexName, from, to, items) -> runs.add(indexName + ":" + (to - from)));
+
+        assertThat(runs).containsExactly("logs-b:" + stripe.buffer.size());
+    }
+
+    private static void addItem(BufferStripe stripe, IndexRouter router, String tenant) {
+        byte[] document = "{}".getBytes(StandardCharsets.UTF_8);
+        stripe.buffer.addItem(stripe.actionLine(event(tenant), router), document, 0, document.length);
+    }
+
+    private static LogEvent event(String tenant) {
+        SortedArrayStringMap context = new SortedArrayStringMap();
+        context.putValue("tenant", tenant);
+        return Log4jLogEvent.newBuilder().setContextData(context).setMessage(new SimpleMessage("some message")).build();
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.core.layout.AbstractLayout;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BulkBufferTest {
+
+    private static final byte[] SOME_ACTION_LINE = "{\"index\":{}}\n".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void writesActionAndDocumentLines() {
+        BulkBuffer buffer = new BulkBuffer();
+
+        addItem(buffer, "{\"a\":1}");
+        addItem(buffer, "{\"b\":2}");
+
+        assertThat(buffer.items()).isEqualTo(2);
+        assertThat(contentOf(buffer)).isEqualTo("{\"index\":{}}\n{\"a\":1}\n{\"index\":{}}\n{\"b\":2}\n");
+    }
+
+    @Test
+    public void doesNotDuplicateDocumentLineTerminators() {
+        BulkBuffer buffer = new BulkBuffer();
+
+        addItem(buffer, "{\"a\":1}\r\n");
+
+        assertThat(contentOf(buffer)).isEqualTo("{\"index\":{}}\n{\"a\":1}\n");
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() {
+        BulkBuffer buffer = new BulkBuffer();
+        StringBuilder document = new StringBuilder("{\"m\":\"");
+        for (int i = 0; i < 100000; i++) {
+            document.append('x');
+        }
+        document.append("\"}");
+
+        addItem(buffer, document.toString());
+        addItem(buffer, document.toString());
+
+        assertThat(buffer.size()).isEqualTo(2 * (SOME_ACTION_LINE.length + document.length() + 1));
+    }
+
+    @Test
+    public void layoutsEncodeDocumentsStraightIntoTheBuffer() {
+        BulkBuffer buffer = new BulkBuffer();
+        byte[] document = "{\"a\":1}\n".getBytes(StandardCharsets.UTF_8);
+
+        buffer.beginItem(SOME_ACTION_LINE);
+        AbstractLayout.writeTo(document, 0, document.length, buffer);
+        buffer.endItem();
+
+        assertThat(buffer.items()).isEqualTo(1);
+        assertThat(contentOf(buffer)).isEqualTo("{\"index\":{}}\n{\"a\":1}\n");
+    }
+
+    @Test
+    public void growsWhenLayoutsDrainIt() {
+        BulkBuffer buffer = new BulkBuffer();
+        byte[] document = new byte[200000];
+        Arrays.fill(document, (byte) 'x');
+
+        buffer.beginItem(SOME_ACTION_LINE);
+        AbstractLayout.writeTo(document, 0, document.length, buffer);
+        buffer.endItem();
+
+        assertThat(buffer.size()).isEqualTo(SOME_ACTION_LINE.length + document.length + 1);
+        assertThat(buffer.array()[buffer.size() - 2]).isEqualTo((byte) 'x');
+    }
+
+    @Test
+    public void discardsItemsThatAreNotEnded() {
+        BulkBuffer buffer = new BulkBuffer();
+        byte[] document = "{\"a\":1}".getBytes(StandardCharsets.UTF_8);
+
+        buffer.beginItem(SOME_ACTION_LINE);
+        buffer.getByteBuffer().put("{\"broken".getBytes(StandardCharsets.UTF_8));
+        buffer.beginItem(SOME_ACTION_LINE);
+        buffer.getByteBuffer().put(document);
+        buffer.endItem();
+
+        assertThat(buffer.items()).isEqualTo(1);
+        assertThat(contentOf(buffer)).isEqualTo("{\"index\":{}}\n{\"a\":1}\n");
+    }
+
+    @Test
+    public void appendsItemsOfAnotherBuffer() {
+        BulkBuffer buffer = new BulkBuffer();
+        BulkBuffer other = new BulkBuffer(16);
+        addItem(buffer, "{\"a\":1}");
+        addItem(other, "{\"b\":2}");
+        addItem(other, "{\"c\":3}");
+
+        buffer.addItems(other);
+
+        assertThat(buffer.items()).isEqualTo(3);
+        assertThat(contentOf(buffer)).isEqualTo("{\"index\":{}}\n{\"a\":1}\n{\"index\":{}}\n{\"b\":2}\n{\"index\":{}}\n{\"c\":3}\n");
+    }
+
+    @Test
+    public void appendsFieldsToTheLastDocument() {
+        BulkBuffer buffer = new BulkBuffer();
+        byte[] fields = "\"count\":2".getBytes(StandardCharsets.UTF_8);
+        addItem(buffer, "{\"a\":1}");
+        addItem(buffer, "{}");
+        addItem(buffer, "[]");
+
+        assertThat(buffer.appendFields(fields)).isFalse();
+        buffer.reset();
+        addItem(buffer, "{\"a\":1}");
+        assertThat(buffer.appendFields(fields)).isTrue();
+        addItem(buffer, "{}");
+        assertThat(buffer.appendFields(fields)).isTrue();
+
+        assertThat(buffer.items()).isEqualTo(2);
+        assertThat(contentOf(buffer)).isEqualTo("{\"index\":{}}\n{\"a\":1,\"count\":2}\n{\"index\":{}}\n{\"count\":2}\n");
+    }
+
+    @Test
+    public void isEmptyAfterReset() {
+        BulkBuffer buffer = new BulkBuffer();
+        addItem(buffer, "{}");
+
+        buffer.reset();
+
+        assertThat(buffer.isEmpty()).isTrue();
+        assertThat(buffer.size()).isZero();
+    }
+
+    private static void addItem(BulkBuffer buffer, String document) {
+        byte[] bytes = document.getBytes(StandardCharsets.UTF_8);
+        buffer.addItem(SOME_ACTION_LINE, bytes, 0, bytes.length);
+    }
+
+    private static String contentOf(BulkBuffer buffer) {
+        return new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BulkCompactorTest {
+
+    private static final String LOGS = "{\"index\":{\"_index\":\"logs-20170101\",\"_type\":\"log\"}}\n";
+
+    @Test
+    public void reducesActionLinesOfItemsSharingAnIndex() {
+        BulkCompactor compactor = new BulkCompactor();
+
+        assertThat(compact(compactor, "x" + LOGS + "{\"a\":1}\n" + LOGS + "{\"b\":2}\n")).isTrue();
+
+        assertThat(new String(compactor.array(), 0, compactor.size(), StandardCharsets.UTF_8))
+                .isEqualTo("{\"index\":{}}\n{\"a\":1}\n{\"index\":{}}\n{\"b\":2}\n");
+        assertThat(compactor.endpoint()).isEqualTo("logs-20170101/log/_bulk");
+    }
+
+    @Test
+    public void keepsTheCreateAction() {
+        BulkCompactor compactor = new BulkCompactor();
+
+        assertThat(compact(compactor, "x{\"create\":{\"_index\":\"logs\",\"_type\":\"_doc\"}}\n{\"a\":1}\n")).isTrue();
+
+        assertThat(new String(compactor.array(), 0, compactor.size(), StandardCharsets.UTF_8)).isEqualTo("{\"create\":{}}\n{\"a\":1}\n");
+        assertThat(compactor.endpoint()).isEqualTo("logs/_doc/_bulk");
+    }
+
+    @Test
+    public void leavesItemsOfSeveralIndicesAlone() {
+        String other = "{\"index\":{\"_index\":\"logs-20170102\",\"_type\":\"log\"}}\n";
+
+        assertThat(compact(new BulkCompactor(), "x" + LOGS + "{\"a\":1}\n" + other + "{\"b\":2}\n")).isFalse();
+    }
+
+    @Test
+    public void leavesUnknownActionLinesAlone() {
+        assertThat(compact(new BulkCompactor(), "x{\"index\":{\"_index\":\"logs\",\"_id\":\"1\"}}\n{\"a\":1}\n")).isFalse();
+    }
+
+    private static boolean compact(BulkCompactor compactor, String body) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        return compactor.compact(bytes, 1, bytes.length - 1);
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BulkResponseTest {
+
+    @Test
+    public void skipsItemsWhenThereAreNoErrors() {
+        BulkResponse response = parse("{\"took\":30,\"errors\":false,\"items\":[not even json");
+
+        assertThat(response.hasFailures()).isFalse();
+    }
+
+    @Test
+    public void readsFailedItems() {
+        BulkResponse response = parse("{\"took\":30,\"errors\":true,\"items\":["
+                + "{\"index\":{\"_index\":\"logs\",\"_id\":\"1\",\"_shards\":{\"total\":2,\"failed\":0},\"status\":201}},"
+                + "{\"index\":{\"_index\":\"logs\",\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\","
+                + "\"reason\":\"rejected \\\"bulk\\\"\",\"caused_by\":{\"type\":\"x\",\"stack\":[1,2.5e3,null,true]}}}},"
+                + "{ \"create\" : { \"_index\" : \"logs\", \"status\" : 400, \"error\" : { \"type\" : \"mapper_parsing_exception\", \"reason\" : \"failed to parse\" } } }"
+                + "]}");
+
+        assertThat(response.getFailures()).hasSize(2);
+        BulkResponse.Failure rejected = response.getFailures().get(0);
+        assertThat(rejected.getItem()).isEqualTo(1);
+        assertThat(rejected.getStatus()).isEqualTo(429);
+        assertThat(rejected.isRetriable()).isTrue();
+        assertThat(rejected.toString()).isEqualTo("[429] es_rejected_execution_exception: rejected \"bulk\"");
+        BulkResponse.Failure invalid = response.getFailures().get(1);
+        assertThat(invalid.getItem()).isEqualTo(2);
+        assertThat(invalid.isRetriable()).isFalse();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidJson() {
+        parse("{\"errors\":true,\"items\":[{\"index\":");
+    }
+
+    private static BulkResponse parse(String json) {
+        return BulkResponse.parse(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
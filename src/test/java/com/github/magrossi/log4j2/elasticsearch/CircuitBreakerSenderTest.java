@@ -0,0 +1,174 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerSenderTest {
+
+    private static final byte[] SOME_BULK = "a\n1\n".getBytes();
+
+    private final ScriptedSender delegate = new ScriptedSender();
+
+    @Test
+    public void opensAfterConsecutiveFailuresToReachTheCluster() {
+        CircuitBreakerSender sender = new CircuitBreakerSender(delegate, 3, 60000L);
+
+        failToConnect(sender, 3);
+
+        assertThat(sender.getState()).isEqualTo(CircuitBreakerSender.State.OPEN);
+        assertFailsFast(sender);
+        assertThat(delegate.calls).isEqualTo(3);
+    }
+
+    @Test
+    public void countsOnlyConsecutiveFailures() throws IOException {
+        CircuitBreakerSender sender = new CircuitBreakerSender(delegate, 3, 60000L);
+
+        failToConnect(sender, 2);
+        sender.send(SOME_BULK, 0, SOME_BULK.length);
+        failToConnect(sender, 2);
+
+        assertThat(sender.getState()).isEqualTo(CircuitBreakerSender.State.CLOSED);
+    }
+
+    @Test
+    public void doesNotOpenWhenTheClusterAnswers() {
+        CircuitBreakerSender sender = new CircuitBreakerSender(delegate, 1, 60000L);
+
+        delegate.failures.add(new HttpResponseException(HttpStatus.SC_BAD_REQUEST, "Bad Request"));
+        delegate.failures.add(new HttpResponseException(429, "Too Many Requests"));
+        delegate.failures.add(new BulkRejectedException("1 bulk item still rejected", SOME_BULK, 1));
+        for (int i = 0; i < 3; i++) {
+            try {
+                sender.send(SOME_BULK, 0, SOME_BULK.length);
+                fail("Expected the failure to be thrown");
+            } catch (IOException ex) {
+                assertThat(ex).isNotInstanceOf(CircuitOpenException.class);
+            }
+        }
+
+        assertThat(sender.getState()).isEqualTo(CircuitBreakerSender.State.CLOSED);
+    }
+
+    @Test
+    public void opensOnUnavailableClusterAndItemsLeftOverByAConnectionFailure() {
+        CircuitBreakerSender sender = new CircuitBreakerSender(delegate, 2, 60000L);
+        BulkRejectedException leftOver = new BulkRejectedException("1 bulk item could not be sent again", SOME_BULK, 1);
+        leftOver.initCause(new ConnectException("Connection refused"));
+
+        delegate.failures.add(new HttpResponseException(HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable"));
+        delegate.failures.add(leftOver);
+        for (int i = 0; i < 2; i++) {
+            try {
+                sender.send(SOME_BULK, 0, SOME_BULK.length);
+            } catch (IOException ex) {
+                // Expected
+            }
+        }
+
+        assertThat(sender.getState()).isEqualTo(CircuitBreakerSender.State.OPEN);
+    }
+
+    @Test
+    public void letsASingleProbeThroughOnceTheDelayIsOverAndClosesWhenItSucceeds() throws IOException {
+        CircuitBreakerSender sender = new CircuitBreakerSender(delegate, 1, 0L);
+        failToConnect(sender, 1);
+        assertThat(sender.getState()).isEqualTo(CircuitBreakerSender.State.HALF_OPEN);
+        assertThat(sender.millisUntilProbe()).isLessThanOrEqualTo(0L);
+
+        sender.send(SOME_BULK, 0, SOME_BULK.length);
+
+        assertThat(sender.getState()).isEqualTo(CircuitBreakerSender.State.CLOSED);
+        assertThat(delegate.calls).isEqualTo(2);
+    }
+
+    @Test
+    public void staysOpenWhenTheProbeFails() {
+        CircuitBreakerSender sender = new CircuitBreakerSender(delegate, 1, 0L);
+        failToConnect(sender, 1);
+
+        failToConnect(sender, 1);
+
+        assertThat(sender.isOpen()).isTrue();
+        assertThat(delegate.calls).isEqualTo(2);
+    }
+
+    @Test
+    public void failsFastWhileTheProbeIsInFlight() throws Exception {
+        CircuitBreakerSender sender = new CircuitBreakerSender(delegate, 1, 0L);
+        failToConnect(sender, 1);
+        delegate.whileSending = () -> assertFailsFast(sender);
+
+        sender.send(SOME_BULK, 0, SOME_BULK.length);
+
+        assertThat(delegate.calls).isEqualTo(2);
+        assertThat(sender.getState()).isEqualTo(CircuitBreakerSender.State.CLOSED);
+    }
+
+    @Test
+    public void reportsTheRetriesOfItsDelegate() throws IOException {
+        CircuitBreakerSender sender = new CircuitBreakerSender(new RetryReportingSender() {
+            @Override
+            public void send(String body) {
+            }
+
+            @Override
+            public int sendReportingRetries(byte[] body, int offset, int length) {
+                return 2;
+            }
+        }, 1, 60000L);
+
+        assertThat(sender.sendReportingRetries(SOME_BULK, 0, SOME_BULK.length)).isEqualTo(2);
+        assertThat(new CircuitBreakerSender(delegate, 1, 60000L).sendReportingRetries(SOME_BULK, 0, SOME_BULK.length)).isZero();
+    }
+
+    private void failToConnect(CircuitBreakerSender sender, int times) {
+        for (int i = 0; i < times; i++) {
+            delegate.failures.add(new ConnectException("Connection refused"));
+            try {
+                sender.send(SOME_BULK, 0, SOME_BULK.length);
+                fail("Expected the connection failure to be thrown");
+            } catch (IOException ex) {
+                assertThat(ex).isInstanceOf(ConnectException.class);
+            }
+        }
+    }
+
+    private static void assertFailsFast(CircuitBreakerSender sender) {
+        try {
+            sender.send(SOME_BULK, 0, SOME_BULK.length);
+            fail("Expected the circuit to be open");
+        } catch (IOException ex) {
+            assertThat(ex).isInstanceOf(CircuitOpenException.class);
+        }
+    }
+
+    private static class ScriptedSender implements BulkSender {
+        private final Deque<IOException> failures = new ArrayDeque<>();
+        private Runnable whileSending;
+        private int calls;
+
+        @Override
+        public void send(String body) throws IOException {
+            calls++;
+            if (whileSending != null) {
+                Runnable action = whileSending;
+                whileSending = null;
+                action.run();
+            }
+            IOException failure = failures.poll();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -1,25 +1,35 @@
 package com.github.magrossi.log4j2.elasticsearch;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.util.EntityUtils;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -29,6 +39,8 @@ public class ElasticBulkSenderTest {
     private static final String SOME_JSON_BODY = "{}";
     private static final Integer SOME_ERROR_CODE = 500;
     private static final Integer SOME_SUCCESS_CODE = 200;
+    private static final Map<String, String> FILTERED_RESPONSE =
+            Collections.singletonMap("filter_path", "errors,items.*.status,items.*.error.type,items.*.error.reason");
 
     @Mock
     private StatusLine mockStatusLine;
@@ -39,11 +51,11 @@ public class ElasticBulkSenderTest {
     @Mock
     private RestClient mockRestClient;
 
-    @InjectMocks
     private ElasticBulkSender elasticBulkSender;
 
     @Before
     public void setUp() throws Exception {
+        elasticBulkSender = ElasticBulkSender.newBuilder().withRestClient(mockRestClient).withRetryBackoff(1L).build();
         when(mockStatusLine.getStatusCode()).thenReturn(SOME_SUCCESS_CODE);
         when(mockResponse.getStatusLine()).thenReturn(mockStatusLine);
         when(mockRestClient.performRequest(anyString(), anyString(), anyMapOf(String.class, String.class), isA(HttpEntity.class))).thenReturn(mockResponse);
@@ -51,14 +63,245 @@ public class ElasticBulkSenderTest {
 
     @Test
     public void delegatesSendToRestClient() throws IOException {
-        NStringEntity bodyEntity = new NStringEntity(SOME_JSON_BODY, ContentType.APPLICATION_JSON);
+        elasticBulkSender.send(SOME_JSON_BODY);
+
+        ArgumentCaptor<HttpEntity> argCaptor = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(mockRestClient).performRequest(eq("POST"), eq("_bulk"), eq(FILTERED_RESPONSE), argCaptor.capture());
+        HttpEntity actualBodyEntity = argCaptor.getValue();
+        assertThat(actualBodyEntity.getContentType().getValue()).isEqualTo(ContentType.APPLICATION_JSON.toString());
+        assertThat(EntityUtils.toString(actualBodyEntity)).isEqualTo(SOME_JSON_BODY);
+    }
+
+    @Test
+    public void sendsByteBodyWithoutCopyingIt() throws IOException {
+        byte[] body = ("xx" + SOME_JSON_BODY + "xx").getBytes(StandardCharsets.UTF_8);
+
+        elasticBulkSender.send(body, 2, SOME_JSON_BODY.length());
+
+        ArgumentCaptor<HttpEntity> argCaptor = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(mockRestClient).performRequest(eq("POST"), eq("_bulk"), eq(FILTERED_RESPONSE), argCaptor.capture());
+        HttpEntity actualBodyEntity = argCaptor.getValue();
+        assertThat(actualBodyEntity.getContentType().getValue()).isEqualTo(ContentType.APPLICATION_JSON.toString());
+        assertThat(EntityUtils.toString(actualBodyEntity)).isEqualTo(SOME_JSON_BODY);
+        body[2] = '[';
+        assertThat(EntityUtils.toString(actualBodyEntity)).isEqualTo("[}");
+    }
+
+    @Test
+    public void sendsGzipCompressedBodyWhenCompressionLevelIsSet() throws IOException {
+        ElasticBulkSender compressingSender = ElasticBulkSender.newBuilder().withRestClient(mockRestClient).withCompressionLevel(Deflater.BEST_SPEED).build();
+        byte[] body = SOME_JSON_BODY.getBytes(StandardCharsets.UTF_8);
+
+        compressingSender.send(body, 0, body.length);
+
+        ArgumentCaptor<HttpEntity> argCaptor = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(mockRestClient).performRequest(eq("POST"), eq("_bulk"), eq(FILTERED_RESPONSE), argCaptor.capture());
+        HttpEntity actualBodyEntity = argCaptor.getValue();
+        assertThat(actualBodyEntity.getContentEncoding().getValue()).isEqualTo("gzip");
+        assertThat(actualBodyEntity.getContentType().getValue()).isEqualTo(ContentType.APPLICATION_JSON.toString());
+        assertThat(EntityUtils.toString(new GzipDecompressingEntity(actualBodyEntity))).isEqualTo(SOME_JSON_BODY);
+    }
+
+    @Test
+    public void doesNotReuseCompressorsOnceClosed() throws IOException {
+        ElasticBulkSender compressingSender = ElasticBulkSender.newBuilder().withRestClient(mockRestClient).withCompressionLevel(Deflater.BEST_SPEED).build();
+        byte[] body = SOME_JSON_BODY.getBytes(StandardCharsets.UTF_8);
+        compressingSender.send(body, 0, body.length);
+
+        compressingSender.close();
+        compressingSender.send(body, 0, body.length);
+
+        ArgumentCaptor<HttpEntity> argCaptor = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(mockRestClient, times(2)).performRequest(eq("POST"), eq("_bulk"), eq(FILTERED_RESPONSE), argCaptor.capture());
+        assertThat(EntityUtils.toString(new GzipDecompressingEntity(argCaptor.getAllValues().get(1)))).isEqualTo(SOME_JSON_BODY);
+    }
+
+    @Test
+    public void splitsBulkInHalvesWhenRejectedAsTooLarge() throws IOException {
+        String body = "a\n1\nb\n2\nc\n3\n";
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        when(mockStatusLine.getStatusCode()).thenReturn(HttpStatus.SC_REQUEST_TOO_LONG, SOME_SUCCESS_CODE);
+
+        elasticBulkSender.send(bytes, 0, bytes.length);
+
+        ArgumentCaptor<HttpEntity> argCaptor = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(mockRestClient, times(3)).performRequest(eq("POST"), eq("_bulk"), eq(FILTERED_RESPONSE), argCaptor.capture());
+        assertThat(EntityUtils.toString(argCaptor.getAllValues().get(1))).isEqualTo("a\n1\n");
+        assertThat(EntityUtils.toString(argCaptor.getAllValues().get(2))).isEqualTo("b\n2\nc\n3\n");
+    }
+
+    @Test
+    public void throwsOnlyTheSecondHalfWhenItFailsAfterTheFirstOneIsSent() throws IOException {
+        byte[] bytes = "a\n1\nb\n2\nc\n3\n".getBytes(StandardCharsets.UTF_8);
+        when(mockStatusLine.getStatusCode()).thenReturn(HttpStatus.SC_REQUEST_TOO_LONG, SOME_SUCCESS_CODE);
+        when(mockRestClient.performRequest(anyString(), anyString(), anyMapOf(String.class, String.class), isA(HttpEntity.class)))
+                .thenReturn(mockResponse, mockResponse).thenThrow(new ConnectException("Connection refused"));
+
+        try {
+            elasticBulkSender.send(bytes, 0, bytes.length);
+            fail("Expected the items of the second half to be thrown");
+        } catch (BulkRejectedException ex) {
+            assertThat(ex.getItemCount()).isEqualTo(2);
+            assertThat(new String(ex.getItems(), StandardCharsets.UTF_8)).isEqualTo("b\n2\nc\n3\n");
+            assertThat(ex.getCause()).isInstanceOf(ConnectException.class);
+        }
+    }
+
+    @Test(expected = HttpResponseException.class)
+    public void throwsWhenSingleItemIsRejectedAsTooLarge() throws IOException {
+        byte[] bytes = "a\n1\n".getBytes(StandardCharsets.UTF_8);
+        when(mockStatusLine.getStatusCode()).thenReturn(HttpStatus.SC_REQUEST_TOO_LONG);
+
+        elasticBulkSender.send(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void findsSplitPointAtAnItemBoundary() {
+        byte[] bytes = "xa\n1\nb\n2\nc\n3\nd\n4\n".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(ElasticBulkSender.splitPoint(bytes, 1, bytes.length - 1)).isEqualTo(9);
+        assertThat(ElasticBulkSender.splitPoint(bytes, 1, 4)).isEqualTo(-1);
+    }
+
+    @Test
+    public void resendsOnlyTheItemsRejectedForATransientReason() throws IOException {
+        byte[] bytes = "a\n1\nb\n2\nc\n3\n".getBytes(StandardCharsets.UTF_8);
+        when(mockResponse.getEntity()).thenReturn(
+                json("{\"took\":3,\"errors\":true,\"items\":[" + item(201) + "," + item(429) + "," + item(400) + "]}"),
+                json("{\"took\":1,\"errors\":false,\"items\":[" + item(201) + "]}"));
+
+        int retried = elasticBulkSender.sendReportingRetries(bytes, 0, bytes.length);
+
+        ArgumentCaptor<HttpEntity> argCaptor = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(mockRestClient, times(2)).performRequest(eq("POST"), eq("_bulk"), eq(FILTERED_RESPONSE), argCaptor.capture());
+        assertThat(EntityUtils.toString(argCaptor.getAllValues().get(1))).isEqualTo("b\n2\n");
+        assertThat(retried).isEqualTo(1);
+        assertThat(elasticBulkSender.getItemsRetried()).isEqualTo(1);
+        assertThat(elasticBulkSender.getItemsRejected()).isEqualTo(1);
+    }
+
+    @Test
+    public void doesNotResendItemsRejectedForGood() throws IOException {
+        byte[] bytes = "a\n1\nb\n2\n".getBytes(StandardCharsets.UTF_8);
+        when(mockResponse.getEntity()).thenReturn(json("{\"took\":3,\"errors\":true,\"items\":[" + item(201) + "," + item(400) + "]}"));
+
+        elasticBulkSender.send(bytes, 0, bytes.length);
+
+        verify(mockRestClient).performRequest(anyString(), anyString(), anyMapOf(String.class, String.class), isA(HttpEntity.class));
+    }
+
+    @Test
+    public void throwsRejectedItemsOnceRetriesAreExhausted() throws IOException {
+        byte[] bytes = "a\n1\nb\n2\n".getBytes(StandardCharsets.UTF_8);
+        when(mockResponse.getEntity()).thenAnswer(invocation -> json("{\"errors\":true,\"items\":[" + item(429) + "]}"));
+        ElasticBulkSender sender = ElasticBulkSender.newBuilder().withRestClient(mockRestClient).withMaxRetries(2).withRetryBackoff(1L).build();
+
+        try {
+            sender.send(bytes, 0, bytes.length);
+            fail("Expected the rejected items to be thrown");
+        } catch (BulkRejectedException ex) {
+            assertThat(ex.getItemCount()).isEqualTo(1);
+            assertThat(new String(ex.getItems(), StandardCharsets.UTF_8)).isEqualTo("a\n1\n");
+        }
+        verify(mockRestClient, times(3)).performRequest(anyString(), anyString(), anyMapOf(String.class, String.class), isA(HttpEntity.class));
+    }
+
+    @Test
+    public void throwsOnlyTheItemsLeftOverWhenResendingThemFails() throws IOException {
+        byte[] bytes = "a\n1\nb\n2\n".getBytes(StandardCharsets.UTF_8);
+        when(mockResponse.getEntity()).thenReturn(json("{\"errors\":true,\"items\":[" + item(201) + "," + item(429) + "]}"));
+        when(mockRestClient.performRequest(anyString(), anyString(), anyMapOf(String.class, String.class), isA(HttpEntity.class)))
+                .thenReturn(mockResponse).thenThrow(new ConnectException("Connection refused"));
+
+        try {
+            elasticBulkSender.send(bytes, 0, bytes.length);
+            fail("Expected the items left over to be thrown");
+        } catch (BulkRejectedException ex) {
+            assertThat(ex.getItemCount()).isEqualTo(1);
+            assertThat(new String(ex.getItems(), StandardCharsets.UTF_8)).isEqualTo("b\n2\n");
+            assertThat(ex.getCause()).isInstanceOf(ConnectException.class);
+        }
+    }
+
+    @Test
+    public void retriesWholeBulkWhenRejectedForATransientReason() throws IOException {
+        when(mockStatusLine.getStatusCode()).thenReturn(HttpStatus.SC_SERVICE_UNAVAILABLE, SOME_SUCCESS_CODE);
 
         elasticBulkSender.send(SOME_JSON_BODY);
 
-        ArgumentCaptor<NStringEntity> argCaptor = ArgumentCaptor.forClass(NStringEntity.class);
-        verify(mockRestClient).performRequest(eq("POST"), eq("_bulk"), eq(Collections.emptyMap()), argCaptor.capture());
-        NStringEntity actualBodyEntity = argCaptor.getValue();
-        assertThat(actualBodyEntity).isEqualToComparingFieldByFieldRecursively(bodyEntity);
+        verify(mockRestClient, times(2)).performRequest(anyString(), anyString(), anyMapOf(String.class, String.class), isA(HttpEntity.class));
+    }
+
+    @Test
+    public void capsTheDelayBeforeARetry() throws IOException {
+        when(mockStatusLine.getStatusCode()).thenReturn(HttpStatus.SC_SERVICE_UNAVAILABLE, SOME_SUCCESS_CODE);
+        ElasticBulkSender sender = ElasticBulkSender.newBuilder().withRestClient(mockRestClient).withRetryBackoff(Long.MAX_VALUE / 2)
+                .withMaxBackoff(10L).build();
+
+        long start = System.nanoTime();
+        sender.send(SOME_JSON_BODY);
+
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(5));
+        verify(mockRestClient, times(2)).performRequest(anyString(), anyString(), anyMapOf(String.class, String.class), isA(HttpEntity.class));
+    }
+
+    @Test
+    public void sendsItemsOfASingleIndexToItsEndpointWithCompactBulks() throws IOException {
+        ElasticBulkSender compactingSender = ElasticBulkSender.newBuilder().withRestClient(mockRestClient).withCompactBulks(true).build();
+        byte[] bytes = ("{\"index\":{\"_index\":\"logs\",\"_type\":\"log\"}}\n{\"a\":1}\n"
+                + "{\"index\":{\"_index\":\"logs\",\"_type\":\"log\"}}\n{\"b\":2}\n").getBytes(StandardCharsets.UTF_8);
+
+        compactingSender.send(bytes, 0, bytes.length);
+
+        ArgumentCaptor<HttpEntity> argCaptor = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(mockRestClient).performRequest(eq("POST"), eq("logs/log/_bulk"), eq(FILTERED_RESPONSE), argCaptor.capture());
+        assertThat(EntityUtils.toString(argCaptor.getValue())).isEqualTo("{\"index\":{}}\n{\"a\":1}\n{\"index\":{}}\n{\"b\":2}\n");
+    }
+
+    @Test
+    public void sendsItemsOfSeveralIndicesAsIsWithCompactBulks() throws IOException {
+        ElasticBulkSender compactingSender = ElasticBulkSender.newBuilder().withRestClient(mockRestClient).withCompactBulks(true).build();
+        String body = "{\"index\":{\"_index\":\"logs-a\",\"_type\":\"log\"}}\n{\"a\":1}\n"
+                + "{\"index\":{\"_index\":\"logs-b\",\"_type\":\"log\"}}\n{\"b\":2}\n";
+
+        compactingSender.send(body);
+
+        ArgumentCaptor<HttpEntity> argCaptor = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(mockRestClient).performRequest(eq("POST"), eq("_bulk"), eq(FILTERED_RESPONSE), argCaptor.capture());
+        assertThat(EntityUtils.toString(argCaptor.getValue())).isEqualTo(body);
+    }
+
+    @Test
+    public void sendsDocumentsThroughTheIngestPipeline() throws IOException {
+        ElasticBulkSender pipelineSender = ElasticBulkSender.newBuilder().withRestClient(mockRestClient).withPipeline("geoip").build();
+        Map<String, String> params = new HashMap<>(FILTERED_RESPONSE);
+        params.put("pipeline", "geoip");
+
+        pipelineSender.send(SOME_JSON_BODY);
+
+        verify(mockRestClient).performRequest(eq("POST"), eq("_bulk"), eq(params), isA(HttpEntity.class));
+    }
+
+    @Test
+    public void throwsWhenTheBulkResponseCannotBeRead() throws IOException {
+        when(mockResponse.getEntity()).thenReturn(json("{\"errors\":tru"));
+
+        try {
+            elasticBulkSender.send(SOME_JSON_BODY);
+            fail("Expected the bulk to be reported as failed");
+        } catch (IOException ex) {
+            assertThat(ex).hasMessage("Could not read the bulk response");
+        }
+        verify(mockRestClient).performRequest(anyString(), anyString(), anyMapOf(String.class, String.class), isA(HttpEntity.class));
+    }
+
+    private static HttpEntity json(String body) {
+        return new NStringEntity(body, ContentType.APPLICATION_JSON);
+    }
+
+    private static String item(int status) {
+        String error = status >= 300 ? ",\"error\":{\"type\":\"some_exception\",\"reason\":\"some reason\"}" : "";
+        return "{\"index\":{\"_index\":\"logs\",\"_type\":\"log\",\"status\":" + status + error + "}}";
     }
 
     @Test(expected = HttpResponseException.class)
@@ -0,0 +1,127 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ElasticJsonLayoutTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final byte[] SOME_ACTION_LINE = "{\"index\":{}}\n".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void writesEcsStyleFields() throws IOException {
+        SortedArrayStringMap context = new SortedArrayStringMap();
+        context.putValue("requestId", "42");
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setTimeMillis(1483272000123L)
+                .setLevel(Level.WARN)
+                .setLoggerName("com.example.Service")
+                .setThreadName("main")
+                .setMessage(new ParameterizedMessage("Processed order {}", 1234))
+                .setContextData(context)
+                .build();
+
+        JsonNode document = serialize(ElasticJsonLayout.newBuilder().build(), event);
+
+        assertThat(document.get("@timestamp").asText()).isEqualTo("2017-01-01T12:00:00.123Z");
+        assertThat(document.get("log.level").asText()).isEqualTo("WARN");
+        assertThat(document.get("message").asText()).isEqualTo("Processed order 1234");
+        assertThat(document.get("log.logger").asText()).isEqualTo("com.example.Service");
+        assertThat(document.get("process.thread.name").asText()).isEqualTo("main");
+        assertThat(document.get("labels").get("requestId").asText()).isEqualTo("42");
+    }
+
+    @Test
+    public void leavesOutDisabledFields() throws IOException {
+        SortedArrayStringMap context = new SortedArrayStringMap();
+        context.putValue("requestId", "42");
+        LogEvent event = Log4jLogEvent.newBuilder().setLoggerName("someLogger").setThreadName("main")
+                .setContextData(context).setMessage(new SimpleMessage("some message")).build();
+        ElasticJsonLayout layout = ElasticJsonLayout.newBuilder()
+                .withIncludeLogger(false).withIncludeThread(false).withIncludeContext(false).build();
+
+        JsonNode document = serialize(layout, event);
+
+        assertThat(document.has("log.logger")).isFalse();
+        assertThat(document.has("process.thread.name")).isFalse();
+        assertThat(document.has("labels")).isFalse();
+    }
+
+    @Test
+    public void escapesStrings() throws IOException {
+        String message = "quote \" backslash \\ new line \n tab \t bell \u0007 unicode \u00e9\ud83d\ude00";
+        LogEvent event = Log4jLogEvent.newBuilder().setMessage(new SimpleMessage(message)).build();
+
+        String json = ElasticJsonLayout.newBuilder().build().toSerializable(event);
+
+        assertThat(json).doesNotContain("\n");
+        assertThat(MAPPER.readTree(json).get("message").asText()).isEqualTo(message);
+    }
+
+    @Test
+    public void truncatesLongMessages() throws IOException {
+        LogEvent event = Log4jLogEvent.newBuilder().setMessage(new SimpleMessage("0123456789")).build();
+
+        JsonNode document = serialize(ElasticJsonLayout.newBuilder().withMaxMessageLength(4).build(), event);
+
+        assertThat(document.get("message").asText()).isEqualTo("0123...");
+    }
+
+    @Test
+    public void writesErrorFieldsWithTruncatedStackTrace() throws IOException {
+        Exception cause = new IllegalStateException("root cause");
+        LogEvent event = Log4jLogEvent.newBuilder().setMessage(new SimpleMessage("failed"))
+                .setThrown(new RuntimeException("wrapper", cause)).build();
+
+        JsonNode document = serialize(ElasticJsonLayout.newBuilder().build(), event);
+        JsonNode truncated = serialize(ElasticJsonLayout.newBuilder().withMaxStackTraceLength(100).build(), event);
+
+        assertThat(document.get("error.type").asText()).isEqualTo("java.lang.RuntimeException");
+        assertThat(document.get("error.message").asText()).isEqualTo("wrapper");
+        assertThat(document.get("error.stack_trace").asText())
+                .startsWith("java.lang.RuntimeException: wrapper\n\tat ")
+                .contains("Caused by: java.lang.IllegalStateException: root cause");
+        assertThat(truncated.get("error.stack_trace").asText()).hasSize(100 + "...".length()).endsWith("...");
+    }
+
+    @Test
+    public void leavesOutStackTraceWhenDisabled() throws IOException {
+        LogEvent event = Log4jLogEvent.newBuilder().setThrown(new RuntimeException("failed")).build();
+
+        JsonNode document = serialize(ElasticJsonLayout.newBuilder().withIncludeStacktrace(false).build(), event);
+
+        assertThat(document.get("error.type").asText()).isEqualTo("java.lang.RuntimeException");
+        assertThat(document.has("error.stack_trace")).isFalse();
+    }
+
+    @Test
+    public void encodesTheSameDocumentIntoBulkBuffers() {
+        ElasticJsonLayout layout = ElasticJsonLayout.newBuilder().build();
+        LogEvent event = Log4jLogEvent.newBuilder().setLevel(Level.INFO).setMessage(new SimpleMessage("caf\u00e9")).build();
+        BulkBuffer buffer = new BulkBuffer();
+
+        buffer.beginItem(SOME_ACTION_LINE);
+        layout.encode(event, buffer);
+        buffer.endItem();
+
+        String document = new String(buffer.array(), SOME_ACTION_LINE.length, buffer.size() - SOME_ACTION_LINE.length - 1,
+                StandardCharsets.UTF_8);
+        assertThat(document).isEqualTo(layout.toSerializable(event));
+    }
+
+    private static JsonNode serialize(ElasticJsonLayout layout, LogEvent event) throws IOException {
+        return MAPPER.readTree(layout.toByteArray(event));
+    }
+}
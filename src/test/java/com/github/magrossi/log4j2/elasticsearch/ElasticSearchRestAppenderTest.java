@@ -16,33 +16,61 @@
 package com.github.magrossi.log4j2.elasticsearch;
 
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AppenderLoggingException;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
 import org.apache.logging.log4j.core.layout.JsonLayout;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
 import org.elasticsearch.client.RestClientBuilder;
+import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.InvalidParameterException;
-import java.util.TimerTask;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.Matchers.anyString;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.*;
 
 @RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"com.sun.management.*", "javax.management.*"})
 public class ElasticSearchRestAppenderTest {
 
 	private static final Log4jLogEvent SOME_LOG_EVENT = Log4jLogEvent.newBuilder().setLevel(Level.ERROR).build();
@@ -50,20 +78,21 @@ public class ElasticSearchRestAppenderTest {
 
 	@Rule
 	public ExpectedException expectedException = ExpectedException.none();
-
 	@Mock
 	private HttpAsyncClientBuilder mockHttpAsyncClientBuilder;
 
 	@Mock
 	private BulkSender mockBulkSender;
 
+	private CountDownLatch releaseAfterTest;
+
 	@Test
 	public void sendsLogsImmediately() throws IOException {
 		ElasticSearchRestAppender appender = baseBuilder().build();
 
 		appender.append(SOME_LOG_EVENT);
 
-		verify(mockBulkSender).send(anyString());
+		verify(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
 	}
 
 	@Test
@@ -95,6 +124,99 @@ public class ElasticSearchRestAppenderTest {
 		assertLogSentAfterNumberOfCalls(appender, numberOfCalls);
 	}
 
+	@Test
+	public void sendsLogsOnceBulkReachesMaxBulkBytes() throws IOException {
+		ElasticSearchRestAppender appender = baseBuilder().withMaxBulkSize(100).withMaxBulkBytes(1L).build();
+
+		appender.append(SOME_LOG_EVENT);
+
+		verify(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+	}
+
+	@Test
+	public void spillsBulksThatCannotBeSentToDisk() throws IOException {
+		doThrow(new IOException("Connection refused")).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		File spillDirectory = Files.createTempDirectory("spill").toFile();
+		ElasticSearchRestAppender appender = baseBuilder().withSpillDirectory(spillDirectory.getPath()).build();
+
+		appender.append(SOME_LOG_EVENT);
+		appender.stop();
+
+		File[] segments = spillDirectory.listFiles();
+		assertThat(segments).hasSize(1);
+		assertThat(segments[0].length()).isGreaterThan(0L);
+		assertThat(segments[0].delete() && spillDirectory.delete()).isTrue();
+	}
+
+	@Test
+	public void dropsNewestEventsWhenBufferIsFull() throws Exception {
+		ElasticSearchRestAppender appender = fillBuffer(OverflowPolicy.DROP_NEWEST);
+
+		appender.append(SOME_LOG_EVENT);
+
+		assertThat(appender.getDroppedEvents()).isEqualTo(1);
+	}
+
+	@Test
+	public void dropsOldestBulkWhenBufferIsFull() throws Exception {
+		ElasticSearchRestAppender appender = fillBuffer(OverflowPolicy.DROP_OLDEST);
+
+		appender.append(SOME_LOG_EVENT);
+		appender.append(SOME_LOG_EVENT);
+
+		assertThat(appender.getDroppedEvents()).isEqualTo(2);
+	}
+
+	@Test
+	public void keepsSevereEventsWhenBufferIsFull() throws Exception {
+		ElasticSearchRestAppender appender = fillBuffer(OverflowPolicy.DROP_BELOW_LEVEL);
+
+		appender.append(Log4jLogEvent.newBuilder().setLevel(Level.INFO).build());
+		appender.append(Log4jLogEvent.newBuilder().setLevel(Level.WARN).build());
+
+		assertThat(appender.getDroppedEvents()).isEqualTo(1);
+	}
+
+	@Test
+	public void blocksUntilTimeoutWhenBufferIsFull() throws Exception {
+		ElasticSearchRestAppender appender = fillBuffer(OverflowPolicy.BLOCK);
+
+		long start = System.nanoTime();
+		appender.append(SOME_LOG_EVENT);
+
+		assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+		assertThat(appender.getDroppedEvents()).isEqualTo(1);
+	}
+
+	/**
+	 * @return An async appender with one bulk being sent, blocked until the test ends, and another
+	 * one waiting to be sent, which fills its two events buffer
+	 */
+	private ElasticSearchRestAppender fillBuffer(OverflowPolicy policy) throws Exception {
+		CountDownLatch sending = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		doAnswer((Answer<Void>) invocation -> {
+			sending.countDown();
+			release.await();
+			return null;
+		}).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		releaseAfterTest = release;
+		ElasticSearchRestAppender appender = baseBuilder().withMaxBulkSize(1).withAsync(true).withBufferCapacity(2)
+				.withOverflowPolicy(policy).withOverflowLevel(Level.WARN).withBlockTimeout(50L).build();
+		appender.append(SOME_LOG_EVENT);
+		assertThat(sending.await(5, TimeUnit.SECONDS)).isTrue();
+		appender.append(SOME_LOG_EVENT);
+		assertThat(appender.getDroppedEvents()).isZero();
+		return appender;
+	}
+
+	@After
+	public void releaseBlockedSends() {
+		if (releaseAfterTest != null) {
+			releaseAfterTest.countDown();
+		}
+	}
+
 	@Test
 	public void defaultRestClientSetsCredentialsWhenUserIsSupplied() {
 		RestClientBuilder.HttpClientConfigCallback httpClientConfigCallback = ElasticSearchRestAppender.Builder.httpClientConfigCallback("someUser", "somePassword");
@@ -113,6 +235,43 @@ public class ElasticSearchRestAppenderTest {
 		verifyZeroInteractions(mockHttpAsyncClientBuilder);
 	}
 
+	@Test
+	public void defaultRestClientSizesConnectionPoolWhenSupplied() {
+		HttpAsyncClientBuilder httpClientBuilder = HttpAsyncClientBuilder.create();
+
+		ElasticSearchRestAppender.Builder.connectionConfigCallback(2, 4, 8, 60000L, true).customizeHttpClient(httpClientBuilder);
+
+		IOReactorConfig reactorConfig = Whitebox.getInternalState(httpClientBuilder, "defaultIOReactorConfig");
+		assertThat(reactorConfig.getIoThreadCount()).isEqualTo(2);
+		assertThat(reactorConfig.isSoKeepalive()).isTrue();
+		assertThat((Integer) Whitebox.getInternalState(httpClientBuilder, "maxConnPerRoute")).isEqualTo(4);
+		assertThat((Integer) Whitebox.getInternalState(httpClientBuilder, "maxConnTotal")).isEqualTo(8);
+		assertThat((Object) Whitebox.getInternalState(httpClientBuilder, "keepAliveStrategy")).isInstanceOf(ConnectionKeepAliveStrategy.class);
+	}
+
+	@Test
+	public void defaultRestClientKeepsConnectionPoolDefaultsWhenNotSupplied() {
+		HttpAsyncClientBuilder httpClientBuilder = HttpAsyncClientBuilder.create();
+
+		ElasticSearchRestAppender.Builder.connectionConfigCallback(null, null, null, null, false).customizeHttpClient(httpClientBuilder);
+
+		assertThat((Object) Whitebox.getInternalState(httpClientBuilder, "defaultIOReactorConfig")).isNull();
+		assertThat((Integer) Whitebox.getInternalState(httpClientBuilder, "maxConnPerRoute")).isZero();
+		assertThat((Object) Whitebox.getInternalState(httpClientBuilder, "keepAliveStrategy")).isNull();
+	}
+
+	@Test
+	public void defaultRestClientSetsRequestTimeoutsWhenSupplied() {
+		RequestConfig.Builder requestConfigBuilder = RequestConfig.custom().setConnectTimeout(1000);
+
+		RequestConfig requestConfig = ElasticSearchRestAppender.Builder.requestConfigCallback(null, 60000, 500)
+				.customizeRequestConfig(requestConfigBuilder).build();
+
+		assertThat(requestConfig.getConnectTimeout()).isEqualTo(1000);
+		assertThat(requestConfig.getSocketTimeout()).isEqualTo(60000);
+		assertThat(requestConfig.getConnectionRequestTimeout()).isEqualTo(500);
+	}
+
 	@Test
 	public void throwsInvalidParameterExceptionIfLayourIsNull() {
 		expectedException.expect(InvalidParameterException.class);
@@ -138,7 +297,7 @@ public class ElasticSearchRestAppenderTest {
 
 	@Test
 	public void ignoresExceptionsWhileSendingToEsIfIgnoresExceptionIsTrue() throws IOException {
-		doThrow(new RuntimeException("someErrorMessage")).when(mockBulkSender).send(any());
+		doThrow(new RuntimeException("someErrorMessage")).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
 		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withIgnoreExceptions(true)).build();
 
 		appender.append(SOME_LOG_EVENT);
@@ -146,7 +305,7 @@ public class ElasticSearchRestAppenderTest {
 
 	@Test
 	public void throwsExceptionsWhileSendingToEsIfIgnoresExceptionIsFalse() throws IOException {
-		doThrow(new RuntimeException("someErrorMessage")).when(mockBulkSender).send(any());
+		doThrow(new RuntimeException("someErrorMessage")).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
 		ElasticSearchRestAppender appender = baseBuilder().build();
 
 		expectedException.expect(AppenderLoggingException.class);
@@ -171,7 +330,7 @@ public class ElasticSearchRestAppenderTest {
 		appender.append(SOME_LOG_EVENT);
 
 		appender.stop();
-		verify(mockBulkSender).send(anyString());
+		verify(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
 	}
 
 	@Test
@@ -185,11 +344,580 @@ public class ElasticSearchRestAppenderTest {
 	public void whenDelayExpiresItSendsBufferedLogs() throws IOException {
 		ElasticSearchRestAppender appender = baseBuilder().withMaxBulkSize(2).build();
 		appender.append(SOME_LOG_EVENT); // buffers a log message
-		TimerTask timerTask = appender.timerTask();
+		Runnable deadlineTask = appender.deadlineTask();
+
+		deadlineTask.run();
 
-		timerTask.run();
+		verify(mockBulkSender, timeout(5000)).send(any(byte[].class), anyInt(), anyInt());
+	}
 
-		verify(mockBulkSender).send(anyString());
+	@Test
+	public void deadlineTaskDoesNotSendOnTheSchedulerThread() throws Exception {
+		CompletableFuture<Thread> sendingThread = new CompletableFuture<>();
+		doAnswer((Answer<Void>) invocation -> {
+			sendingThread.complete(Thread.currentThread());
+			return null;
+		}).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = baseBuilder().withMaxBulkSize(2).build();
+		appender.append(SOME_LOG_EVENT);
+
+		appender.deadlineTask().run();
+
+		assertThat(sendingThread.get(5, TimeUnit.SECONDS)).isNotSameAs(Thread.currentThread());
+		assertThat(sendingThread.get().getName()).endsWith("-deadline");
+	}
+
+	@Test
+	public void deadlineTasksSendOnTheSameThread() throws Exception {
+		List<Thread> sendingThreads = new CopyOnWriteArrayList<>();
+		doAnswer((Answer<Void>) invocation -> {
+			sendingThreads.add(Thread.currentThread());
+			return null;
+		}).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = baseBuilder().withMaxBulkSize(2).build();
+
+		appender.append(SOME_LOG_EVENT);
+		appender.deadlineTask().run();
+		verify(mockBulkSender, timeout(5000)).send(any(byte[].class), anyInt(), anyInt());
+		appender.append(SOME_LOG_EVENT);
+		appender.deadlineTask().run();
+		verify(mockBulkSender, timeout(5000).times(2)).send(any(byte[].class), anyInt(), anyInt());
+
+		assertThat(sendingThreads.get(1)).isSameAs(sendingThreads.get(0));
+		appender.stop();
+		sendingThreads.get(0).join(5000);
+		assertThat(sendingThreads.get(0).isAlive()).isFalse();
+	}
+
+	@Test
+	public void asyncModeDoesNotBlockLoggingThreadWhileSending() throws IOException, InterruptedException {
+		CountDownLatch sending = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		doAnswer((Answer<Void>) invocation -> {
+			sending.countDown();
+			release.await();
+			return null;
+		}).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = baseBuilder().withMaxBulkSize(1).withAsync(true).build();
+
+		appender.append(SOME_LOG_EVENT);
+		assertThat(sending.await(5, TimeUnit.SECONDS)).isTrue();
+		appender.append(SOME_LOG_EVENT); // would block here if sent synchronously
+		release.countDown();
+
+		verify(mockBulkSender, timeout(5000).times(2)).send(any(byte[].class), anyInt(), anyInt());
+	}
+
+	@Test
+	public void asyncModeSendsPendingBulksBeforeAppenderIsDestroyed() throws IOException {
+		ElasticSearchRestAppender appender = baseBuilder().withMaxBulkSize(10).withAsync(true).build();
+
+		appender.append(SOME_LOG_EVENT);
+		appender.stop();
+
+		verify(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+	}
+
+	@Test
+	public void asyncModeIgnoresExceptionsWhileSendingToEs() throws IOException {
+		doThrow(new RuntimeException("someErrorMessage")).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = baseBuilder().withMaxBulkSize(1).withAsync(true).build();
+
+		appender.append(SOME_LOG_EVENT);
+		appender.append(SOME_LOG_EVENT);
+
+		verify(mockBulkSender, timeout(5000).times(2)).send(any(byte[].class), anyInt(), anyInt());
+		appender.stop();
+	}
+
+	@Test
+	public void sendsBulkBodyWithOneActionLinePerDocument() throws IOException {
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withMaxBulkSize(2).withDateFormat("'2017'")
+				.withLayout(JsonLayout.newBuilder().setCompact(true).build())).build();
+
+		appender.append(SOME_LOG_EVENT);
+		appender.append(SOME_LOG_EVENT);
+
+		verify(mockBulkSender).send(body.capture(), eq(0), length.capture());
+		String[] lines = new String(body.getValue(), 0, length.getValue(), StandardCharsets.UTF_8).split("\n", -1);
+		assertThat(lines).hasSize(5);
+		assertThat(lines[0]).isEqualTo("{\"index\":{\"_index\":\"someIndex2017\",\"_type\":\"someType\"}}");
+		assertThat(lines[1]).startsWith("{").endsWith("}").doesNotContain("\r");
+		assertThat(lines[2]).isEqualTo(lines[0]);
+		assertThat(lines[3]).isEqualTo(lines[1]);
+		assertThat(lines[4]).isEmpty();
+	}
+
+	@Test
+	public void sendsEventsOfConcurrentThreadsExactlyOnce() throws Exception {
+		AtomicInteger sentEvents = new AtomicInteger();
+		doAnswer((Answer<Void>) invocation -> {
+			byte[] body = (byte[]) invocation.getArguments()[0];
+			int length = (Integer) invocation.getArguments()[2];
+			int lines = 0;
+			for (int i = 0; i < length; i++) {
+				lines += body[i] == '\n' ? 1 : 0;
+			}
+			sentEvents.addAndGet(lines / 2);
+			return null;
+		}).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withStripes(4).withMaxBulkSize(7)
+				.withLayout(JsonLayout.newBuilder().setCompact(true).build())).build();
+		int threads = 8;
+		int eventsPerThread = 1000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		for (int i = 0; i < threads; i++) {
+			executor.execute(() -> {
+				for (int j = 0; j < eventsPerThread; j++) {
+					appender.append(SOME_LOG_EVENT);
+				}
+			});
+		}
+		executor.shutdown();
+		assertThat(executor.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+
+		appender.stop();
+
+		assertThat(sentEvents.get()).isEqualTo(threads * eventsPerThread);
+	}
+
+	@Test
+	public void collapsesRepeatedEventsIntoASingleDocument() throws IOException {
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withCollapseRepeats(true)
+				.withMaxBulkSize(2).withLayout(ElasticJsonLayout.newBuilder().build())).build();
+		Log4jLogEvent other = Log4jLogEvent.newBuilder().setLevel(Level.INFO).setMessage(new SimpleMessage("other")).build();
+
+		for (int i = 0; i < 1000; i++) {
+			appender.append(SOME_LOG_EVENT);
+		}
+		appender.append(other);
+
+		verify(mockBulkSender).send(body.capture(), eq(0), length.capture());
+		String[] lines = new String(body.getValue(), 0, length.getValue(), StandardCharsets.UTF_8).split("\n");
+		assertThat(lines).hasSize(6);
+		assertThat(lines[1]).doesNotContain("\"count\"");
+		assertThat(lines[3]).doesNotContain("\"count\"");
+		assertThat(lines[5]).contains("\"log.level\":\"ERROR\"").contains(",\"count\":999,\"first_seen\":\"");
+		assertThat(appender.getMetrics().getEventsAppended()).isEqualTo(2);
+		assertThat(appender.getMetrics().getEventsCollapsed()).isEqualTo(999);
+	}
+
+	@Test
+	public void sendsCollapsedPriorityEventsWithThePriorityBulk() throws IOException {
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withCollapseRepeats(true)
+				.withMaxBulkSize(100).withPriorityLevel(Level.ERROR).withPriorityBulkSize(2)
+				.withLayout(ElasticJsonLayout.newBuilder().build())).build();
+		Log4jLogEvent otherError = Log4jLogEvent.newBuilder().setLevel(Level.ERROR).setMessage(new SimpleMessage("other")).build();
+
+		for (int i = 0; i < 1000; i++) {
+			appender.append(SOME_LOG_EVENT);
+		}
+		appender.append(otherError);
+
+		verify(mockBulkSender).send(body.capture(), eq(0), length.capture());
+		String[] lines = new String(body.getValue(), 0, length.getValue(), StandardCharsets.UTF_8).split("\n");
+		assertThat(lines).hasSize(6);
+		assertThat(lines[5]).contains(",\"count\":999,\"first_seen\":\"");
+		assertThat(appender.getMetrics().getEventsCollapsed()).isEqualTo(999);
+	}
+
+	@Test
+	public void routesEventsByLevelAndGroupsThemPerIndex() throws IOException {
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withIndex("logs-${level}")
+				.withDateFormat("").withMaxBulkSize(4).withLayout(ElasticJsonLayout.newBuilder().build())).build();
+		Log4jLogEvent info = Log4jLogEvent.newBuilder().setLevel(Level.INFO).setMessage(new SimpleMessage("info")).build();
+
+		appender.append(info);
+		appender.append(SOME_LOG_EVENT);
+		appender.append(info);
+		appender.append(SOME_LOG_EVENT);
+
+		verify(mockBulkSender).send(body.capture(), eq(0), length.capture());
+		String[] lines = new String(body.getValue(), 0, length.getValue(), StandardCharsets.UTF_8).split("\n");
+		assertThat(lines).hasSize(8);
+		assertThat(lines[0]).isEqualTo(lines[2]).contains("\"_index\":\"logs-info\"");
+		assertThat(lines[4]).isEqualTo(lines[6]).contains("\"_index\":\"logs-error\"");
+		assertThat(lines[5]).contains("\"log.level\":\"ERROR\"");
+	}
+
+	@Test
+	public void sendsPriorityEventsOnTheirOwnBulks() throws IOException {
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withMaxBulkSize(100)
+				.withPriorityLevel(Level.ERROR).withPriorityBulkSize(1).withLayout(ElasticJsonLayout.newBuilder().build())).build();
+		Log4jLogEvent info = Log4jLogEvent.newBuilder().setLevel(Level.INFO).setMessage(new SimpleMessage("info")).build();
+
+		appender.append(info);
+		appender.append(SOME_LOG_EVENT);
+		appender.append(info);
+
+		verify(mockBulkSender).send(body.capture(), eq(0), length.capture());
+		String[] lines = new String(body.getValue(), 0, length.getValue(), StandardCharsets.UTF_8).split("\n");
+		assertThat(lines).hasSize(2);
+		assertThat(lines[1]).contains("\"log.level\":\"ERROR\"");
+		assertThat(appender.getMetrics().getBufferedEvents()).isEqualTo(2);
+	}
+
+	@Test
+	public void sendsPriorityEventsOnceTheirDelayExpires() throws IOException {
+		ElasticSearchRestAppender appender = baseBuilder().withMaxBulkSize(100).withMaxDelayTime(60000L)
+				.withPriorityLevel(Level.ERROR).withPriorityDelayTime(50L).build();
+
+		appender.append(SOME_LOG_EVENT);
+
+		verifyZeroInteractions(mockBulkSender);
+		verify(mockBulkSender, timeout(5000)).send(any(byte[].class), anyInt(), anyInt());
+	}
+
+	@Test
+	public void asyncModeSendsPriorityEventsWhileABulkIsBeingSent() throws Exception {
+		CountDownLatch bulkSending = new CountDownLatch(1);
+		releaseAfterTest = new CountDownLatch(1);
+		doAnswer((Answer<Void>) invocation -> {
+			bulkSending.countDown();
+			releaseAfterTest.await(10, TimeUnit.SECONDS);
+			return null;
+		}).doNothing().when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = baseBuilder().withAsync(true).withMaxBulkSize(1)
+				.withPriorityLevel(Level.ERROR).withPriorityBulkSize(1).build();
+		Log4jLogEvent info = Log4jLogEvent.newBuilder().setLevel(Level.INFO).setMessage(new SimpleMessage("info")).build();
+
+		appender.append(info);
+		assertThat(bulkSending.await(5, TimeUnit.SECONDS)).isTrue();
+		appender.append(SOME_LOG_EVENT);
+
+		verify(mockBulkSender, timeout(5000).times(2)).send(any(byte[].class), anyInt(), anyInt());
+		releaseAfterTest.countDown();
+		appender.stop();
+	}
+
+	@Test
+	public void addsTheNumberOfSuppressedEventsToTheNextDocumentSent() throws Exception {
+		ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+		ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withMaxBulkSize(3)
+				.withRateLimits(RateLimit.newBuilder().withLevel(Level.INFO).withEventsPerSecond(10).withBurst(1).build())
+				.withLayout(ElasticJsonLayout.newBuilder().build())).build();
+		Log4jLogEvent info = Log4jLogEvent.newBuilder().setLevel(Level.INFO).setMessage(new SimpleMessage("info")).build();
+
+		for (int i = 0; i < 10; i++) {
+			appender.append(info);
+		}
+		appender.append(SOME_LOG_EVENT);
+		Thread.sleep(200L);
+		appender.append(info);
+
+		verify(mockBulkSender).send(body.capture(), eq(0), length.capture());
+		String[] lines = new String(body.getValue(), 0, length.getValue(), StandardCharsets.UTF_8).split("\n");
+		assertThat(lines).hasSize(6);
+		assertThat(lines[1]).doesNotContain("suppressed");
+		assertThat(lines[3]).contains("\"log.level\":\"ERROR\"").doesNotContain("suppressed");
+		assertThat(lines[5]).contains("\"log.level\":\"INFO\"").endsWith(",\"suppressed\":9}");
+		assertThat(appender.getMetrics().getEventsSuppressed()).isEqualTo(9);
+	}
+
+	@Test
+	public void serializesEventsOnEncoderThreads() throws IOException {
+		AtomicInteger sentEvents = new AtomicInteger();
+		doAnswer((Answer<Void>) invocation -> {
+			byte[] body = (byte[]) invocation.getArguments()[0];
+			int length = (Integer) invocation.getArguments()[2];
+			for (int i = 0; i < length; i++) {
+				sentEvents.addAndGet(body[i] == '\n' ? 1 : 0);
+			}
+			return null;
+		}).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withEncoderThreads(2)
+				.withEncoderQueueSize(10).withMaxBulkSize(7).withLayout(ElasticJsonLayout.newBuilder().build())).build();
+
+		for (int i = 0; i < 1000; i++) {
+			appender.append(SOME_LOG_EVENT);
+		}
+		appender.stop();
+
+		assertThat(sentEvents.get()).isEqualTo(2 * 1000);
+		assertThat(appender.getMetrics().getEventsAppended()).isEqualTo(1000);
+	}
+
+	@Test
+	public void sendsPendingBulksConcurrentlyOnStop() throws Exception {
+		CountDownLatch firstBulk = new CountDownLatch(1);
+		CountDownLatch concurrentSends = new CountDownLatch(2);
+		AtomicInteger sends = new AtomicInteger();
+		AtomicInteger sequentialSends = new AtomicInteger();
+		doAnswer((Answer<Void>) invocation -> {
+			if (sends.incrementAndGet() == 1) {
+				firstBulk.countDown();
+			}
+			concurrentSends.countDown();
+			if (!concurrentSends.await(2, TimeUnit.SECONDS)) {
+				sequentialSends.incrementAndGet();
+			}
+			return null;
+		}).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = baseBuilder().withAsync(true).withMaxBulkSize(1).build();
+
+		appender.append(SOME_LOG_EVENT);
+		assertThat(firstBulk.await(5, TimeUnit.SECONDS)).isTrue();
+		appender.append(SOME_LOG_EVENT);
+		appender.append(SOME_LOG_EVENT);
+
+		assertThat(appender.stop(10, TimeUnit.SECONDS)).isTrue();
+		assertThat(sends.get()).isEqualTo(3);
+		assertThat(sequentialSends.get()).isZero();
+	}
+
+	@Test
+	public void writesBulksLeftUnsentAtTheShutdownTimeoutToStandardError() throws Exception {
+		releaseAfterTest = new CountDownLatch(1);
+		AtomicInteger sends = new AtomicInteger();
+		doAnswer((Answer<Void>) invocation -> {
+			sends.incrementAndGet();
+			releaseAfterTest.await(10, TimeUnit.SECONDS);
+			return null;
+		}).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withAsync(true).withMaxBulkSize(1)
+				.withLayout(ElasticJsonLayout.newBuilder().build())).build();
+		for (int i = 0; i < 8; i++) {
+			appender.append(SOME_LOG_EVENT);
+		}
+		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		PrintStream originalStderr = System.err;
+
+		boolean stopped;
+		System.setErr(new PrintStream(stderr, true));
+		try {
+			stopped = appender.stop(300, TimeUnit.MILLISECONDS);
+		} finally {
+			System.setErr(originalStderr);
+		}
+
+		String[] lines = new String(stderr.toByteArray(), StandardCharsets.UTF_8).split("\n");
+		assertThat(stopped).isFalse();
+		assertThat(lines.length).isEqualTo(2 * (8 - sends.get()));
+		assertThat(lines[1]).contains("\"log.level\":\"ERROR\"");
+	}
+
+	@Test
+	public void closesTheSenderOnStop() {
+		ElasticSearchRestAppender appender = baseBuilder().build();
+
+		appender.stop();
+
+		verify(mockBulkSender).close();
+	}
+
+	@Test
+	public void writesBulksFailingWhileStoppingToStandardError() throws Exception {
+		doThrow(new ConnectException("Connection refused")).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withMaxBulkSize(100)
+				.withLayout(ElasticJsonLayout.newBuilder().build())).build();
+		appender.append(SOME_LOG_EVENT);
+		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		PrintStream originalStderr = System.err;
+
+		boolean stopped;
+		System.setErr(new PrintStream(stderr, true));
+		try {
+			stopped = appender.stop(5, TimeUnit.SECONDS);
+		} finally {
+			System.setErr(originalStderr);
+		}
+
+		String[] lines = new String(stderr.toByteArray(), StandardCharsets.UTF_8).split("\n");
+		assertThat(stopped).isFalse();
+		assertThat(lines.length).isEqualTo(2);
+		assertThat(lines[1]).contains("\"log.level\":\"ERROR\"");
+		assertThat(appender.getMetrics().getItemsDropped()).isZero();
+	}
+
+	@Test
+	public void spillsBulksOfASyncAppenderStoppingWhileTheCircuitIsOpen() throws Exception {
+		doThrow(new ConnectException("Connection refused")).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		File spillDirectory = Files.createTempDirectory("spill").toFile();
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withMaxBulkSize(2)
+				.withSpillDirectory(spillDirectory.getPath()).withCircuitBreakerThreshold(1).withCircuitBreakerDelay(60000L)
+				.withIgnoreExceptions(true)).build();
+		appender.append(SOME_LOG_EVENT);
+		appender.append(SOME_LOG_EVENT);
+		appender.append(SOME_LOG_EVENT);
+		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		PrintStream originalStderr = System.err;
+
+		boolean stopped;
+		System.setErr(new PrintStream(stderr, true));
+		try {
+			stopped = appender.stop(5, TimeUnit.SECONDS);
+		} finally {
+			System.setErr(originalStderr);
+		}
+
+		assertThat(stopped).isTrue();
+		assertThat(stderr.size()).isZero();
+		assertThat(appender.getMetrics().getCircuitState()).isEqualTo("OPEN");
+		assertThat(appender.getMetrics().getItemsSpilled()).isEqualTo(3);
+		assertThat(appender.getMetrics().getItemsDropped()).isZero();
+		for (File segment : spillDirectory.listFiles()) {
+			assertThat(segment.delete()).isTrue();
+		}
+		assertThat(spillDirectory.delete()).isTrue();
+	}
+
+	@Test
+	public void countsAppendedEventsAndSentBulks() throws IOException {
+		ElasticSearchRestAppender appender = baseBuilder().withMaxBulkSize(2).build();
+
+		appender.append(SOME_LOG_EVENT);
+		appender.append(SOME_LOG_EVENT);
+		appender.append(SOME_LOG_EVENT);
+
+		ElasticSearchRestAppenderMXBean metrics = appender.getMetrics();
+		assertThat(metrics.getEventsAppended()).isEqualTo(3);
+		assertThat(metrics.getBytesSerialized()).isGreaterThan(0L);
+		assertThat(metrics.getBulksSent()).isEqualTo(1);
+		assertThat(metrics.getBufferedEvents()).isEqualTo(1);
+		assertThat(metrics.getBulkLatencyMaxMillis()).isGreaterThanOrEqualTo(metrics.getBulkLatencyP50Millis());
+	}
+
+	@Test
+	public void sendsBulksOfTheSmallestSizeFirstWithAdaptiveBatching() throws IOException {
+		ElasticSearchRestAppender appender = baseBuilder().withAdaptiveBatching(true).withMaxBulkSize(100).withMinBulkSize(2)
+				.withMaxDelayTime(2000L).build();
+
+		appender.append(SOME_LOG_EVENT);
+		appender.append(SOME_LOG_EVENT);
+
+		verify(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		// Grown by a 32nd of the range after a full bulk delivered fast enough
+		assertThat(appender.getMetrics().getMaxBulkSize()).isEqualTo(5);
+		assertThat(appender.getMetrics().getMaxDelayTime()).isEqualTo(2000L);
+	}
+
+	@Test
+	public void countsItemsOfFailedBulksAsDropped() throws IOException {
+		doThrow(new IOException("Connection refused")).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withIgnoreExceptions(true)).build();
+
+		appender.append(SOME_LOG_EVENT);
+
+		assertThat(appender.getMetrics().getBulksFailed()).isEqualTo(1);
+		assertThat(appender.getMetrics().getItemsDropped()).isEqualTo(1);
+		assertThat(appender.getMetrics().getBufferedEvents()).isZero();
+	}
+
+	@Test
+	public void failsFastOnceElasticSearchLooksUnreachable() throws IOException {
+		doThrow(new ConnectException("Connection refused")).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withCircuitBreakerThreshold(2)
+				.withCircuitBreakerDelay(60000L).withIgnoreExceptions(true)).build();
+
+		for (int i = 0; i < 4; i++) {
+			appender.append(SOME_LOG_EVENT);
+		}
+
+		verify(mockBulkSender, times(2)).send(any(byte[].class), anyInt(), anyInt());
+		assertThat(appender.getMetrics().getCircuitState()).isEqualTo("OPEN");
+		assertThat(appender.getMetrics().getItemsDropped()).isEqualTo(4);
+	}
+
+	@Test
+	public void keepsBulksInAsyncModeUntilElasticSearchIsReachableAgain() throws IOException {
+		doThrow(new ConnectException("Connection refused")).doNothing().when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withAsync(true)
+				.withCircuitBreakerThreshold(1).withCircuitBreakerDelay(200L).withIgnoreExceptions(true)).build();
+
+		appender.append(SOME_LOG_EVENT);
+
+		verify(mockBulkSender, timeout(5000).times(2)).send(any(byte[].class), anyInt(), anyInt());
+		appender.stop();
+		assertThat(appender.getMetrics().getCircuitState()).isEqualTo("CLOSED");
+		assertThat(appender.getMetrics().getItemsDropped()).isZero();
+		assertThat(appender.getMetrics().getBufferedEvents()).isZero();
+	}
+
+	@Test
+	public void registersMBeanWhileStarted() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = AppenderMetrics.objectName(SOME_NAME);
+		ElasticSearchRestAppender appender = baseBuilder().build();
+
+		appender.start();
+		appender.append(SOME_LOG_EVENT);
+
+		assertThat(server.getAttribute(name, "EventsAppended")).isEqualTo(1L);
+		appender.stop();
+		assertThat(server.isRegistered(name)).isFalse();
+	}
+
+	@Test
+	public void doesNotAllocatePerEventWithGarbageFreeLayouts() throws IOException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		BulkSender discardingSender = new BulkSender() {
+			@Override
+			public void send(String body) {
+			}
+
+			@Override
+			public void send(byte[] body, int offset, int length) {
+			}
+		};
+		ElasticSearchRestAppender appender = ((ElasticSearchRestAppender.Builder)baseBuilder().withMaxBulkSize(1000)
+				.withBulkSender(discardingSender).withLayout(new GarbageFreeJsonLayout())).build();
+		Log4jLogEvent event = Log4jLogEvent.newBuilder().setLevel(Level.INFO).setMessage(new SimpleMessage("some message")).build();
+		for (int i = 0; i < 100000; i++) {
+			appender.append(event);
+		}
+
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 10000; i++) {
+			appender.append(event);
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+		// Leaves room for the measurement itself, far below one byte per event
+		assertThat(allocated).isLessThan(1024L);
+	}
+
+	/**
+	 * Minimal JSON layout that encodes events through the thread local builder and encoder, without allocating.
+	 */
+	private static class GarbageFreeJsonLayout extends AbstractStringLayout {
+
+		GarbageFreeJsonLayout() {
+			super(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public String getContentType() {
+			return "application/json; charset=UTF-8";
+		}
+
+		@Override
+		public String toSerializable(LogEvent event) {
+			return format(event).toString();
+		}
+
+		@Override
+		public void encode(LogEvent event, ByteBufferDestination destination) {
+			getStringBuilderEncoder().encode(format(event), destination);
+		}
+
+		private static StringBuilder format(LogEvent event) {
+			return getStringBuilder().append("{\"level\":\"").append(event.getLevel().name())
+					.append("\",\"message\":\"").append(event.getMessage().getFormattedMessage()).append("\"}");
+		}
 	}
 
 	private ElasticSearchRestAppender.Builder baseBuilder() {
@@ -219,7 +947,7 @@ public class ElasticSearchRestAppenderTest {
 
 		appender.append(SOME_LOG_EVENT);
 
-		verify(mockBulkSender).send(anyString());
+		verify(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
 	}
 
 	private void assertLogSentAfterMillis(ElasticSearchRestAppender appender, Long millis) throws IOException, ExecutionException, InterruptedException {
@@ -230,7 +958,7 @@ public class ElasticSearchRestAppenderTest {
 		doAnswer((Answer<Void>) invocation -> {
 			future.complete(System.nanoTime() - start);
 			return null;
-		}).when(mockBulkSender).send(anyString());
+		}).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
 
 		appender.append(SOME_LOG_EVENT);
 
@@ -0,0 +1,111 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EncoderPoolTest {
+
+    @Test
+    public void snapshotsKeepTheLoggingThread() throws InterruptedException {
+        AtomicReference<LogEvent> snapshot = new AtomicReference<>();
+        Thread loggingThread = new Thread(() -> snapshot.set(EncoderPool.snapshot(event("some message"), true)), "some-thread");
+        loggingThread.start();
+        loggingThread.join();
+
+        assertThat(snapshot.get().getThreadName()).isEqualTo("some-thread");
+        assertThat(snapshot.get().getMessage().getFormattedMessage()).isEqualTo("some message");
+    }
+
+    @Test
+    public void serializesQueuedEventsBeforeStopping() throws InterruptedException {
+        List<LogEvent> encoded = new CopyOnWriteArrayList<>();
+        EncoderPool pool = new EncoderPool("test", 2, 100, false, 0L, encoded::add);
+
+        for (int i = 0; i < 50; i++) {
+            assertThat(pool.submit(event("message " + i))).isTrue();
+        }
+        pool.stop(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+
+        assertThat(encoded).hasSize(50);
+        assertThat(encoded.get(49).getMessage().getFormattedMessage()).isEqualTo("message 49");
+        assertThat(pool.submit(event("too late"))).isFalse();
+        assertThat(pool.isRunning()).isFalse();
+    }
+
+    @Test
+    public void waitsForRoomOnceItsQueueIsFullKeepingTheOrder() throws Exception {
+        CountDownLatch encoding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> encoded = new CopyOnWriteArrayList<>();
+        EncoderPool pool = new EncoderPool("test", 1, 1, false, 10000L, event -> {
+            encoding.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            encoded.add(event.getMessage().getFormattedMessage());
+        });
+        assertThat(pool.submit(event("first"))).isTrue();
+        assertThat(encoding.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(pool.submit(event("second"))).isTrue();
+
+        CompletableFuture<Boolean> third = new CompletableFuture<>();
+        Thread loggingThread = new Thread(() -> {
+            try {
+                third.complete(pool.submit(event("third")));
+            } catch (InterruptedException ex) {
+                third.completeExceptionally(ex);
+            }
+        });
+        // With a single encoder every logging thread shares its queue
+        loggingThread.start();
+        Thread.sleep(100L);
+        assertThat(third.isDone()).isFalse();
+
+        release.countDown();
+        assertThat(third.get(5, TimeUnit.SECONDS)).isTrue();
+        pool.stop(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+        assertThat(encoded).containsExactly("first", "second", "third");
+    }
+
+    @Test
+    public void refusesEventsOnceItsQueueStaysFull() throws InterruptedException {
+        CountDownLatch encoding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        EncoderPool pool = new EncoderPool("test", 1, 1, false, 10L, event -> {
+            encoding.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertThat(pool.submit(event("first"))).isTrue();
+        assertThat(encoding.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(pool.submit(event("second"))).isTrue();
+        assertThat(pool.submit(event("third"))).isFalse();
+        assertThat(pool.isRunning()).isTrue();
+        assertThat(pool.queued()).isEqualTo(1);
+
+        release.countDown();
+        pool.stop(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+    }
+
+    private static LogEvent event(String message) {
+        return Log4jLogEvent.newBuilder().setLevel(Level.INFO).setMessage(new SimpleMessage(message)).build();
+    }
+}
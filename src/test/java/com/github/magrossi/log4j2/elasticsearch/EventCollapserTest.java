@@ -0,0 +1,84 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EventCollapserTest {
+
+    @Test
+    public void sendsTheFirstEventAndCollapsesItsRepeats() {
+        EventCollapser collapser = new EventCollapser(10);
+
+        assertThat(collapser.collapse(event("Failed to reach {}", "a", 1000L, null))).isFalse();
+        assertThat(collapser.collapse(event("Failed to reach {}", "b", 2000L, null))).isTrue();
+        assertThat(collapser.collapse(event("Failed to reach {}", "c", 3000L, null))).isTrue();
+
+        List<EventCollapser.Repeats> repeats = drain(collapser);
+        assertThat(repeats).hasSize(1);
+        assertThat(repeats.get(0).getCount()).isEqualTo(2);
+        assertThat(repeats.get(0).getFirstSeen()).isEqualTo(2000L);
+        assertThat(repeats.get(0).getLastSeen()).isEqualTo(3000L);
+        assertThat(repeats.get(0).getEvent().getMessage().getFormattedMessage()).isEqualTo("Failed to reach b");
+        assertThat(new String(repeats.get(0).fields(), StandardCharsets.UTF_8))
+                .isEqualTo("\"count\":2,\"first_seen\":\"1970-01-01T00:00:02Z\",\"last_seen\":\"1970-01-01T00:00:03Z\"");
+    }
+
+    @Test
+    public void tellsEventsApartByTemplateAndThrowable() {
+        EventCollapser collapser = new EventCollapser(10);
+        Exception[] failures = new Exception[2];
+        for (int i = 0; i < failures.length; i++) {
+            failures[i] = new IllegalStateException("failure " + i);
+        }
+
+        assertThat(collapser.collapse(event("Failed to reach {}", "a", 1000L, null))).isFalse();
+        assertThat(collapser.collapse(event("Failed to read {}", "a", 1000L, null))).isFalse();
+        assertThat(collapser.collapse(event("Failed to reach {}", "a", 1000L, failures[0]))).isFalse();
+        assertThat(collapser.collapse(event("Failed to reach {}", "a", 1000L, new IllegalStateException()))).isFalse();
+        assertThat(collapser.collapse(event("Failed to reach {}", "a", 1000L, failures[1]))).isTrue();
+    }
+
+    @Test
+    public void startsANewWindowOnceDrained() {
+        EventCollapser collapser = new EventCollapser(10);
+        collapser.collapse(event("Failed to reach {}", "a", 1000L, null));
+
+        assertThat(drain(collapser)).isEmpty();
+        assertThat(collapser.collapse(event("Failed to reach {}", "a", 1000L, null))).isFalse();
+    }
+
+    @Test
+    public void sendsEventsBeyondTheFingerprintsTracked() {
+        EventCollapser collapser = new EventCollapser(1);
+        collapser.collapse(event("Failed to reach {}", "a", 1000L, null));
+
+        assertThat(collapser.collapse(event("Failed to read {}", "a", 1000L, null))).isFalse();
+        assertThat(collapser.collapse(event("Failed to read {}", "a", 1000L, null))).isFalse();
+        assertThat(collapser.collapse(event("Failed to reach {}", "a", 1000L, null))).isTrue();
+    }
+
+    private static LogEvent event(String format, String parameter, long timeMillis, Throwable thrown) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("someLogger")
+                .setLevel(Level.ERROR)
+                .setMessage(new ParameterizedMessage(format, parameter))
+                .setTimeMillis(timeMillis)
+                .setThrown(thrown)
+                .build();
+    }
+
+    private static List<EventCollapser.Repeats> drain(EventCollapser collapser) {
+        List<EventCollapser.Repeats> repeats = new ArrayList<>();
+        collapser.drain(repeats::add);
+        return repeats;
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FlushSchedulerTest {
+
+    @Test
+    public void firesScheduledTasksWhileAcquired() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(2);
+        FlushScheduler.acquire();
+        FlushScheduler.acquire();
+        try {
+            FlushScheduler.schedule(fired::countDown, 10L);
+            FlushScheduler.schedule(fired::countDown, 20L);
+
+            assertThat(fired.await(5, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            FlushScheduler.release();
+            FlushScheduler.release();
+        }
+    }
+
+    @Test
+    public void restartsWhenAcquiredAgain() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        FlushScheduler.acquire();
+        FlushScheduler.release();
+        FlushScheduler.acquire();
+        try {
+            FlushScheduler.schedule(fired::countDown, 10L);
+
+            assertThat(fired.await(5, TimeUnit.SECONDS)).isTrue();
+        } finally {
+            FlushScheduler.release();
+        }
+    }
+}
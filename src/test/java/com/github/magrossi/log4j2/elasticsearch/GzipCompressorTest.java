@@ -0,0 +1,64 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GzipCompressorTest {
+
+    private static final String SOME_BODY = "{\"index\":{}}\n{\"message\":\"some message\"}\n";
+
+    @Test
+    public void producesValidGzipData() throws IOException {
+        GzipCompressor compressor = new GzipCompressor(Deflater.DEFAULT_COMPRESSION);
+        byte[] body = ("xx" + SOME_BODY).getBytes(StandardCharsets.UTF_8);
+
+        compressor.compress(body, 2, body.length - 2);
+
+        assertThat(decompress(compressor)).isEqualTo(SOME_BODY.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void canBeReusedForSeveralBodies() throws IOException {
+        GzipCompressor compressor = new GzipCompressor(Deflater.BEST_SPEED);
+        byte[] first = SOME_BODY.getBytes(StandardCharsets.UTF_8);
+        byte[] second = (SOME_BODY + SOME_BODY).getBytes(StandardCharsets.UTF_8);
+
+        compressor.compress(first, 0, first.length);
+        compressor.compress(second, 0, second.length);
+
+        assertThat(decompress(compressor)).isEqualTo(second);
+    }
+
+    @Test
+    public void growsOutputForIncompressibleBodies() throws IOException {
+        GzipCompressor compressor = new GzipCompressor(Deflater.BEST_COMPRESSION);
+        byte[] body = new byte[256 * 1024];
+        new Random(42).nextBytes(body);
+
+        compressor.compress(body, 0, body.length);
+
+        assertThat(compressor.size()).isGreaterThan(body.length);
+        assertThat(decompress(compressor)).isEqualTo(body);
+    }
+
+    private static byte[] decompress(GzipCompressor compressor) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressor.array(), 0, compressor.size()))) {
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                out.write(chunk, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+}
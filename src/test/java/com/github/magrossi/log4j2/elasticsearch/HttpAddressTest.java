@@ -0,0 +1,37 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.http.HttpHost;
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpAddressTest {
+
+    @Test
+    public void keepsHostNamesUnresolved() {
+        HttpHost host = HttpAddress.newBuilder().withScheme("https").withHost("elastic.example.invalid").withPort(9243).build()
+                .getHttpHost();
+
+        assertThat(host.getAddress()).isNull();
+        assertThat(host.getHostName()).isEqualTo("elastic.example.invalid");
+        assertThat(host.toURI()).isEqualTo("https://elastic.example.invalid:9243");
+    }
+
+    @Test
+    public void usesTheIpOfAddresses() {
+        HttpHost host = HttpAddress.newBuilder().withHost(InetAddress.getLoopbackAddress()).build().getHttpHost();
+
+        assertThat(host.getHostName()).isEqualTo(InetAddress.getLoopbackAddress().getHostAddress());
+        assertThat(host.getPort()).isEqualTo(9200);
+    }
+
+    @Test
+    public void defaultsToTheLoopbackAddress() {
+        HttpHost host = HttpAddress.newBuilder().build().getHttpHost();
+
+        assertThat(host.getHostName()).isEqualTo(InetAddress.getLoopbackAddress().getHostAddress());
+        assertThat(host.getPort()).isEqualTo(9200);
+    }
+}
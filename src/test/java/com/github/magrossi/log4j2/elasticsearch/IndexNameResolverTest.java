@@ -0,0 +1,70 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IndexNameResolverTest {
+
+    private static final long SOME_DAY = 1483272000000L; // 2017-01-01T12:00:00Z
+    private static final long ONE_HOUR = 3600000L;
+
+    @Test
+    public void resolvesIndexNameFromEventTime() {
+        IndexNameResolver resolver = new IndexNameResolver("logs-", utc("yyyyMMdd"));
+
+        assertThat(resolver.resolve(SOME_DAY)).isEqualTo("logs-20170101");
+        assertThat(resolver.resolve(SOME_DAY + 12 * ONE_HOUR)).isEqualTo("logs-20170102");
+    }
+
+    @Test
+    public void reusesIndexNameWithinThePeriod() {
+        IndexNameResolver resolver = new IndexNameResolver("logs-", utc("yyyyMMdd"));
+
+        String first = resolver.resolve(SOME_DAY - 12 * ONE_HOUR);
+        String last = resolver.resolve(SOME_DAY + 12 * ONE_HOUR - 1);
+
+        assertThat(first).isEqualTo("logs-20170101").isSameAs(last);
+    }
+
+    @Test
+    public void resolvesLateEventsToTheirOwnPeriod() {
+        IndexNameResolver resolver = new IndexNameResolver("logs-", utc("yyyyMMdd"));
+
+        resolver.resolve(SOME_DAY);
+
+        assertThat(resolver.resolve(SOME_DAY - 24 * ONE_HOUR)).isEqualTo("logs-20161231");
+        assertThat(resolver.resolve(SOME_DAY)).isEqualTo("logs-20170101");
+    }
+
+    @Test
+    public void followsTheFinestFieldOfThePattern() {
+        IndexNameResolver resolver = new IndexNameResolver("logs-", utc("yyyy.MM.dd-HH"));
+
+        assertThat(resolver.resolve(SOME_DAY)).isEqualTo("logs-2017.01.01-12");
+        assertThat(resolver.resolve(SOME_DAY + ONE_HOUR)).isEqualTo("logs-2017.01.01-13");
+    }
+
+    @Test
+    public void ignoresQuotedLettersWhenComputingThePeriod() {
+        assertThat(IndexNameResolver.granularityOf("yyyy'Hms'MMdd")).isEqualTo(Calendar.DAY_OF_MONTH);
+        assertThat(IndexNameResolver.granularityOf("yyyyMMdd'T'HHmm")).isEqualTo(Calendar.MINUTE);
+    }
+
+    @Test
+    public void resolvesToIndexAloneWithoutDateFormat() {
+        IndexNameResolver resolver = new IndexNameResolver("logs", null);
+
+        assertThat(resolver.resolve(SOME_DAY)).isEqualTo("logs");
+    }
+
+    private static SimpleDateFormat utc(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+}
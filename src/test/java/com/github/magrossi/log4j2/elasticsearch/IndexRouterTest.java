@@ -0,0 +1,122 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IndexRouterTest {
+
+    private static final long SOME_DAY = 1483272000000L; // 2017-01-01T12:00:00Z
+
+    @Test
+    public void routesToFixedIndexWithoutLookups() {
+        IndexRouter router = new IndexRouter("logs-", utc("yyyyMMdd"), "log", "index", 10);
+
+        IndexRouter.Route route = router.route(event("acme", Level.INFO, SOME_DAY), null);
+
+        assertThat(router.isDynamic()).isFalse();
+        assertThat(new String(route.getActionLine())).isEqualTo("{\"index\":{\"_index\":\"logs-20170101\",\"_type\":\"log\"}}\n");
+    }
+
+    @Test
+    public void createsDocumentsWithCreateOpType() {
+        IndexRouter router = new IndexRouter("logs", null, "_doc", "create", 10);
+
+        IndexRouter.Route route = router.route(event("acme", Level.INFO, SOME_DAY), null);
+
+        assertThat(new String(route.getActionLine())).isEqualTo("{\"create\":{\"_index\":\"logs\",\"_type\":\"_doc\"}}\n");
+    }
+
+    @Test
+    public void routesByContextAndLevel() {
+        IndexRouter router = new IndexRouter("logs-${ctx:tenant}-${level}-", utc("yyyy.MM.dd"), "log", "index", 10);
+
+        assertThat(router.isDynamic()).isTrue();
+        assertThat(router.route(event("Acme", Level.ERROR, SOME_DAY), null).getIndexName()).isEqualTo("logs-acme-error-2017.01.01");
+        assertThat(router.route(event("globex", Level.INFO, SOME_DAY), null).getIndexName()).isEqualTo("logs-globex-info-2017.01.01");
+    }
+
+    @Test
+    public void usesDefaultWhenValueIsMissing() {
+        IndexRouter router = new IndexRouter("logs-${ctx:tenant:-shared}-${ctx:service}", null, "log", "index", 10);
+
+        assertThat(router.route(event(null, Level.INFO, SOME_DAY), null).getIndexName()).isEqualTo("logs-shared-");
+    }
+
+    @Test
+    public void replacesCharactersNotAllowedInIndexNames() {
+        IndexRouter router = new IndexRouter("logs-${ctx:tenant}", null, "log", "index", 10);
+
+        assertThat(router.route(event("a \"b\"/c*d", Level.INFO, SOME_DAY), null).getIndexName()).isEqualTo("logs-a__b__c_d");
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedRouteOnceFull() {
+        IndexRouter router = new IndexRouter("logs-${ctx:tenant}", null, "log", "index", 2);
+        IndexRouter.Route acme = router.route(event("acme", Level.INFO, SOME_DAY), null);
+        IndexRouter.Route globex = router.route(event("globex", Level.INFO, SOME_DAY), null);
+        assertThat(router.route(event("acme", Level.INFO, SOME_DAY), null)).isSameAs(acme);
+
+        router.route(event("initech", Level.INFO, SOME_DAY), null);
+
+        assertThat(router.route(event("acme", Level.INFO, SOME_DAY), null)).isSameAs(acme);
+        assertThat(router.route(event("globex", Level.INFO, SOME_DAY), null)).isNotSameAs(globex);
+    }
+
+    @Test
+    public void reusesLastRouteWhileDestinationDoesNotChange() {
+        IndexRouter router = new IndexRouter("logs-${ctx:tenant}-", utc("yyyyMMdd"), "log", "index", 10);
+        IndexRouter.Route route = router.route(event("acme", Level.INFO, SOME_DAY), null);
+
+        assertThat(router.route(event("acme", Level.WARN, SOME_DAY + 1000), route)).isSameAs(route);
+        assertThat(router.route(event("globex", Level.INFO, SOME_DAY), route)).isNotSameAs(route);
+        assertThat(router.route(event("acme", Level.INFO, SOME_DAY + 24 * 3600000L), route).getIndexName()).isEqualTo("logs-acme-20170102");
+    }
+
+    @Test
+    public void cachesActionLinesPerDestination() {
+        IndexRouter router = new IndexRouter("logs-${ctx:tenant}", null, "log", "index", 10);
+        IndexRouter.Route route = router.route(event("acme", Level.INFO, SOME_DAY), null);
+
+        router.route(event("globex", Level.INFO, SOME_DAY), null);
+
+        assertThat(router.route(event("acme", Level.INFO, SOME_DAY), null)).isSameAs(route);
+    }
+
+    @Test
+    public void keepsRoutingOnceCacheIsFull() {
+        IndexRouter router = new IndexRouter("logs-${ctx:tenant}", null, "log", "index", 2);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(router.route(event("tenant" + i, Level.INFO, SOME_DAY), null).getIndexName()).isEqualTo("logs-tenant" + i);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownLookups() {
+        new IndexRouter("logs-${date:yyyy}", null, "log", "index", 10);
+    }
+
+    private static LogEvent event(String tenant, Level level, long timeMillis) {
+        SortedArrayStringMap context = new SortedArrayStringMap();
+        if (tenant != null) {
+            context.putValue("tenant", tenant);
+        }
+        return Log4jLogEvent.newBuilder().setLoggerName("someLogger").setLevel(level).setTimeMillis(timeMillis)
+                .setContextData(context).setMessage(new SimpleMessage("some message")).build();
+    }
+
+    private static SimpleDateFormat utc(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+}
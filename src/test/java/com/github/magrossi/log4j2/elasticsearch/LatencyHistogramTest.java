@@ -0,0 +1,52 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void reportsZeroWhenEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertThat(histogram.percentile(0.99)).isZero();
+        assertThat(histogram.max()).isZero();
+        assertThat(histogram.count()).isZero();
+    }
+
+    @Test
+    public void reportsPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i, TimeUnit.MILLISECONDS);
+        }
+
+        assertThat(histogram.count()).isEqualTo(1000);
+        assertThat((double) histogram.percentile(0.5)).isCloseTo(500_000, within(500_000 * 0.125));
+        assertThat((double) histogram.percentile(0.99)).isCloseTo(990_000, within(990_000 * 0.125));
+        assertThat(histogram.max()).isEqualTo(1_000_000);
+    }
+
+    @Test
+    public void neverReportsMoreThanTheMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(1001, TimeUnit.MICROSECONDS);
+
+        assertThat(histogram.percentile(0.5)).isEqualTo(1001);
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        for (long value : new long[] {0, 1, 7, 8, 15, 16, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+
+            assertThat(LatencyHistogram.upperBoundOf(bucket)).isGreaterThanOrEqualTo(value);
+            assertThat(bucket == 0 || LatencyHistogram.upperBoundOf(bucket - 1) < value).isTrue();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Level;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateLimitTest {
+
+    @Test
+    public void sendsABurstThenSuppressesEventsUntilTokensAreRefilled() {
+        RateLimit limit = RateLimit.newBuilder().withEventsPerSecond(0.001).withBurst(3).build();
+
+        assertThat(limit.tryAcquire()).isTrue();
+        assertThat(limit.tryAcquire()).isTrue();
+        assertThat(limit.tryAcquire()).isTrue();
+        assertThat(limit.tryAcquire()).isFalse();
+        assertThat(limit.tryAcquire()).isFalse();
+    }
+
+    @Test
+    public void refillsTokensOverTime() throws InterruptedException {
+        RateLimit limit = RateLimit.newBuilder().withEventsPerSecond(100).withBurst(1).build();
+        assertThat(limit.tryAcquire()).isTrue();
+
+        Thread.sleep(50L);
+
+        assertThat(limit.tryAcquire()).isTrue();
+    }
+
+    @Test
+    public void suppressesEventsSampledOut() {
+        RateLimit none = RateLimit.newBuilder().withSampleRate(0.0).build();
+        RateLimit all = RateLimit.newBuilder().withSampleRate(1.0).build();
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(none.tryAcquire()).isFalse();
+            assertThat(all.tryAcquire()).isTrue();
+        }
+    }
+
+    @Test
+    public void countsSuppressedEventsUntilTaken() {
+        RateLimit limit = RateLimit.newBuilder().withSampleRate(0.0).build();
+        assertThat(limit.takeSuppressed()).isNull();
+        limit.tryAcquire();
+        limit.tryAcquire();
+
+        assertThat(new String(limit.takeSuppressed(), StandardCharsets.UTF_8)).isEqualTo("\"suppressed\":2");
+        assertThat(limit.takeSuppressed()).isNull();
+    }
+
+    @Test
+    public void appliesToLevelsUpToItsLevel() {
+        RateLimit limit = RateLimit.newBuilder().withLevel(Level.INFO).build();
+
+        assertThat(limit.appliesTo(Level.DEBUG)).isTrue();
+        assertThat(limit.appliesTo(Level.INFO)).isTrue();
+        assertThat(limit.appliesTo(Level.WARN)).isFalse();
+        assertThat(RateLimit.newBuilder().build().appliesTo(Level.FATAL)).isTrue();
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RateLimiterTest {
+
+    private final RateLimit all = RateLimit.newBuilder().withLevel(Level.DEBUG).build();
+    private final RateLimit chatty = RateLimit.newBuilder().withLogger("com.example.chatty").withLevel(Level.INFO).build();
+    private final RateLimiter limiter = new RateLimiter(chatty, all);
+
+    @Test
+    public void picksTheLimitWithTheLongestMatchingPrefix() {
+        assertThat(limiter.limitOf(event("com.example.chatty.Client", Level.INFO))).isSameAs(chatty);
+        assertThat(limiter.limitOf(event("com.example.Other", Level.DEBUG))).isSameAs(all);
+    }
+
+    @Test
+    public void fallsBackToShorterPrefixesForOtherLevels() {
+        assertThat(limiter.limitOf(event("com.example.chatty.Client", Level.WARN))).isNull();
+        assertThat(new RateLimiter(RateLimit.newBuilder().withLogger("com.example.chatty").withLevel(Level.TRACE).build(), all)
+                .limitOf(event("com.example.chatty.Client", Level.DEBUG))).isSameAs(all);
+    }
+
+    @Test
+    public void doesNotLimitOtherEvents() {
+        assertThat(limiter.limitOf(event("com.example.Other", Level.INFO))).isNull();
+        assertThat(limiter.limitOf(event(null, Level.INFO))).isNull();
+    }
+
+    private static LogEvent event(String loggerName, Level level) {
+        return Log4jLogEvent.newBuilder().setLoggerName(loggerName).setLevel(level).build();
+    }
+}
@@ -0,0 +1,165 @@
+package com.github.magrossi.log4j2.elasticsearch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SpillQueueTest {
+
+    private static final String SOME_ITEMS = "{\"index\":{}}\n{\"message\":\"some message\"}\n";
+    private static final String OTHER_ITEMS = "{\"index\":{}}\n{\"message\":\"other message\"}\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private BulkSender mockBulkSender;
+
+    @Test
+    public void replaysItemsInOrderAndEmptiesTheQueue() throws IOException {
+        List<String> sent = recordSentBodies();
+        SpillQueue queue = new SpillQueue(folder.getRoot().toPath(), 1024 * 1024);
+        append(queue, SOME_ITEMS);
+        append(queue, OTHER_ITEMS);
+
+        assertThat(queue.replay(mockBulkSender)).isTrue();
+
+        assertThat(sent).containsExactly(SOME_ITEMS, OTHER_ITEMS);
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(folder.getRoot().list()).isEmpty();
+    }
+
+    @Test
+    public void keepsItemsWhenReplayFails() throws IOException {
+        doThrow(new IOException("Connection refused")).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+        SpillQueue queue = new SpillQueue(folder.getRoot().toPath(), 1024 * 1024);
+        append(queue, SOME_ITEMS);
+
+        assertThat(queue.replay(mockBulkSender)).isFalse();
+
+        assertThat(queue.isEmpty()).isFalse();
+    }
+
+    @Test
+    public void replaysOnlyTheItemsOfARecordStillRejected() throws IOException {
+        List<String> sent = new ArrayList<>();
+        doAnswer(invocation -> {
+            Object[] args = invocation.getArguments();
+            sent.add(new String((byte[]) args[0], (int) args[1], (int) args[2], StandardCharsets.UTF_8));
+            if (sent.size() == 1) {
+                throw new BulkRejectedException("1 bulk item rejected", OTHER_ITEMS.getBytes(StandardCharsets.UTF_8), 1);
+            }
+            return null;
+        }).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+        SpillQueue queue = new SpillQueue(folder.getRoot().toPath(), 1024 * 1024);
+        byte[] bytes = (SOME_ITEMS + OTHER_ITEMS).getBytes(StandardCharsets.UTF_8);
+        queue.append(bytes, 0, bytes.length, 2);
+
+        assertThat(queue.replay(mockBulkSender)).isFalse();
+        assertThat(queue.replay(mockBulkSender)).isTrue();
+
+        assertThat(sent).containsExactly(SOME_ITEMS + OTHER_ITEMS, OTHER_ITEMS);
+        assertThat(queue.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void survivesRestarts() throws IOException {
+        List<String> sent = recordSentBodies();
+        SpillQueue queue = new SpillQueue(folder.getRoot().toPath(), 1024 * 1024);
+        append(queue, SOME_ITEMS);
+        queue.close();
+
+        SpillQueue reopened = new SpillQueue(folder.getRoot().toPath(), 1024 * 1024);
+        append(reopened, OTHER_ITEMS);
+        reopened.replay(mockBulkSender);
+
+        assertThat(sent).containsExactly(SOME_ITEMS, OTHER_ITEMS);
+    }
+
+    @Test
+    public void refusesItemsOnceClosed() throws IOException {
+        SpillQueue queue = new SpillQueue(folder.getRoot().toPath(), 1024 * 1024);
+        append(queue, SOME_ITEMS);
+        queue.close();
+
+        try {
+            append(queue, OTHER_ITEMS);
+            fail("Appended to a closed spill queue");
+        } catch (IOException expected) {
+            // Refused rather than written to a new segment
+        }
+
+        assertThat(folder.getRoot().list()).hasSize(1);
+    }
+
+    @Test
+    public void dropsItemsOnceFull() throws IOException {
+        SpillQueue queue = new SpillQueue(folder.getRoot().toPath(), SOME_ITEMS.length() + 20);
+
+        assertThat(append(queue, SOME_ITEMS)).isTrue();
+        assertThat(append(queue, OTHER_ITEMS)).isFalse();
+
+        assertThat(queue.getDroppedItems()).isEqualTo(1);
+    }
+
+    @Test
+    public void skipsTornRecords() throws IOException {
+        List<String> sent = recordSentBodies();
+        SpillQueue queue = new SpillQueue(folder.getRoot().toPath(), 1024 * 1024);
+        append(queue, SOME_ITEMS);
+        queue.close();
+        Path segment = folder.getRoot().listFiles()[0].toPath();
+        Files.write(segment, new byte[] { 0, 0, 1, 0, 0, 0 }, StandardOpenOption.APPEND);
+
+        SpillQueue reopened = new SpillQueue(folder.getRoot().toPath(), 1024 * 1024);
+
+        assertThat(reopened.replay(mockBulkSender)).isTrue();
+        assertThat(sent).containsExactly(SOME_ITEMS);
+    }
+
+    @Test
+    public void doesNotSendWhenEmpty() throws IOException {
+        SpillQueue queue = new SpillQueue(folder.getRoot().toPath(), 1024 * 1024);
+
+        assertThat(queue.replay(mockBulkSender)).isTrue();
+
+        verifyZeroInteractions(mockBulkSender);
+    }
+
+    private List<String> recordSentBodies() throws IOException {
+        List<String> sent = new ArrayList<>();
+        doAnswer(invocation -> {
+            Object[] args = invocation.getArguments();
+            sent.add(new String((byte[]) args[0], (int) args[1], (int) args[2], StandardCharsets.UTF_8));
+            return null;
+        }).when(mockBulkSender).send(any(byte[].class), anyInt(), anyInt());
+        return sent;
+    }
+
+    private static boolean append(SpillQueue queue, String items) throws IOException {
+        byte[] bytes = items.getBytes(StandardCharsets.UTF_8);
+        return queue.append(bytes, 0, bytes.length, 1);
+    }
+}